@@ -0,0 +1,80 @@
+package io.github.xanderwang.performance.decoder;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * @author Xander Wang
+ * @Description 命令行工具，把 performance 库保存的 log 文件还原为文本或者 JSON lines 。
+ * <p>
+ * 用法：java -jar performance-decoder.jar [--json] file...
+ */
+public class IssueDecoder {
+
+    public static void main(String[] args) throws UnsupportedEncodingException {
+        boolean json = false;
+        int fileCount = 0;
+        int errorCount = 0;
+        // log 文件里面的文本都是 UTF-8 ，输出的时候不依赖系统默认编码
+        PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), false, "UTF-8");
+        for (String arg : args) {
+            if ("--json".equals(arg)) {
+                json = true;
+                continue;
+            }
+            if ("--text".equals(arg)) {
+                json = false;
+                continue;
+            }
+            fileCount++;
+            try {
+                decode(new File(arg), json, out);
+            } catch (IOException e) {
+                errorCount++;
+                System.err.println(arg + ": " + e.getMessage());
+            }
+        }
+        out.flush();
+        if (fileCount == 0) {
+            System.err.println("usage: java -jar performance-decoder.jar [--json] file.log|file.zip|file.gz...");
+            System.exit(2);
+        }
+        if (errorCount > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 解码一个 log 文件
+     *
+     * @param file log 文件
+     * @param json 是否输出 JSON lines
+     * @param out  输出
+     * @throws IOException
+     */
+    public static void decode(File file, boolean json, PrintStream out) throws IOException {
+        SegmentReader reader = SegmentReader.open(file);
+        if (reader.brokenFrame() >= 0) {
+            System.err.println(file + ": broken frame at " + reader.brokenFrame() + ", decode up to it");
+        }
+        if (!reader.isBinary()) {
+            if (json) {
+                System.err.println(file + ": text segment, output as is");
+            }
+            out.print(reader.text());
+            return;
+        }
+        IssueRecord record;
+        while (null != (record = reader.next())) {
+            if (json) {
+                out.println(record.toJson());
+            } else {
+                out.print(record.toText());
+            }
+        }
+    }
+}
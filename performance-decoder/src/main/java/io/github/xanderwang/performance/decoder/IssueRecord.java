@@ -0,0 +1,199 @@
+package io.github.xanderwang.performance.decoder;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * @author Xander Wang
+ * @Description 解码后的 issue ，可以还原为 performance 库输出的文本，也可以输出为一行 JSON 。
+ */
+public class IssueRecord {
+
+    private static final String[] TYPE_NAMES = {"UI BLOCK", "FPS", "IPC", "THREAD", "BITMAP", "LOOPER"};
+
+    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US);
+
+    int type;
+
+    long createTimeMillis;
+
+    long costTime;
+
+    String msg;
+
+    /**
+     * 字段，按照写入的顺序，名称和值交替保存
+     */
+    final List<String> fields = new ArrayList<>();
+
+    /**
+     * 调用栈
+     */
+    final List<Trace> traces = new ArrayList<>();
+
+    /**
+     * issue 里面的一个调用栈
+     */
+    static class Trace {
+        String name;
+
+        /**
+         * 去重后的调用栈编号，0 表示没有去重
+         */
+        int id;
+
+        /**
+         * 写入时已经出现的次数
+         */
+        long count;
+
+        /**
+         * 当前文件里面已经完整输出过，文本里面只输出编号和次数
+         */
+        boolean repeated;
+
+        List<String> frames;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getTypeName() {
+        return type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "UNKNOWN";
+    }
+
+    public long getCreateTimeMillis() {
+        return createTimeMillis;
+    }
+
+    public long getCostTime() {
+        return costTime;
+    }
+
+    public String getMsg() {
+        return msg;
+    }
+
+    private static String formatTime(long timeMillis) {
+        synchronized (dateFormat) {
+            return dateFormat.format(new Date(timeMillis));
+        }
+    }
+
+    /**
+     * 还原为 performance 库输出的文本
+     *
+     * @return 文本
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n=================================================\n");
+        sb.append("type: ").append(getTypeName()).append('\n');
+        sb.append("msg: ").append(msg).append('\n');
+        sb.append("create time: ").append(formatTime(createTimeMillis)).append('\n');
+        if (costTime > 0) {
+            sb.append("cost time: ").append(costTime).append(" ms\n");
+        }
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            sb.append(fields.get(i)).append(": ").append(fields.get(i + 1)).append('\n');
+        }
+        for (Trace trace : traces) {
+            if (trace.id == 0) {
+                sb.append(trace.name).append(":\n");
+            } else if (trace.repeated) {
+                sb.append(trace.name).append(": trace #").append(trace.id).append(" seen again ×").append(trace.count)
+                    .append('\n');
+                continue;
+            } else {
+                sb.append(trace.name).append(": trace #").append(trace.id).append('\n');
+            }
+            for (String frame : trace.frames) {
+                sb.append('\t').append(frame).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 输出为一行 JSON
+     *
+     * @return JSON
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"type\":");
+        appendJsonString(sb, getTypeName());
+        sb.append(",\"typeId\":").append(type);
+        sb.append(",\"createTime\":").append(createTimeMillis);
+        sb.append(",\"costTime\":").append(costTime);
+        sb.append(",\"msg\":");
+        appendJsonString(sb, msg);
+        sb.append(",\"fields\":{");
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendJsonString(sb, fields.get(i));
+            sb.append(':');
+            appendJsonString(sb, fields.get(i + 1));
+        }
+        sb.append("},\"traces\":{");
+        for (int i = 0; i < traces.size(); i++) {
+            Trace trace = traces.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendJsonString(sb, trace.name);
+            sb.append(":{\"id\":").append(trace.id).append(",\"count\":").append(trace.count).append(",\"frames\":[");
+            List<String> frames = trace.frames;
+            for (int j = 0; j < frames.size(); j++) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                appendJsonString(sb, frames.get(j));
+            }
+            sb.append("]}");
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    static void appendJsonString(StringBuilder sb, String str) {
+        if (null == str) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0, len = str.length(); i < len; i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,298 @@
+package io.github.xanderwang.performance.decoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * @author Xander Wang
+ * @Description 读取 performance 库保存的 log 文件，支持 .log 文件和压缩后的 .zip 、.gz 文件。
+ * <p>
+ * 文件的前 {@link #HEADER_LENGTH} 个字节记录最后有效字节的位置，后面是文件格式的标识：{@link #TEXT_MAGIC} 和
+ * {@link #MAGIC} 的文件按帧保存，每帧是 4 个字节的长度、4 个字节的 CRC32 和数据，读取到最后一个完整的帧为止，
+ * 不依赖头部记录；{@link #LEGACY_MAGIC} 和没有标识的旧版本文件按照头部记录的位置读取。
+ * 记录格式见 performance 库里面的 LogSegment 和 BinaryIssueFormatter 。
+ */
+public class SegmentReader {
+
+    static final int HEADER_LENGTH = 7;
+
+    static final byte[] MAGIC = {'P', 'E', 'R', 'F', 'B', 'I', 'N', '2'};
+
+    static final byte[] LEGACY_MAGIC = {'P', 'E', 'R', 'F', 'B', 'I', 'N', '1'};
+
+    static final byte[] TEXT_MAGIC = {'P', 'E', 'R', 'F', 'T', 'X', 'T', '2'};
+
+    static final int FRAME_HEADER_LENGTH = 8;
+
+    static final int TAG_STRING = 1;
+
+    static final int TAG_ISSUE = 2;
+
+    static final int TAG_TRACE = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+
+    private final int end;
+
+    /**
+     * 分帧的文件里面不完整或者损坏的帧的位置，没有的时候为 -1
+     */
+    private int brokenFrame = -1;
+
+    private int position;
+
+    private final boolean binary;
+
+    /**
+     * 当前文件的字符串表
+     */
+    private final List<String> strings = new ArrayList<>();
+
+    /**
+     * 当前文件的调用栈表
+     */
+    private final HashMap<Integer, List<String>> traces = new HashMap<>();
+
+    /**
+     * 已经完整输出过的调用栈
+     */
+    private final BitSet writtenTraces = new BitSet();
+
+    public SegmentReader(byte[] data) {
+        if (startsWith(data, MAGIC) || startsWith(data, TEXT_MAGIC)) {
+            binary = startsWith(data, MAGIC);
+            this.data = unframe(data, HEADER_LENGTH + MAGIC.length);
+            end = this.data.length;
+            position = 0;
+            return;
+        }
+        this.data = data;
+        int headerPosition = 0;
+        for (int i = 0; i < HEADER_LENGTH && i < data.length; i++) {
+            byte b = data[i];
+            if (b < '0' || b > '9') {
+                break;
+            }
+            headerPosition = headerPosition * 10 + (b - '0');
+        }
+        end = headerPosition <= 0 ? data.length : Math.min(headerPosition, data.length);
+        binary = startsWith(data, LEGACY_MAGIC);
+        position = Math.min(end, binary ? HEADER_LENGTH + LEGACY_MAGIC.length : HEADER_LENGTH);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] magic) {
+        if (data.length < HEADER_LENGTH + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[HEADER_LENGTH + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把所有完整的帧的数据拼起来，遇到长度为 0 、超出范围或者校验值不对的帧就停止
+     *
+     * @param data  文件内容
+     * @param start 第一帧的位置
+     * @return 拼起来的数据
+     */
+    private byte[] unframe(byte[] data, int start) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length);
+        CRC32 crc = new CRC32();
+        int position = start;
+        while (position + FRAME_HEADER_LENGTH <= data.length) {
+            int length = readInt(data, position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > data.length - position - FRAME_HEADER_LENGTH) {
+                brokenFrame = position;
+                break;
+            }
+            crc.reset();
+            crc.update(data, position + FRAME_HEADER_LENGTH, length);
+            if ((int) crc.getValue() != readInt(data, position + 4)) {
+                brokenFrame = position;
+                break;
+            }
+            output.write(data, position + FRAME_HEADER_LENGTH, length);
+            position += FRAME_HEADER_LENGTH + length;
+        }
+        return output.toByteArray();
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16 | (data[position + 2] & 0xFF) << 8
+            | (data[position + 3] & 0xFF);
+    }
+
+    /**
+     * 读取文件，.zip 文件读取第一个文件，.gz 文件读取解压后的内容
+     *
+     * @param file log 文件
+     * @return 文件读取器
+     * @throws IOException
+     */
+    public static SegmentReader open(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".gz")) {
+                input = new GZIPInputStream(input);
+            } else if (file.getName().endsWith(".zip")) {
+                ZipInputStream zipInput = new ZipInputStream(input);
+                ZipEntry entry = zipInput.getNextEntry();
+                if (null == entry) {
+                    throw new IOException("empty zip file: " + file);
+                }
+                input = zipInput;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, length);
+            }
+            return new SegmentReader(output.toByteArray());
+        } finally {
+            input.close();
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * 分帧的文件最后一个不完整或者损坏的帧的位置，进程在写入的时候退出会留下这样的帧
+     *
+     * @return 没有的时候返回 -1
+     */
+    public int brokenFrame() {
+        return brokenFrame;
+    }
+
+    /**
+     * 文本格式文件的内容
+     *
+     * @return 文本
+     */
+    public String text() {
+        return new String(data, position, end - position, UTF_8);
+    }
+
+    /**
+     * 读取下一个 issue
+     *
+     * @return 没有更多数据的时候返回 null
+     * @throws IOException 数据格式不对
+     */
+    public IssueRecord next() throws IOException {
+        if (!binary) {
+            return null;
+        }
+        while (position < end) {
+            int tag = (int) readVarint();
+            if (tag == TAG_STRING) {
+                int length = (int) readVarint();
+                checkAvailable(length);
+                strings.add(new String(data, position, length, UTF_8));
+                position += length;
+            } else if (tag == TAG_TRACE) {
+                int id = (int) readVarint();
+                // 调用栈被淘汰之后编号会重新使用，重新定义的调用栈第一次出现的时候是完整输出的
+                traces.put(id, readFrames());
+                writtenTraces.clear(id);
+            } else if (tag == TAG_ISSUE) {
+                return readIssue();
+            } else {
+                throw new IOException("unknown tag " + tag + " at " + position);
+            }
+        }
+        return null;
+    }
+
+    private IssueRecord readIssue() throws IOException {
+        IssueRecord record = new IssueRecord();
+        record.type = (int) readVarint();
+        record.createTimeMillis = readVarint();
+        record.costTime = readVarint();
+        record.msg = readString();
+        int fieldCount = (int) readVarint();
+        for (int i = 0; i < fieldCount; i++) {
+            record.fields.add(readString());
+            record.fields.add(readString());
+        }
+        int traceCount = (int) readVarint();
+        for (int i = 0; i < traceCount; i++) {
+            IssueRecord.Trace trace = new IssueRecord.Trace();
+            trace.name = readString();
+            trace.id = (int) readVarint();
+            trace.count = readVarint();
+            if (trace.id == 0) {
+                trace.frames = readFrames();
+            } else {
+                trace.frames = traces.get(trace.id);
+                if (null == trace.frames) {
+                    throw new IOException("undefined trace " + trace.id + " at " + position);
+                }
+                trace.repeated = writtenTraces.get(trace.id);
+                writtenTraces.set(trace.id);
+            }
+            record.traces.add(trace);
+        }
+        return record;
+    }
+
+    private List<String> readFrames() throws IOException {
+        int frameCount = (int) readVarint();
+        List<String> frames = new ArrayList<>(Math.min(frameCount, end - position));
+        for (int j = 0; j < frameCount; j++) {
+            frames.add(readString());
+        }
+        return frames;
+    }
+
+    private String readString() throws IOException {
+        long index = readVarint();
+        if (index < 0 || index >= strings.size()) {
+            throw new IOException("undefined string " + index + " at " + position);
+        }
+        return strings.get((int) index);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkAvailable(1);
+            byte b = data[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint at " + position);
+    }
+
+    private void checkAvailable(int length) throws IOException {
+        if (length < 0 || position + length > end) {
+            throw new IOException("unexpected end of segment at " + position);
+        }
+    }
+}
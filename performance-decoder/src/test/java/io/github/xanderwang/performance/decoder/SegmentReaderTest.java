@@ -0,0 +1,210 @@
+package io.github.xanderwang.performance.decoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link SegmentReader} 按照 performance 库的文件格式解码
+ */
+public class SegmentReaderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 按照 BinaryIssueFormatter 的格式编码记录，按照 LogSegment 的格式分帧
+     */
+    private static class SegmentWriter {
+
+        private final ByteArrayOutputStream file = new ByteArrayOutputStream();
+
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+        SegmentWriter(byte[] magic) {
+            file.write("0      ".getBytes(UTF_8), 0, SegmentReader.HEADER_LENGTH);
+            file.write(magic, 0, magic.length);
+        }
+
+        SegmentWriter varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                record.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            record.write((int) value);
+            return this;
+        }
+
+        SegmentWriter string(String str) {
+            byte[] bytes = str.getBytes(UTF_8);
+            varint(SegmentReader.TAG_STRING).varint(bytes.length);
+            record.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        /**
+         * 把当前的记录写成一帧
+         */
+        SegmentWriter frame() {
+            byte[] data = record.toByteArray();
+            record.reset();
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            writeInt(data.length);
+            writeInt((int) crc.getValue());
+            file.write(data, 0, data.length);
+            return this;
+        }
+
+        SegmentWriter raw(byte[] data) {
+            record.write(data, 0, data.length);
+            return this;
+        }
+
+        private void writeInt(int value) {
+            file.write(value >>> 24);
+            file.write(value >>> 16);
+            file.write(value >>> 8);
+            file.write(value);
+        }
+
+        int size() {
+            return file.size();
+        }
+
+        byte[] bytes() {
+            byte[] bytes = file.toByteArray();
+            // 文件剩余的部分是 0 ，长度为 0 的帧表示结束
+            return Arrays.copyOf(bytes, bytes.length + 64);
+        }
+    }
+
+    /**
+     * 字符串 0:msg 1:name 2:value 3:trace 4:frameA 5:frameB ，调用栈 1 由 frameA 和 frameB 组成
+     */
+    private static SegmentWriter definitions() {
+        SegmentWriter writer = new SegmentWriter(SegmentReader.MAGIC);
+        writer.string("LOOPER").string("window time").string("1000").string("trace").string("a.B.run(B.java:1)")
+            .string("a.C.call(C.java:2)");
+        writer.varint(SegmentReader.TAG_TRACE).varint(1).varint(2).varint(4).varint(5);
+        return writer;
+    }
+
+    private static void issue(SegmentWriter writer, long count) {
+        writer.varint(SegmentReader.TAG_ISSUE).varint(0).varint(1000L).varint(12).varint(0);
+        writer.varint(1).varint(1).varint(2);
+        writer.varint(1).varint(3).varint(1).varint(count);
+    }
+
+    @Test
+    public void decodesFieldsAndDeduplicatedTraces() throws IOException {
+        SegmentWriter writer = definitions();
+        issue(writer, 1);
+        writer.frame();
+        issue(writer, 2);
+        writer.frame();
+        SegmentReader reader = new SegmentReader(writer.bytes());
+        assertTrue(reader.isBinary());
+        assertEquals(-1, reader.brokenFrame());
+
+        IssueRecord first = reader.next();
+        assertEquals("UI BLOCK", first.getTypeName());
+        assertEquals(1000L, first.getCreateTimeMillis());
+        assertEquals(12L, first.getCostTime());
+        assertEquals("LOOPER", first.getMsg());
+        assertEquals(Arrays.asList("window time", "1000"), first.fields);
+        assertFalse(first.traces.get(0).repeated);
+        assertTrue(first.toText().endsWith("cost time: 12 ms\nwindow time: 1000\ntrace: trace #1\n"
+            + "\ta.B.run(B.java:1)\n\ta.C.call(C.java:2)\n"));
+
+        IssueRecord second = reader.next();
+        assertTrue(second.traces.get(0).repeated);
+        assertTrue(second.toText().endsWith("trace: trace #1 seen again ×2\n"));
+        assertEquals("{\"type\":\"UI BLOCK\",\"typeId\":0,\"createTime\":1000,\"costTime\":12,\"msg\":\"LOOPER\","
+            + "\"fields\":{\"window time\":\"1000\"},\"traces\":{\"trace\":{\"id\":1,\"count\":2,"
+            + "\"frames\":[\"a.B.run(B.java:1)\",\"a.C.call(C.java:2)\"]}}}", second.toJson());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void redefinedTraceIsWrittenInFullAgain() throws IOException {
+        SegmentWriter writer = definitions();
+        issue(writer, 1);
+        // 调用栈 1 被淘汰，编号给了只有 frameB 的新调用栈
+        writer.varint(SegmentReader.TAG_TRACE).varint(1).varint(1).varint(5);
+        issue(writer, 1);
+        writer.frame();
+        SegmentReader reader = new SegmentReader(writer.bytes());
+        reader.next();
+        IssueRecord redefined = reader.next();
+        assertFalse(redefined.traces.get(0).repeated);
+        assertEquals(Arrays.asList("a.C.call(C.java:2)"), redefined.traces.get(0).frames);
+    }
+
+    @Test
+    public void stopsAtBrokenFrame() throws IOException {
+        SegmentWriter writer = definitions();
+        issue(writer, 1);
+        writer.frame();
+        int broken = writer.size();
+        issue(writer, 2);
+        writer.frame();
+        byte[] data = writer.bytes();
+        // 第二帧的数据被破坏
+        data[broken + SegmentReader.FRAME_HEADER_LENGTH] ^= 0xFF;
+        SegmentReader reader = new SegmentReader(data);
+        assertEquals(broken, reader.brokenFrame());
+        assertEquals("LOOPER", reader.next().getMsg());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void undefinedStringIsAnError() {
+        SegmentWriter writer = new SegmentWriter(SegmentReader.MAGIC);
+        writer.varint(SegmentReader.TAG_ISSUE).varint(0).varint(0).varint(0).varint(7);
+        writer.frame();
+        try {
+            new SegmentReader(writer.bytes()).next();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("undefined string 7"));
+        }
+    }
+
+    @Test
+    public void readsFramedTextAndGzip() throws IOException {
+        SegmentWriter writer = new SegmentWriter(SegmentReader.TEXT_MAGIC);
+        writer.raw("\ntype: FPS\n".getBytes(UTF_8)).frame();
+        File file = File.createTempFile("segment", ".log.gz");
+        try {
+            GZIPOutputStream output = new GZIPOutputStream(new FileOutputStream(file));
+            output.write(writer.bytes());
+            output.close();
+            SegmentReader reader = SegmentReader.open(file);
+            assertFalse(reader.isBinary());
+            assertEquals("\ntype: FPS\n", reader.text());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readsLegacyTextUpToHeaderPosition() {
+        byte[] data = "18     \nlegacy\n tail garbage".getBytes(UTF_8);
+        SegmentReader reader = new SegmentReader(data);
+        assertFalse(reader.isBinary());
+        assertEquals("\nlegacy\n ta", reader.text());
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.xanderwang.performance;
+
+import java.util.List;
+
+public class Issue {
+
+    public static final int TYPE_UI_BLOCK = 0;
+
+    public static final int TYPE_FPS = 1;
+
+    public static final int TYPE_IPC = 2;
+
+    public static final int TYPE_THREAD = 3;
+
+    public static final int TYPE_BITMAP = 4;
+
+    public static final int TYPE_LOOPER = 5;
+
+    protected int type = -1;
+
+    protected String msg = "";
+
+    @Deprecated
+    protected String createTime = "";
+
+    protected Object data;
+
+    public Issue(int type, String msg, Object data) {
+        this.type = type;
+        this.msg = msg;
+        this.data = data;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getMsg() {
+        return msg;
+    }
+
+    public Object getData() {
+        return data;
+    }
+
+    public void setData(Object data) {
+        this.data = data;
+    }
+
+    public long getCreateTime() {
+        return 0L;
+    }
+
+    public long getCreateRealtimeNanos() {
+        return 0L;
+    }
+
+    public long getCostTime() {
+        return 0L;
+    }
+
+    protected void formatExtraInfo(IssueFormatter formatter) {
+
+    }
+
+    @Deprecated
+    protected void formatExtraInfo(StringBuilder sb) {
+
+    }
+
+    @Deprecated
+    protected void formatList(StringBuilder sb, List<?> dataList) {
+
+    }
+
+    public void print() {
+
+    }
+
+}
@@ -0,0 +1,15 @@
+package io.github.xanderwang.performance;
+
+import java.util.List;
+
+public abstract class IssueFormatter {
+
+    IssueFormatter() {
+    }
+
+    public abstract void field(String name, Object value);
+
+    public abstract void field(String name, long value);
+
+    public abstract void trace(String name, List<?> frames);
+}
@@ -1,9 +1,32 @@
 package io.github.xanderwang.performance;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
 public class PERF {
 
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+
+    /**
+     * issue 队列满了之后，阻塞产生 issue 的线程，直到队列有空位。
+     * 只能用于内置的 log 文件，{@link Builder#addSink(String, IssueSink, int, int, int)} 添加的 sink 使用这个策略时
+     * 按照 {@link #OVERFLOW_DROP_OLDEST} 处理，并输出警告
+     */
+    public static final int OVERFLOW_BLOCK = 2;
+
+    public static final int FORMAT_TEXT = 0;
+
+    public static final int FORMAT_BINARY = 1;
+
+    public static final int COMPRESS_ZIP = 0;
+
+    public static final int COMPRESS_GZIP = 1;
+
+    public static final int COMPRESS_STORE = 2;
+
     public static class Builder {
 
         public Builder checkUI(boolean check) {
@@ -14,6 +37,22 @@ public class PERF {
             return this;
         }
 
+        public Builder uiLatencyInterval(long interval) {
+            return this;
+        }
+
+        public Builder uiBlockSampling(long sampleThreshold, long sampleInterval) {
+            return this;
+        }
+
+        public Builder uiSlowMessageTime(long slowMessageTime) {
+            return this;
+        }
+
+        public Builder looperMonitor(long sampleInterval, long delayThreshold, int backlogThreshold) {
+            return this;
+        }
+
         public Builder checkThread(boolean check) {
             return this;
         }
@@ -22,6 +61,10 @@ public class PERF {
             return this;
         }
 
+        public Builder threadPoolStats(long exportInterval) {
+            return this;
+        }
+
         public Builder checkFps(boolean check) {
             return this;
         }
@@ -30,6 +73,14 @@ public class PERF {
             return this;
         }
 
+        public Builder fpsFrameSampling(long frameBudget, long sampleInterval) {
+            return this;
+        }
+
+        public Builder fpsFramePhases(boolean track) {
+            return this;
+        }
+
         public Builder checkIPC(boolean check) {
             return this;
         }
@@ -62,6 +113,64 @@ public class PERF {
             return this;
         }
 
+        public Builder uploadPolicy(long triggerSize, long triggerAge, int batchCount) {
+            return this;
+        }
+
+        public Builder issueQueue(int queueSize, int overflowPolicy) {
+            return this;
+        }
+
+        public Builder logSegment(int segmentSize, int segmentCount) {
+            return this;
+        }
+
+        public Builder issueFormat(int format) {
+            return this;
+        }
+
+        public Builder logCompress(int codec, int level) {
+            return this;
+        }
+
+        public Builder addSink(String name, IssueSink sink) {
+            return this;
+        }
+
+        /**
+         * 添加自定义的 sink ，每个 sink 有自己的队列和线程
+         *
+         * @param overflowPolicy 队列满了之后的处理策略，自定义的 sink 可能很慢，不允许阻塞产生 issue 的线程，
+         *                       {@link #OVERFLOW_BLOCK} 会按照 {@link #OVERFLOW_DROP_OLDEST} 处理，并输出警告
+         */
+        public Builder addSink(String name, IssueSink sink, int queueSize, int overflowPolicy, int batchSize) {
+            return this;
+        }
+
+        public Builder issueListener(IssueListener listener) {
+            return this;
+        }
+
+        public Builder memoryIssues(int count) {
+            return this;
+        }
+
+        public Builder issueStore(int capacity) {
+            return this;
+        }
+
+        public Builder issueSampling(int issueType, float sampleRate) {
+            return this;
+        }
+
+        public Builder issueRateLimit(int issueType, int burst, float permitsPerSecond) {
+            return this;
+        }
+
+        public Builder issueSummaryInterval(long interval) {
+            return this;
+        }
+
         public Builder logLevel(int level) {
             return this;
         }
@@ -80,8 +189,315 @@ public class PERF {
         boolean upload(File logFile);
     }
 
+    /**
+     * 支持一次上传多个文件的上传器，上传失败的文件会按照退避时间重试
+     */
+    public interface BatchLogFileUploader extends LogFileUploader {
+        /**
+         * 上传一批文件
+         *
+         * @return 上传成功的文件
+         */
+        List<File> upload(List<File> logFiles);
+    }
+
+    /**
+     * issue 的输出，每个 sink 运行在自己的线程里面，有自己的队列
+     */
+    public interface IssueSink {
+        /**
+         * 处理一个 issue
+         */
+        void write(Issue issue);
+
+        /**
+         * 一批 issue 处理完之后调用
+         */
+        void flush();
+    }
+
+    /**
+     * issue 回调，运行在单独的线程里面
+     */
+    public interface IssueListener {
+        void onIssue(Issue issue);
+    }
+
+    /**
+     * sink 的统计信息
+     */
+    public interface SinkStats {
+        String getSinkName();
+
+        /**
+         * 处理成功的 issue 数量
+         */
+        long getDeliveredCount();
+
+        /**
+         * 处理失败的 issue 数量
+         */
+        long getFailedCount();
+
+        /**
+         * 队列满了之后丢弃的 issue 数量
+         */
+        long getDroppedCount();
+
+        /**
+         * 处理的批次数量
+         */
+        long getBatchCount();
+
+        /**
+         * 队列里面等待处理的 issue 数量
+         */
+        int getQueueSize();
+
+        int getQueueCapacity();
+    }
+
+    /**
+     * 去重后的调用栈的统计信息
+     */
+    public interface TraceInfo {
+        /**
+         * 调用栈的编号，log 里面重复出现的调用栈只输出这个编号
+         */
+        int getId();
+
+        /**
+         * 出现的次数
+         */
+        int getCount();
+
+        /**
+         * 第一次出现的时间，单位 ms
+         */
+        long getFirstSeenTime();
+
+        /**
+         * 最后一次出现的时间，单位 ms
+         */
+        long getLastSeenTime();
+
+        List<String> getFrames();
+    }
+
+    /**
+     * 查询 {@link Builder#issueStore(int)} 保存的 issue ，issueType 小于 0 表示所有类型，
+     * windowMillis 表示最近多长时间，单位 ms
+     */
+    public interface IssueQuery {
+        /**
+         * 时间窗口内的 issue 数量
+         */
+        int count(int issueType, long windowMillis);
+
+        /**
+         * 时间窗口内按照总耗时排序的调用栈，没有耗时信息的时候按照次数排序
+         *
+         * @param limit 最多返回的数量，小于 0 表示不限制
+         */
+        List<TraceStat> topTraces(int issueType, long windowMillis, int limit);
+
+        /**
+         * 时间窗口内每个 key 的耗时分位数，IPC 的 key 是接口名，其他的是 msg ，按照 p95 从大到小排序
+         */
+        List<CostStat> costStats(int issueType, long windowMillis);
+    }
+
+    /**
+     * 一个调用栈在时间窗口内的统计
+     */
+    public interface TraceStat {
+        int getTraceId();
+
+        int getCount();
+
+        long getTotalCostTime();
+
+        long getMaxCostTime();
+
+        List<String> getFrames();
+    }
+
+    /**
+     * 一个 key 在时间窗口内的耗时统计，单位 ms
+     */
+    public interface CostStat {
+        String getKey();
+
+        int getCount();
+
+        long getP50();
+
+        long getP95();
+
+        long getP99();
+
+        long getMaxCostTime();
+    }
+
+    /**
+     * 主线程慢消息的累计耗时，单位 ms
+     */
+    public interface MessageStat {
+        /**
+         * 目标 Handler 的 class ，按键事件为 DecorView 的 class
+         */
+        String getTargetClass();
+
+        /**
+         * Message callback 的 class ，没有的时候为空字符串，按键事件为 KeyEvent
+         */
+        String getCallbackClass();
+
+        /**
+         * Message.what ，按键事件为 keyCode
+         */
+        int getWhat();
+
+        long getCount();
+
+        long getTotalTime();
+
+        long getMaxTime();
+    }
+
+    /**
+     * 主线程消息队列的一个采样点，时间单位都是 ms
+     */
+    public interface LooperSample {
+        /**
+         * 采样的时间，System.currentTimeMillis
+         */
+        long getTime();
+
+        /**
+         * 和上一个采样点之间的时间
+         */
+        long getWindowTime();
+
+        /**
+         * 从队头读取的消息数量，读到第一个没有到期的消息为止，最多 128 个，不能读取队列的时候为 -1
+         */
+        int getPendingCount();
+
+        /**
+         * 已经到期还没有分发的消息数量，最多 128 个，不能读取队列的时候为 -1
+         */
+        int getOverdueCount();
+
+        /**
+         * 这段时间内分发的消息数量
+         */
+        long getDispatchCount();
+
+        /**
+         * 这段时间内消息从预定时间到实际分发的延迟
+         */
+        long getDelayP50();
+
+        long getDelayP99();
+
+        long getDelayMax();
+
+        /**
+         * 这段时间内主线程空闲的时间
+         */
+        long getIdleTime();
+    }
+
     public static void init(Builder builder) {
 
     }
 
+    /**
+     * 获取调用栈的统计信息，按照出现的次数从多到少排序
+     *
+     * @return 调用栈列表
+     */
+    public static List<TraceInfo> traces() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 获取所有 sink 的统计信息
+     *
+     * @return 统计信息
+     */
+    public static List<SinkStats> sinkStats() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 获取内存里面保存的最近的 issue ，需要通过 {@link Builder#memoryIssues(int)} 开启
+     *
+     * @return issue 列表，按照时间从旧到新排序
+     */
+    public static List<Issue> recentIssues() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 获取按列保存的最近 issue 的查询接口，需要通过 {@link Builder#issueStore(int)} 开启，没有开启的时候查询结果都是空的
+     *
+     * @return 查询接口
+     */
+    public static IssueQuery issueStore() {
+        return EMPTY_QUERY;
+    }
+
+    /**
+     * 获取主线程慢消息的累计耗时，需要开启 UI 检测
+     *
+     * @return 统计列表，按照总耗时从多到少排序
+     */
+    public static List<MessageStat> slowMessages() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 获取主线程消息队列的采样点，需要开启 UI 检测
+     *
+     * @return 采样点列表，按照时间从旧到新排序
+     */
+    public static List<LooperSample> looperSamples() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 进入一个自定义的场景，比如 Fragment 显示的时候，需要开启 FPS 检测，可以在任意线程调用
+     *
+     * @param scene 场景名
+     */
+    public static void enterScene(String scene) {
+    }
+
+    /**
+     * 离开一个自定义的场景，输出这个场景的帧率统计
+     *
+     * @param scene 场景名
+     */
+    public static void exitScene(String scene) {
+    }
+
+    private static final IssueQuery EMPTY_QUERY = new IssueQuery() {
+        @Override
+        public int count(int issueType, long windowMillis) {
+            return 0;
+        }
+
+        @Override
+        public List<TraceStat> topTraces(int issueType, long windowMillis, int limit) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<CostStat> costStats(int issueType, long windowMillis) {
+            return Collections.emptyList();
+        }
+    };
+
 }
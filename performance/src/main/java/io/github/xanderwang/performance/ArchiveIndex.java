@@ -0,0 +1,292 @@
+package io.github.xanderwang.performance;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 压缩后的 log 文件的索引。
+ * <p>
+ * 记录每个压缩文件的名称、大小、创建时间和上传状态，按照加入的顺序保存，最旧的文件在最前面，同时维护总大小，
+ * 清理的时候直接从头部删除，不需要遍历目录和排序。索引以追加的方式写入文件，每次改动只追加一行，
+ * 无效的行太多的时候再整体重写一次。不是线程安全的，只在上传线程里面使用。
+ */
+class ArchiveIndex {
+
+    private static final String TAG = "ArchiveIndex";
+
+    private static final char OP_ADD = '+';
+
+    private static final char OP_REMOVE = '-';
+
+    private static final char OP_UPDATE = '~';
+
+    /**
+     * 索引里面的一个文件
+     */
+    static class Entry {
+        String name;
+        long size;
+        long createTime;
+        /**
+         * 上传失败的次数
+         */
+        int attempts;
+        /**
+         * 下一次可以重试的时间
+         */
+        long nextAttemptTime;
+    }
+
+    private final File indexFile;
+
+    /**
+     * 按照加入的顺序保存，最旧的在最前面
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    private long totalSize;
+
+    /**
+     * 索引文件里面的行数，用来判断什么时候需要重写
+     */
+    private int journalLines;
+
+    private Writer journal;
+
+    ArchiveIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * 读取索引文件
+     *
+     * @return false 表示索引文件不存在，需要调用方扫描一次目录重建
+     */
+    boolean load() {
+        entries.clear();
+        totalSize = 0;
+        journalLines = 0;
+        if (!indexFile.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            while (null != (line = reader.readLine())) {
+                journalLines++;
+                replay(line);
+            }
+        } catch (IOException e) {
+            aLog.e(TAG, "load", e);
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    aLog.e(TAG, "load close", e);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void replay(String line) {
+        String[] parts = line.split("\t");
+        if (parts.length < 2 || parts[0].length() != 1) {
+            return;
+        }
+        try {
+            switch (parts[0].charAt(0)) {
+                case OP_ADD:
+                    if (parts.length < 6) {
+                        return;
+                    }
+                    Entry entry = new Entry();
+                    entry.name = parts[1];
+                    entry.size = Long.parseLong(parts[2]);
+                    entry.createTime = Long.parseLong(parts[3]);
+                    entry.attempts = Integer.parseInt(parts[4]);
+                    entry.nextAttemptTime = Long.parseLong(parts[5]);
+                    putEntry(entry);
+                    break;
+                case OP_REMOVE:
+                    removeEntry(parts[1]);
+                    break;
+                case OP_UPDATE:
+                    Entry old = entries.get(parts[1]);
+                    if (null != old && parts.length >= 4) {
+                        old.attempts = Integer.parseInt(parts[2]);
+                        old.nextAttemptTime = Long.parseLong(parts[3]);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            aLog.w(TAG, "bad index line:%s", line);
+        }
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * 最旧的文件
+     *
+     * @return 没有文件的时候返回 null
+     */
+    Entry oldest() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * 按照从旧到新的顺序返回所有的文件，不能在遍历的时候修改
+     */
+    Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long totalSize() {
+        return totalSize;
+    }
+
+    /**
+     * 加入一个文件，同名的文件已经存在的时候更新大小，并且当作新的文件移到最后面
+     *
+     * @param entry 文件
+     */
+    void add(Entry entry) {
+        putEntry(entry);
+        append(new StringBuilder().append(OP_ADD).append('\t').append(entry.name).append('\t').append(entry.size)
+            .append('\t').append(entry.createTime).append('\t').append(entry.attempts).append('\t')
+            .append(entry.nextAttemptTime));
+    }
+
+    /**
+     * 删除一个文件的记录，不删除文件本身
+     *
+     * @param name 文件名
+     * @return 删除的记录，不存在的时候返回 null
+     */
+    Entry remove(String name) {
+        Entry entry = removeEntry(name);
+        if (null != entry) {
+            append(new StringBuilder().append(OP_REMOVE).append('\t').append(name));
+        }
+        return entry;
+    }
+
+    /**
+     * 记录上传状态的变化
+     *
+     * @param entry 文件
+     */
+    void update(Entry entry) {
+        append(new StringBuilder().append(OP_UPDATE).append('\t').append(entry.name).append('\t')
+            .append(entry.attempts).append('\t').append(entry.nextAttemptTime));
+    }
+
+    private void putEntry(Entry entry) {
+        removeEntry(entry.name);
+        entries.put(entry.name, entry);
+        totalSize += entry.size;
+    }
+
+    private Entry removeEntry(String name) {
+        Entry entry = entries.remove(name);
+        if (null != entry) {
+            totalSize -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * 追加一行，无效的行超过有效记录的两倍的时候整体重写
+     */
+    private void append(CharSequence line) {
+        if (journalLines > entries.size() * 2 + 16) {
+            compact();
+            return;
+        }
+        try {
+            if (null == journal) {
+                journal = new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8");
+            }
+            journal.write(line.toString());
+            journal.write('\n');
+            journal.flush();
+            journalLines++;
+        } catch (IOException e) {
+            aLog.e(TAG, "append", e);
+            closeJournal();
+        }
+    }
+
+    /**
+     * 只保留当前有效的记录重写索引文件，先写临时文件再重命名，避免写了一半的时候进程退出
+     */
+    void compact() {
+        closeJournal();
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            StringBuilder sb = new StringBuilder();
+            for (Entry entry : entries.values()) {
+                sb.setLength(0);
+                sb.append(OP_ADD).append('\t').append(entry.name).append('\t').append(entry.size).append('\t')
+                    .append(entry.createTime).append('\t').append(entry.attempts).append('\t')
+                    .append(entry.nextAttemptTime).append('\n');
+                writer.write(sb.toString());
+            }
+            writer.close();
+            writer = null;
+            if (tmpFile.renameTo(indexFile)) {
+                journalLines = entries.size();
+            } else {
+                aLog.e(TAG, "compact rename failed");
+            }
+        } catch (IOException e) {
+            aLog.e(TAG, "compact", e);
+        } finally {
+            if (null != writer) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    aLog.e(TAG, "compact close", e);
+                }
+            }
+        }
+    }
+
+    private void closeJournal() {
+        if (null == journal) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            aLog.e(TAG, "closeJournal", e);
+        }
+        journal = null;
+    }
+}
@@ -0,0 +1,215 @@
+package io.github.xanderwang.performance;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @author Xander Wang
+ * @Description 把 issue 格式化为紧凑的二进制记录。
+ * <p>
+ * 二进制的 log 文件在头部记录后面紧跟 {@link #MAGIC} ，然后是按 {@link LogSegment} 分帧的数据，
+ * 所有帧的数据拼起来是连续的记录，每条记录以 varint 类型的 tag 开头：
+ * <p>
+ * {@link #TAG_STRING} ：定义一个字符串，后面是 varint 长度和 UTF-8 内容，字符串按照定义的顺序从 0 开始编号，
+ * 只在当前文件里面有效。
+ * <p>
+ * {@link #TAG_TRACE} ：定义一个去重后的调用栈，后面是 varint 的调用栈编号、帧数量和每一帧的字符串编号，
+ * 只在当前文件里面第一次出现的时候定义，编号被新的调用栈重新使用的时候会再次定义，之后的引用指向新的定义。
+ * <p>
+ * {@link #TAG_ISSUE} ：一个 issue ，依次是 varint 的 type 、创建时间(ms)、耗时(ms)、msg 字符串编号，
+ * 字段数量以及每个字段的名称编号和值编号，调用栈数量以及每个调用栈的名称编号、调用栈编号和出现的次数，
+ * 调用栈编号为 0 表示没有去重，后面直接跟着帧数量和每一帧的字符串编号。
+ * <p>
+ * 所有的数字都是无符号的 varint ，引用的字符串和调用栈总是在引用之前定义，所以可以从头到尾流式解码。
+ * 相同的字符串在一个文件里面只保存一次，重复出现的调用栈只需要保存编号。
+ */
+class BinaryIssueFormatter extends IssueFormatter {
+
+    /**
+     * 二进制 log 文件的标识
+     */
+    static final byte[] MAGIC = {'P', 'E', 'R', 'F', 'B', 'I', 'N', '2'};
+
+    /**
+     * 旧版本没有分帧的二进制 log 文件的标识
+     */
+    static final byte[] LEGACY_MAGIC = {'P', 'E', 'R', 'F', 'B', 'I', 'N', '1'};
+
+    static final int TAG_STRING = 1;
+
+    static final int TAG_ISSUE = 2;
+
+    static final int TAG_TRACE = 3;
+
+    /**
+     * 当前文件的字符串表
+     */
+    private final HashMap<String, Integer> stringTable = new HashMap<>(1024);
+
+    /**
+     * 调用栈的帧对应的字符串编号，直接用 {@link StackTraceElement} 查找，不需要先拼接字符串
+     */
+    private final HashMap<StackTraceElement, Integer> frameTable = new HashMap<>(1024);
+
+    /**
+     * 最终输出，字符串定义在前，issue 记录在后
+     */
+    private final ByteArrayBuilder output = new ByteArrayBuilder(4096);
+
+    /**
+     * issue 记录的基本信息
+     */
+    private final ByteArrayBuilder head = new ByteArrayBuilder(64);
+
+    /**
+     * 字段，需要先知道数量才能写入
+     */
+    private final ByteArrayBuilder fields = new ByteArrayBuilder(256);
+
+    /**
+     * 调用栈，需要先知道数量才能写入
+     */
+    private final ByteArrayBuilder traces = new ByteArrayBuilder(1024);
+
+    /**
+     * 调用栈定义里面帧的编号
+     */
+    private final ByteArrayBuilder traceDefine = new ByteArrayBuilder(256);
+
+    /**
+     * 字符串编码的临时缓存
+     */
+    private final ByteArrayBuilder scratch = new ByteArrayBuilder(256);
+
+    /**
+     * 下一个字符串的编号，帧和其他字符串共用一个编号序列
+     */
+    private int nextStringIndex = 0;
+
+    private int fieldCount = 0;
+
+    private int traceCount = 0;
+
+    /**
+     * 切换到新文件的时候需要清空字符串表
+     */
+    @Override
+    void reset() {
+        super.reset();
+        stringTable.clear();
+        frameTable.clear();
+        nextStringIndex = 0;
+    }
+
+    /**
+     * 获取字符串的编号，第一次出现的字符串会先输出定义
+     *
+     * @param str 字符串
+     * @return 编号
+     */
+    private int stringIndex(String str) {
+        if (null == str) {
+            str = "null";
+        }
+        Integer index = stringTable.get(str);
+        if (null == index) {
+            index = nextStringIndex++;
+            stringTable.put(str, index);
+            scratch.reset();
+            scratch.writeUtf8(str);
+            writeString();
+        }
+        return index;
+    }
+
+    /**
+     * 获取一帧调用栈的字符串编号，第一次出现的帧直接从字段编码输出定义
+     *
+     * @param element 调用栈的一帧
+     * @return 编号
+     */
+    private int frameIndex(StackTraceElement element) {
+        Integer index = frameTable.get(element);
+        if (null == index) {
+            index = nextStringIndex++;
+            frameTable.put(element, index);
+            scratch.reset();
+            scratch.writeFrame(element);
+            writeString();
+        }
+        return index;
+    }
+
+    /**
+     * 输出 {@link #scratch} 里面的字符串定义
+     */
+    private void writeString() {
+        output.writeVarint(TAG_STRING).writeVarint(scratch.length()).write(scratch.array(), 0, scratch.length());
+    }
+
+    @Override
+    void begin(Issue issue) {
+        output.reset();
+        head.reset();
+        fields.reset();
+        traces.reset();
+        fieldCount = 0;
+        traceCount = 0;
+        head.writeVarint(TAG_ISSUE).writeVarint(issue.type).writeVarint(issue.createTimeMillis)
+            .writeVarint(Math.max(0, issue.costTime)).writeVarint(stringIndex(issue.msg));
+    }
+
+    @Override
+    public void field(String name, Object value) {
+        fields.writeVarint(stringIndex(name)).writeVarint(stringIndex(String.valueOf(value)));
+        fieldCount++;
+    }
+
+    @Override
+    public void field(String name, long value) {
+        field(name, String.valueOf(value));
+    }
+
+    @Override
+    public void trace(String name, List<?> frames) {
+        traces.writeVarint(stringIndex(name));
+        traceCount++;
+        if (frames instanceof StackTrace && ((StackTrace) frames).id > 0) {
+            StackTrace trace = (StackTrace) frames;
+            if (markWritten(trace)) {
+                // 帧的字符串定义也会写入 output ，所以先拿到全部编号，再写调用栈的定义
+                traceDefine.reset();
+                StackTraceElement[] elements = trace.elements;
+                for (int i = 0; i < elements.length; i++) {
+                    traceDefine.writeVarint(frameIndex(elements[i]));
+                }
+                output.writeVarint(TAG_TRACE).writeVarint(trace.id).writeVarint(elements.length)
+                    .write(traceDefine.array(), 0, traceDefine.length());
+            }
+            traces.writeVarint(trace.id).writeVarint(trace.getCount());
+            return;
+        }
+        int size = null == frames ? 0 : frames.size();
+        traces.writeVarint(0).writeVarint(0).writeVarint(size);
+        for (int i = 0; i < size; i++) {
+            traces.writeVarint(stringIndex(String.valueOf(frames.get(i))));
+        }
+    }
+
+    @Override
+    void end() {
+        output.write(head.array(), 0, head.length());
+        output.writeVarint(fieldCount).write(fields.array(), 0, fields.length());
+        output.writeVarint(traceCount).write(traces.array(), 0, traces.length());
+    }
+
+    @Override
+    byte[] array() {
+        return output.array();
+    }
+
+    @Override
+    int length() {
+        return output.length();
+    }
+}
@@ -88,14 +88,15 @@ public class BitmapTool {
 
         /**
          * 构建额外的信息
-         * @param sb 外部传入的 stringbuilder ，用于插入额外信息
+         * @param formatter 外部传入的 formatter ，用于输出额外信息
          */
         @Override
-        protected void formatExtraInfo(StringBuilder sb) {
+        protected void formatExtraInfo(IssueFormatter formatter) {
             if (viewWidth > 0) {
-                sb.append("image info:").append("viewWidth:").append(viewWidth).append(",viewHeight:")
-                    .append(viewHeight).append(",imageWidth:").append(imageWidth).append(",imageHeight:")
-                    .append(imageHeight).append('\n');
+                formatter.field("view width", viewWidth);
+                formatter.field("view height", viewHeight);
+                formatter.field("image width", imageWidth);
+                formatter.field("image height", imageHeight);
             }
         }
     }
@@ -263,6 +264,10 @@ public class BitmapTool {
         if ((bitmapWidth > viewWidth || bitmapHeight > viewHeight) && (viewWidth > 0 && viewHeight > 0)) {
             // 到这里就有问题了，然后需要看是通过框架库还是手动设置
             // 手动设置的话，需要提示，如果是框架库的话，需要找到框架库开始 load 的地方。
+            if (!IssueRateLimiter.tryAcquire(Issue.TYPE_BITMAP)) {
+                unlinkLoadImageAndImageView(viewKey);
+                return;
+            }
             List<String> traceList = StackTraceUtils.list(trace);
             boolean isInLibrary = false;
             for (String item : traceList) {
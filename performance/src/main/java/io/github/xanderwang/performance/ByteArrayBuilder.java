@@ -0,0 +1,139 @@
+package io.github.xanderwang.performance;
+
+import java.util.Arrays;
+
+/**
+ * @author Xander Wang
+ * @Description 可以重复使用的 byte 数组，用来拼接格式化后的 issue 数据，避免每次都创建新的数组。
+ */
+class ByteArrayBuilder {
+
+    private byte[] bytes;
+
+    private int length = 0;
+
+    ByteArrayBuilder(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, length + extra));
+        }
+    }
+
+    ByteArrayBuilder write(int b) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) b;
+        return this;
+    }
+
+    ByteArrayBuilder write(byte[] src, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(src, offset, bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * 写入无符号的 varint ，每个字节低 7 位为数据，最高位表示后面还有数据
+     *
+     * @param value 非负数
+     * @return this
+     */
+    ByteArrayBuilder writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * 按照 UTF-8 编码写入字符串
+     *
+     * @param str 字符串
+     * @return this
+     */
+    ByteArrayBuilder writeUtf8(CharSequence str) {
+        for (int i = 0, len = str.length(); i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                bytes[length++] = (byte) (0xC0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                ensureCapacity(4);
+                bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                write('?');
+            } else {
+                ensureCapacity(3);
+                bytes[length++] = (byte) (0xE0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 写入十进制的数字
+     *
+     * @param value 数字
+     * @return this
+     */
+    ByteArrayBuilder writeDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            return writeUtf8(String.valueOf(value));
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--, value /= 10) {
+            bytes[i] = (byte) ('0' + value % 10);
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * 写入一帧调用栈，格式和 {@link StackTraceElement} 的 className.methodName(fileName:lineNumber) 相同，
+     * 直接从字段编码，不需要先拼接字符串
+     *
+     * @param element 调用栈的一帧
+     * @return this
+     */
+    ByteArrayBuilder writeFrame(StackTraceElement element) {
+        writeUtf8(element.getClassName()).write('.').writeUtf8(element.getMethodName()).write('(');
+        String fileName = element.getFileName();
+        writeUtf8(null == fileName ? "null" : fileName).write(':').writeDecimal(element.getLineNumber());
+        return write(')');
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.xanderwang.performance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @author Xander Wang
+ * @Description 把多次采样的调用栈合并成一棵调用树，记录每一帧被采样到的次数。
+ * <p>
+ * 根节点是最外层的调用，叶子是采样时正在执行的方法，节点的 hits 包括子节点的次数，self 是停在这一帧的次数。
+ * 输出的时候每个节点一行，按照 hits 从多到少排序，只有一个子节点并且次数相同的调用链不再缩进，
+ * 长时间的 block 里面真正耗时的调用可以从 hits 直接看出来，不受最后一次采样的影响。不是线程安全的。
+ */
+class CallTree {
+
+    static class Node {
+
+        final StackTraceElement frame;
+
+        int hits;
+
+        int selfHits;
+
+        List<Node> children;
+
+        Node(StackTraceElement frame) {
+            this.frame = frame;
+        }
+
+        Node child(StackTraceElement frame) {
+            if (null == children) {
+                children = new ArrayList<>(2);
+            }
+            for (int i = 0, size = children.size(); i < size; i++) {
+                Node child = children.get(i);
+                if (child.frame.equals(frame)) {
+                    return child;
+                }
+            }
+            Node child = new Node(frame);
+            children.add(child);
+            return child;
+        }
+    }
+
+    private final Node root = new Node(null);
+
+    /**
+     * 停留次数最多的调用栈
+     */
+    private StackTraceElement[] hottestStack;
+
+    private int hottestHits;
+
+    int sampleCount() {
+        return root.hits;
+    }
+
+    /**
+     * 加入一次采样，忽略性能检测自身以及 hook 框架的帧
+     *
+     * @param stack 采样的调用栈，第一帧是正在执行的方法
+     */
+    void add(StackTraceElement[] stack) {
+        if (null == stack || stack.length == 0) {
+            return;
+        }
+        root.hits++;
+        Node node = root;
+        for (int i = stack.length - 1; i >= 0; i--) {
+            if (StackTraceUtils.isIgnoreClass(stack[i].getClassName())) {
+                continue;
+            }
+            node = node.child(stack[i]);
+            node.hits++;
+        }
+        node.selfHits++;
+        if (node.selfHits > hottestHits) {
+            hottestHits = node.selfHits;
+            hottestStack = stack;
+        }
+    }
+
+    /**
+     * 停留次数最多的调用栈
+     *
+     * @return 没有采样的时候返回 null
+     */
+    StackTraceElement[] hottestStack() {
+        return hottestStack;
+    }
+
+    /**
+     * 按行输出调用树，每行是缩进、hits 、self 和帧
+     *
+     * @param maxLines 最多输出的行数
+     * @return 调用树
+     */
+    List<String> lines(int maxLines) {
+        List<String> lines = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        if (null != root.children) {
+            sortChildren(root);
+            for (Node child : root.children) {
+                append(child, 0, lines, sb, maxLines);
+            }
+        }
+        return lines;
+    }
+
+    private void append(Node node, int depth, List<String> lines, StringBuilder sb, int maxLines) {
+        while (true) {
+            if (lines.size() >= maxLines) {
+                return;
+            }
+            sb.setLength(0);
+            for (int i = 0; i < depth; i++) {
+                sb.append("  ");
+            }
+            sb.append(node.hits);
+            if (node.selfHits > 0) {
+                sb.append(" (self ").append(node.selfHits).append(')');
+            }
+            sb.append(' ').append(StackTraceUtils.frameString(node.frame));
+            lines.add(sb.toString());
+            if (null == node.children) {
+                return;
+            }
+            if (node.children.size() == 1 && node.children.get(0).hits == node.hits) {
+                // 没有分叉的调用链不缩进，避免太深
+                node = node.children.get(0);
+                continue;
+            }
+            sortChildren(node);
+            for (Node child : node.children) {
+                append(child, depth + 1, lines, sb, maxLines);
+            }
+            return;
+        }
+    }
+
+    private static void sortChildren(Node node) {
+        Collections.sort(node.children, new Comparator<Node>() {
+            @Override
+            public int compare(Node nodeA, Node nodeB) {
+                return nodeB.hits - nodeA.hits;
+            }
+        });
+    }
+}
@@ -9,14 +9,74 @@ class Config {
      * 检测 ui 是否阻塞的阈值
      */
     public static long UI_BLOCK_TIME = 100L;
+    /**
+     * 主线程耗时分布的导出间隔，单位 ms ，0 表示不记录
+     */
+    public static long UI_LATENCY_INTERVAL = 60 * 1000L;
+    /**
+     * UI block 开始采样调用栈的阈值，单位 ms
+     */
+    public static long UI_SAMPLE_THRESHOLD = 50L;
+    /**
+     * UI block 采样调用栈的间隔，单位 ms ，0 表示不采样，只在超时的时候抓取一次
+     */
+    public static long UI_SAMPLE_INTERVAL = 0L;
+    /**
+     * 一个 UI block 最多采样的次数，达到之后直接输出
+     */
+    public static int UI_SAMPLE_MAX_COUNT = 200;
+    /**
+     * 输出的调用树最多的行数
+     */
+    public static int UI_SAMPLE_MAX_LINES = 200;
+    /**
+     * 主线程的消息耗时超过这个值的时候记录到慢消息统计里面，单位 ms
+     */
+    public static long UI_SLOW_MESSAGE_TIME = 16L;
+    /**
+     * 导出慢消息统计的时候最多输出的消息种类
+     */
+    public static int UI_SLOW_MESSAGE_TOP_COUNT = 20;
+    /**
+     * 主线程消息队列的采样间隔，单位 ms ，0 表示不采样，默认不采样
+     */
+    public static long LOOPER_SAMPLE_INTERVAL = 0L;
+    /**
+     * 一个采样周期内消息分发延迟的最大值超过这个值的时候输出 issue ，单位 ms
+     */
+    public static long LOOPER_DELAY_THRESHOLD = 300L;
+    /**
+     * 已经到期还没有分发的消息数量超过这个值的时候输出 issue ，最多只能数到 128 个
+     */
+    public static int LOOPER_BACKLOG_THRESHOLD = 50;
+    /**
+     * 内存里面保存的消息队列采样点的数量，写满一轮的时候导出一次
+     */
+    public static int LOOPER_SERIES_SIZE = 300;
     /**
      * FPS 检测的时间间隔
      */
     public static long FPS_INTERVAL_TIME = 1000L;
+    /**
+     * 两帧之间超过这个时间还没有下一帧的时候开始采样主线程的调用栈，单位 ms
+     */
+    public static long FPS_FRAME_BUDGET = 100L;
+    /**
+     * 慢帧采样调用栈的间隔，单位 ms ，0 表示不采样，默认不采样
+     */
+    public static long FPS_SAMPLE_INTERVAL = 0L;
+    /**
+     * 是否按照 Choreographer 的回调阶段统计帧的耗时
+     */
+    public static boolean FPS_TRACK_PHASES = true;
     /**
      * 线程后台执行任务的时间检测间隔，超时就打印出来
      */
     public static long THREAD_BLOCK_TIME = 1000L;
+    /**
+     * 线程池任务统计的导出间隔，单位 ms ，0 表示不统计
+     */
+    public static long THREAD_POOL_EXPORT_INTERVAL = 60 * 1000L;
     /**
      * IPC 通讯的耗时时间间隔
      */
@@ -25,4 +85,68 @@ class Config {
      * 是否过滤类名
      */
     public static boolean FILTER_CLASS_NAME = true;
+    /**
+     * 待写入 issue 的队列大小
+     */
+    public static int ISSUE_QUEUE_SIZE = 1024;
+    /**
+     * 待写入 issue 的队列满了之后的处理策略
+     */
+    public static int ISSUE_OVERFLOW_POLICY = PERF.OVERFLOW_DROP_OLDEST;
+    /**
+     * 单个 log 文件的大小
+     */
+    public static int LOG_SEGMENT_SIZE = 1024 * 1024;
+    /**
+     * 最多保留的已归档 log 文件数量
+     */
+    public static int LOG_SEGMENT_COUNT = 10;
+    /**
+     * log 文件的格式
+     */
+    public static int ISSUE_FORMAT = PERF.FORMAT_TEXT;
+    /**
+     * 最多缓存的调用栈数量，缓存满了之后出现新的调用栈时，淘汰一个最近没有出现的调用栈，它的编号给新的调用栈使用
+     */
+    public static int STACK_TRACE_CACHE_SIZE = 512;
+    /**
+     * 每种 issue 类型的采样率，下标为 issue 类型，1 表示全部保留
+     */
+    public static float[] ISSUE_SAMPLE_RATES = {1f, 1f, 1f, 1f, 1f, 1f};
+    /**
+     * 每种 issue 类型的令牌桶大小，也就是允许突发的 issue 数量
+     */
+    public static int[] ISSUE_RATE_BURSTS = {20, 20, 20, 50, 20, 5};
+    /**
+     * 每种 issue 类型每秒补充的令牌数量
+     */
+    public static float[] ISSUE_RATE_PERMITS = {2f, 2f, 5f, 10f, 5f, 0.1f};
+    /**
+     * 被限流的 issue 汇总输出的时间间隔
+     */
+    public static long ISSUE_SUMMARY_INTERVAL = 10 * 1000L;
+    /**
+     * 写满的 log 文件的压缩格式
+     */
+    public static int LOG_COMPRESS_CODEC = PERF.COMPRESS_ZIP;
+    /**
+     * 写满的 log 文件的压缩等级，0 - 9 ，-1 表示默认等级
+     */
+    public static int LOG_COMPRESS_LEVEL = -1;
+    /**
+     * 更新 log 文件头部记录的位置的最短间隔，单位 ms ，恢复的时候按帧扫描，不依赖头部记录
+     */
+    public static long LOG_POSITION_SYNC_INTERVAL = 1000L;
+    /**
+     * 待上传的文件总大小超过这个值的时候开始上传
+     */
+    public static long UPLOAD_TRIGGER_SIZE = 512 * 1024L;
+    /**
+     * 待上传的文件等待时间超过这个值的时候开始上传
+     */
+    public static long UPLOAD_TRIGGER_AGE = 5 * 60 * 1000L;
+    /**
+     * 每一批最多上传的文件数量
+     */
+    public static int UPLOAD_BATCH_COUNT = 5;
 }
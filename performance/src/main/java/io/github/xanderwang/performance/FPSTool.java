@@ -1,10 +1,15 @@
 package io.github.xanderwang.performance;
 
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.view.Choreographer;
 import android.view.Choreographer.FrameCallback;
+import android.view.WindowManager;
+
+import java.util.List;
+import java.util.Locale;
 
 import io.github.xanderwang.asu.aLog;
 
@@ -17,6 +22,12 @@ import io.github.xanderwang.asu.aLog;
  * 就是统计两次 run 方法之间 FrameCallback 的回调方法调用了多少次，也就是绘制
  * 了多少帧，通过两次 run 方法之间绘制的帧数就可以计算出来 app 的帧率。
  * <p>
+ * 另外记录相邻两次回调的 frameTimeNanos 的差值作为每一帧的时间，每个周期统计帧时间的分布、超过
+ * 16/32/700 ms 的帧数和按照屏幕刷新率计算的掉帧数量，有掉帧的周期通过 issue 输出。
+ * 设置了 {@link Config#FPS_SAMPLE_INTERVAL} 的时候，两帧之间超过 {@link Config#FPS_FRAME_BUDGET} 通过 {@link Watchdog}
+ * 采样主线程的调用栈，默认不采样。
+ * {@link FramePhaseTracker} 统计的每个回调阶段的耗时分布也跟着周期一起输出。
+ * <p>
  * 详细的原理可以参考 https://juejin.im/post/6890407553457963022
  */
 class FPSTool {
@@ -30,40 +41,326 @@ class FPSTool {
     static void start() {
         aLog.e(TAG, "start");
         handler = new Handler(Looper.getMainLooper());
+        updateFrameInterval();
+        SceneTracker.start();
+        if (Config.FPS_TRACK_PHASES) {
+            FramePhaseTracker.start();
+        }
+        if (Config.FPS_SAMPLE_INTERVAL > 0) {
+            frameProbe = new FrameProbe(Config.FPS_FRAME_BUDGET, Config.FPS_SAMPLE_INTERVAL);
+            Watchdog.register(frameProbe);
+        }
         handler.post(frameRunnable);
         Choreographer.getInstance().postFrameCallback(frameRunnable);
     }
 
 
+    /**
+     * 帧耗时的统计区间，单位 ms
+     */
+    static final long SLOW_FRAME_TIME = 16L;
+
+    static final long JANK_FRAME_TIME = 32L;
+
+    static final long FROZEN_FRAME_TIME = 700L;
+
+    /**
+     * 帧时间分布最大可以记录的值，大约 4 秒，单位 us ，更长的帧都是冻帧，只需要记录最大值
+     */
+    static final long FRAME_TIME_MAX = (1L << 22) - 1;
+
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 1000000000L / 60;
+
+    /**
+     * 慢帧 probe 的超时时间，慢帧在下一帧到来的时候输出，不使用超时回调，只是减少空闲时 watchdog 醒来的次数
+     */
+    private static final long FRAME_PROBE_TIMEOUT = 10 * 1000L;
+
+    /**
+     * 每一帧开始的时候重新计时，为 null 表示不采样慢帧
+     */
+    private static FrameProbe frameProbe;
+
+    /**
+     * 刷新间隔，根据屏幕的刷新率计算，只在主线程里面使用
+     */
+    private static long frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+
+    private static void updateFrameInterval() {
+        try {
+            WindowManager windowManager =
+                (WindowManager) AppHelper.appContext().getSystemService(Context.WINDOW_SERVICE);
+            float refreshRate = null == windowManager ? 0 : windowManager.getDefaultDisplay().getRefreshRate();
+            if (refreshRate >= 1) {
+                frameIntervalNanos = (long) (1000000000L / refreshRate);
+            }
+        } catch (Exception e) {
+            aLog.e(TAG, "updateFrameInterval", e);
+        }
+    }
+
+    /**
+     * 两次 doFrame 之间的时间就是一帧的时间，记录每一帧的时间，每个统计周期计算帧率、分布和掉帧数量
+     */
     private static class FrameRunnable implements Runnable, FrameCallback {
 
         long time = 0;
         int count = 0;
 
+        long lastFrameTimeNanos = 0;
+
+        /**
+         * 一帧的时间，单位 us
+         */
+        final LatencyHistogram frameTime = new LatencyHistogram("frame time", FRAME_TIME_MAX);
+
+        /**
+         * 每个周期重复使用的分布，输出 issue 的时候交给 issue ，下一个周期重新创建，没有掉帧的周期不会创建对象
+         */
+        LatencyHistogram.Snapshot frameSnapshot;
+
+        LatencyHistogram.Snapshot[] phaseSnapshots;
+
+        int slowCount = 0;
+        int jankCount = 0;
+        int frozenCount = 0;
+        long droppedCount = 0;
+
         @Override
         public void doFrame(long frameTimeNanos) {
+            if (null != frameProbe) {
+                frameProbe.exit();
+                frameProbe.enter();
+            }
             count++;
+            if (lastFrameTimeNanos > 0 && frameTimeNanos > lastFrameTimeNanos) {
+                recordFrame(frameTimeNanos, frameTimeNanos - lastFrameTimeNanos);
+            }
+            lastFrameTimeNanos = frameTimeNanos;
             Choreographer.getInstance().postFrameCallback(this);
         }
 
+        private void recordFrame(long frameTimeNanos, long frameNanos) {
+            frameTime.record(frameNanos / 1000L);
+            // 正常的一帧也有一个刷新间隔，加上半个刷新间隔的误差再和区间比较，没有错过 vsync 的帧不算慢帧
+            long costTime = (frameNanos - frameIntervalNanos / 2) / 1000000L;
+            if (costTime >= FROZEN_FRAME_TIME) {
+                frozenCount++;
+            }
+            if (costTime >= JANK_FRAME_TIME) {
+                jankCount++;
+            }
+            if (costTime >= SLOW_FRAME_TIME) {
+                slowCount++;
+            }
+            long dropped = (frameNanos + frameIntervalNanos / 2) / frameIntervalNanos - 1;
+            if (dropped > 0) {
+                droppedCount += dropped;
+            }
+            SceneTracker.onFrame(frameTimeNanos, frameNanos, costTime, dropped);
+        }
+
         @Override
         public void run() {
             long curTime = SystemClock.elapsedRealtime();
             if (time == 0) {
                 // 第一次开始监控，跳过
+                frameSnapshot = frameTime.snapshot(frameSnapshot);
+                phaseSnapshots = FramePhaseTracker.snapshot(phaseSnapshots);
             } else {
-                int fps = (int) (1000.f * count / (curTime - time) + 0.5f);
+                long windowTime = curTime - time;
+                int fps = (int) (1000.f * count / windowTime + 0.5f);
                 String fpsStr = String.format("APP FPS is: %-3sHz", fps);
                 if (fps <= 50) {
                     aLog.e(TAG, fpsStr);
                 } else {
                     aLog.w(TAG, fpsStr);
                 }
+                LatencyHistogram.Snapshot snapshot = frameTime.snapshot(frameSnapshot);
+                LatencyHistogram.Snapshot[] phases = FramePhaseTracker.snapshot(phaseSnapshots);
+                frameSnapshot = snapshot;
+                phaseSnapshots = phases;
+                // 没有掉帧的周期不输出 issue
+                if (droppedCount > 0 || slowCount > 0) {
+                    FrameIssue issue = new FrameIssue(fps, windowTime, snapshot);
+                    issue.refreshRate = 1000000000f / frameIntervalNanos;
+                    issue.slowCount = slowCount;
+                    issue.jankCount = jankCount;
+                    issue.frozenCount = frozenCount;
+                    issue.droppedCount = droppedCount;
+                    issue.phases = phases;
+                    issue.costTime = snapshot.maxValue / 1000L;
+                    issue.print();
+                    // issue 在 sink 的线程里面格式化，不能再修改
+                    frameSnapshot = null;
+                    phaseSnapshots = null;
+                }
             }
             count = 0;
+            slowCount = 0;
+            jankCount = 0;
+            frozenCount = 0;
+            droppedCount = 0;
             time = curTime;
+            // 刷新率可能会变化，每个周期重新读取一次
+            updateFrameInterval();
             handler.postDelayed(this, Config.FPS_INTERVAL_TIME);
         }
     }
 
+    /**
+     * 在共享的 watchdog 线程里面检测慢帧：每次 doFrame 重新计时，超过帧预算还没有下一帧的时候开始采样主线程的调用栈，
+     * 下一帧到来的时候输出调用树。主线程停在 nativePollOnce 说明主线程是空闲的，没有下一帧是因为没有 vsync ，
+     * 比如 app 在后台，这时候停止采样，没有有效采样的慢帧不输出。
+     */
+    private static class FrameProbe extends Watchdog.Probe {
+
+        /**
+         * 当前慢帧的调用树，只在 watchdog 线程里面使用
+         */
+        private CallTree callTree;
+
+        private boolean callTreeReported;
+
+        FrameProbe(long frameBudget, long sampleInterval) {
+            super("slow-frame", Math.max(frameBudget, FRAME_PROBE_TIMEOUT), frameBudget, sampleInterval);
+        }
+
+        @Override
+        void onSample(long elapsedTime) {
+            if (null == callTree) {
+                callTree = new CallTree();
+                callTreeReported = false;
+            }
+            StackTraceElement[] stack = Looper.getMainLooper().getThread().getStackTrace();
+            if (isIdle(stack)) {
+                stopSampling();
+                return;
+            }
+            callTree.add(stack);
+            if (callTree.sampleCount() >= Config.UI_SAMPLE_MAX_COUNT) {
+                callTreeReported = true;
+                stopSampling();
+                report(callTree, elapsedTime);
+            }
+        }
+
+        @Override
+        void onFinish(long costTime) {
+            CallTree tree = callTree;
+            callTree = null;
+            if (null != tree && !callTreeReported && tree.sampleCount() > 0) {
+                report(tree, costTime);
+            }
+        }
+
+        @Override
+        void onStuck(long costTime) {
+        }
+
+        private static boolean isIdle(StackTraceElement[] stack) {
+            return stack.length > 0 && "android.os.MessageQueue".equals(stack[0].getClassName())
+                && "nativePollOnce".equals(stack[0].getMethodName());
+        }
+
+        private void report(CallTree tree, long costTime) {
+            if (!IssueRateLimiter.tryAcquire(Issue.TYPE_FPS, costTime)) {
+                return;
+            }
+            StackTraceElement[] hottestStack = tree.hottestStack();
+            SlowFrameIssue issue = new SlowFrameIssue(null == hottestStack ? null : StackTraceUtils.list(hottestStack));
+            issue.callTree = tree.lines(Config.UI_SAMPLE_MAX_LINES);
+            issue.sampleCount = tree.sampleCount();
+            issue.costTime = costTime;
+            issue.print();
+        }
+    }
+
+    /**
+     * 慢帧，data 是停留次数最多的调用栈，耗时是两帧之间的时间，误差不超过一个采样间隔
+     */
+    static class SlowFrameIssue extends Issue {
+
+        List<String> callTree;
+
+        int sampleCount;
+
+        SlowFrameIssue(Object data) {
+            super(Issue.TYPE_FPS, "SLOW FRAME", data);
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("frame budget", Config.FPS_FRAME_BUDGET);
+            formatter.field("sample count", sampleCount);
+            formatter.field("sample interval", Config.FPS_SAMPLE_INTERVAL);
+            if (null != callTree) {
+                formatter.trace("call tree", callTree);
+            }
+        }
+    }
+
+    /**
+     * 一个统计周期内的帧率、帧时间分布和掉帧数量，帧时间单位 us
+     */
+    static class FrameIssue extends StatsIssue {
+
+        final int fps;
+
+        final long windowTime;
+
+        final LatencyHistogram.Snapshot snapshot;
+
+        float refreshRate;
+
+        int slowCount;
+
+        int jankCount;
+
+        int frozenCount;
+
+        long droppedCount;
+
+        /**
+         * 每个回调阶段的耗时分布，没有开启的时候为 null
+         */
+        LatencyHistogram.Snapshot[] phases;
+
+        FrameIssue(int fps, long windowTime, LatencyHistogram.Snapshot snapshot) {
+            super(Issue.TYPE_FPS, "FPS");
+            this.fps = fps;
+            this.windowTime = windowTime;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("fps", fps);
+            formatter.field("refresh rate", String.format(Locale.US, "%.1f", refreshRate));
+            formatter.field("window time", windowTime);
+            formatter.field("frame count", snapshot.count);
+            formatter.field("dropped frames", droppedCount);
+            formatter.field("frames over " + SLOW_FRAME_TIME + "ms", slowCount);
+            formatter.field("frames over " + JANK_FRAME_TIME + "ms", jankCount);
+            formatter.field("frozen frames", frozenCount);
+            formatter.field("p50(us)", snapshot.percentile(50));
+            formatter.field("p90(us)", snapshot.percentile(90));
+            formatter.field("p99(us)", snapshot.percentile(99));
+            formatter.field("max(us)", snapshot.maxValue);
+            if (null != phases) {
+                StringBuilder sb = new StringBuilder();
+                for (LatencyHistogram.Snapshot phase : phases) {
+                    if (null == phase || phase.count <= 0) {
+                        continue;
+                    }
+                    sb.setLength(0);
+                    sb.append("count:").append(phase.count).append(" mean:").append(phase.mean()).append(" p50:")
+                        .append(phase.percentile(50)).append(" p90:").append(phase.percentile(90)).append(" p99:")
+                        .append(phase.percentile(99)).append(" max:").append(phase.maxValue);
+                    formatter.field("phase " + phase.name + "(us)", sb.toString());
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,110 @@
+package io.github.xanderwang.performance;
+
+import android.annotation.SuppressLint;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.lang.reflect.Field;
+import java.util.Locale;
+
+import io.github.xanderwang.asu.aLog;
+import io.github.xanderwang.hook.HookBridge;
+import io.github.xanderwang.hook.core.MethodHook;
+import io.github.xanderwang.hook.core.MethodParam;
+
+/**
+ * @author Xander Wang
+ * @Description 按照 Choreographer 的回调阶段统计一帧的耗时。
+ * <p>
+ * 一帧里面 Choreographer 按照 input 、animation 、insets animation 、traversal 、commit 的顺序调用
+ * doCallbacks ，hook doCallbacks 记录主线程上每个阶段的耗时，每个阶段一个 {@link LatencyHistogram} ，
+ * 跟着 {@link FPSTool} 的周期一起导出。不同版本的阶段编号不一样，阶段的名字通过反射 CALLBACK_* 常量得到，
+ * 不同版本 doCallbacks 的参数也不一样，所以 hook 所有同名的方法，第一个参数都是阶段的编号。
+ */
+class FramePhaseTracker {
+
+    private static final String TAG = "FramePhaseTracker";
+
+    private static final String[] PHASE_FIELDS = {"CALLBACK_INPUT", "CALLBACK_ANIMATION", "CALLBACK_INSETS_ANIMATION",
+        "CALLBACK_TRAVERSAL", "CALLBACK_COMMIT"};
+
+    private static final int MAX_PHASE_COUNT = 8;
+
+    /**
+     * 阶段编号对应的耗时分布，单位 us ，没有对应阶段的为 null
+     */
+    private static final LatencyHistogram[] phases = new LatencyHistogram[MAX_PHASE_COUNT];
+
+    /**
+     * 正在执行的阶段的开始时间，只在主线程里面使用
+     */
+    private static final long[] startNanos = new long[MAX_PHASE_COUNT];
+
+    private static boolean started = false;
+
+    @SuppressLint("PrivateApi")
+    static void start() {
+        for (String name : PHASE_FIELDS) {
+            try {
+                Field field = Choreographer.class.getDeclaredField(name);
+                field.setAccessible(true);
+                int index = field.getInt(null);
+                if (index >= 0 && index < MAX_PHASE_COUNT) {
+                    phases[index] = new LatencyHistogram(name.substring("CALLBACK_".length()).toLowerCase(Locale.US),
+                        FPSTool.FRAME_TIME_MAX);
+                }
+            } catch (Exception e) {
+                // 低版本没有这个阶段
+                aLog.d(TAG, "no phase %s", name);
+            }
+        }
+        try {
+            HookBridge.findAllAndHookMethod(Choreographer.class, "doCallbacks", new DoCallbacksHook());
+            started = true;
+        } catch (Throwable t) {
+            aLog.e(TAG, "hook doCallbacks", t);
+        }
+    }
+
+    /**
+     * 取出和上一次之间每个阶段的耗时分布，只在 FPSTool 的周期里面调用
+     *
+     * @param reuse 上一次返回的数组，里面的 snapshot 会重复使用，为 null 的时候创建新的
+     * @return 每个阶段的分布，没有对应阶段的为 null ，没有开启的时候返回 null
+     */
+    static LatencyHistogram.Snapshot[] snapshot(LatencyHistogram.Snapshot[] reuse) {
+        if (!started) {
+            return null;
+        }
+        LatencyHistogram.Snapshot[] snapshots = null == reuse ? new LatencyHistogram.Snapshot[MAX_PHASE_COUNT] : reuse;
+        for (int i = 0; i < MAX_PHASE_COUNT; i++) {
+            if (null != phases[i]) {
+                snapshots[i] = phases[i].snapshot(snapshots[i]);
+            }
+        }
+        return snapshots;
+    }
+
+    private static class DoCallbacksHook extends MethodHook {
+        @Override
+        public void beforeHookedMethod(MethodParam param) throws Throwable {
+            int phase = (Integer) param.getArgs()[0];
+            if (phase >= 0 && phase < MAX_PHASE_COUNT && Looper.getMainLooper() == Looper.myLooper()) {
+                startNanos[phase] = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void afterHookedMethod(MethodParam param) throws Throwable {
+            int phase = (Integer) param.getArgs()[0];
+            if (phase < 0 || phase >= MAX_PHASE_COUNT || Looper.getMainLooper() != Looper.myLooper()) {
+                return;
+            }
+            LatencyHistogram histogram = phases[phase];
+            if (null != histogram && startNanos[phase] > 0) {
+                histogram.record((System.nanoTime() - startNanos[phase]) / 1000L);
+            }
+            startNanos[phase] = 0;
+        }
+    }
+}
@@ -31,8 +31,10 @@ class IPCTool {
         // aLog.d(TAG, "startTransact ipcInterface:%s", ipcInterface);
         // aLog.d(TAG, "startTransact methodToken:%s", methodToken);
         if (null == ipcInterface) {
-            Issue ipcIssue = new Issue(Issue.TYPE_IPC, "IPC", StackTraceUtils.list());
-            ipcIssue.print();
+            if (IssueRateLimiter.tryAcquire(Issue.TYPE_IPC)) {
+                Issue ipcIssue = new Issue(Issue.TYPE_IPC, "IPC", StackTraceUtils.list());
+                ipcIssue.print();
+            }
             return;
         }
         String ipcToken = String.format("%s_%s", ipcInterface, methodToken);
@@ -42,7 +44,7 @@ class IPCTool {
         issueHashMap.put(ipcToken, ipcIssue);
     }
 
-    private static void endTransact(Object ipcInterface, Object methodToken, StackTraceElement[] startTrace) {
+    private static void endTransact(Object ipcInterface, Object methodToken) {
         // aLog.d(TAG, "endTransact ipcInterface:%s", ipcInterface);
         // aLog.d(TAG, "endTransact methodToken:%s", methodToken);
         if (null == ipcInterface) {
@@ -53,8 +55,10 @@ class IPCTool {
         IPCIssue ipcIssue = issueHashMap.remove(ipcToken);
         if (null != ipcIssue) {
             ipcIssue.costTime = SystemClock.elapsedRealtime() - ipcIssue.startTime;
-            if (ipcIssue.costTime >= Config.IPC_BLOCK_TIME) {
-                ipcIssue.setData(StackTraceUtils.list(startTrace));
+            if (ipcIssue.costTime >= Config.IPC_BLOCK_TIME
+                && IssueRateLimiter.tryAcquire(Issue.TYPE_IPC, ipcIssue.costTime)) {
+                // 超时并且没有被限流才抓取调用栈
+                ipcIssue.setData(StackTraceUtils.list(Thread.currentThread().getStackTrace()));
                 ipcIssue.print();
             }
         } else {
@@ -62,8 +66,11 @@ class IPCTool {
         }
     }
 
-    private static void justCheckTransact(StackTraceElement[] startTrace) {
-        Issue ipcIssue = new Issue(Issue.TYPE_IPC, "IPC", StackTraceUtils.list(startTrace));
+    private static void justCheckTransact() {
+        if (!IssueRateLimiter.tryAcquire(Issue.TYPE_IPC)) {
+            return;
+        }
+        Issue ipcIssue = new Issue(Issue.TYPE_IPC, "IPC", StackTraceUtils.list(Thread.currentThread().getStackTrace()));
         ipcIssue.print();
     }
 
@@ -116,7 +123,7 @@ class IPCTool {
             if (null != binderInterfaceDescriptor) {
                 ipcInterface = binderInterfaceDescriptor.invoke(param.getThisObject());
             }
-            endTransact(ipcInterface, param.getArgs()[0], Thread.currentThread().getStackTrace());
+            endTransact(ipcInterface, param.getArgs()[0]);
         }
     }
 
@@ -124,7 +131,7 @@ class IPCTool {
         @Override
         public void beforeHookedMethod(MethodParam param) throws Throwable {
             // super.beforeHookedMethod(param);
-            justCheckTransact(Thread.currentThread().getStackTrace());
+            justCheckTransact();
         }
     }
 
@@ -133,7 +140,6 @@ class IPCTool {
         Object ipcInterface;
 
         long startTime = 0L;
-        long costTime = 0L;
 
         public IPCIssue(Object ipcInterface, String msg, Object data) {
             super(Issue.TYPE_IPC, msg, data);
@@ -141,12 +147,14 @@ class IPCTool {
         }
 
         @Override
-        protected void formatExtraInfo(StringBuilder sb) {
+        String key() {
+            return null != ipcInterface ? String.valueOf(ipcInterface) : super.key();
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
             if (null != ipcInterface) {
-                sb.append("ipc interface: ").append(ipcInterface).append('\n');
-            }
-            if (costTime > 0) {
-                sb.append("cost time: ").append(costTime).append(" ms\n");
+                formatter.field("ipc interface", ipcInterface);
             }
         }
     }
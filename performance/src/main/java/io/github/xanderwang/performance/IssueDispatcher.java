@@ -0,0 +1,86 @@
+package io.github.xanderwang.performance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 把 issue 分发给所有注册的 {@link PERF.IssueSink} 。
+ * <p>
+ * 每个 sink 都运行在自己的 {@link SinkLane} 里面，分发只是把 issue 放入各自的队列，不会执行 sink 的逻辑。
+ */
+class IssueDispatcher {
+
+    private static final String TAG = "IssueDispatcher";
+
+    /**
+     * 默认每一批最多处理的 issue 数量
+     */
+    static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * 注册的通道，注册的时候整体替换，分发的时候不需要加锁
+     */
+    private static volatile SinkLane[] lanes = new SinkLane[0];
+
+    /**
+     * 注册一个 sink ，并启动对应的通道
+     *
+     * @param name           sink 名称，用于线程名和统计
+     * @param sink           sink
+     * @param queueSize      队列大小
+     * @param overflowPolicy 队列满了之后的溢出策略
+     * @param batchSize      每一批最多处理的 issue 数量
+     */
+    static synchronized void register(String name, PERF.IssueSink sink, int queueSize, int overflowPolicy,
+        int batchSize) {
+        if (null == sink) {
+            return;
+        }
+        for (SinkLane lane : lanes) {
+            if (lane.getSinkName().equals(name)) {
+                aLog.w(TAG, "sink %s already registered", name);
+                return;
+            }
+        }
+        SinkLane lane = new SinkLane(name, sink, queueSize, overflowPolicy, batchSize);
+        SinkLane[] newLanes = new SinkLane[lanes.length + 1];
+        System.arraycopy(lanes, 0, newLanes, 0, lanes.length);
+        newLanes[lanes.length] = lane;
+        lane.start();
+        lanes = newLanes;
+        aLog.e(TAG, "register sink:%s, queue size:%s, overflow policy:%s, batch size:%s", name,
+            lane.getQueueCapacity(), overflowPolicy, batchSize);
+    }
+
+    /**
+     * 分发 issue
+     *
+     * @param issue issue
+     */
+    static void dispatch(Issue issue) {
+        if (null == issue) {
+            return;
+        }
+        SinkLane[] current = lanes;
+        for (int i = 0; i < current.length; i++) {
+            current[i].offer(issue);
+        }
+    }
+
+    /**
+     * 所有 sink 的统计信息
+     *
+     * @return 统计信息
+     */
+    static List<PERF.SinkStats> stats() {
+        SinkLane[] current = lanes;
+        List<PERF.SinkStats> list = new ArrayList<>(current.length);
+        for (SinkLane lane : current) {
+            list.add(lane);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.xanderwang.performance;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Xander Wang
+ * @Description issue 的格式化输出。
+ * <p>
+ * issue 按照 begin -> field/trace -> end 的顺序输出自己的信息，具体输出为文本还是二进制由实现类决定，
+ * 格式化的结果保存在实现类内部，可以重复使用，所以一个实例只能在一个线程里面使用。
+ * <p>
+ * 自定义的 issue 在 {@link Issue#formatExtraInfo(IssueFormatter)} 里面通过 field 和 trace 输出额外的信息，
+ * 实现类只在包内提供。
+ */
+public abstract class IssueFormatter {
+
+    /**
+     * 已经完整输出过的调用栈的帧，按照编号保存。同一个调用栈每次出现共享帧的数组，编号会重新使用，
+     * 所以比较的是帧的数组。编号不会超过调用栈缓存的大小太多，数组的大小也是有限的
+     */
+    private StackTraceElement[][] writtenTraces = new StackTraceElement[64][];
+
+    /**
+     * 兼容旧的 {@link Issue#formatExtraInfo(StringBuilder)} ，只在当前线程里面重复使用
+     */
+    final StringBuilder legacyExtraInfo = new StringBuilder();
+
+    /**
+     * 兼容旧的 {@link Issue#createTime} ，用到的时候才创建
+     */
+    private TimestampFormat legacyTimestampFormat;
+
+    IssueFormatter() {
+    }
+
+    /**
+     * 切换到新文件的时候调用，之后出现的调用栈会重新完整输出
+     */
+    void reset() {
+        Arrays.fill(writtenTraces, null);
+    }
+
+    /**
+     * 把时间格式化为旧的 {@link Issue#createTime} 的格式
+     *
+     * @param timeMillis 时间，单位 ms
+     * @return 格式化的时间
+     */
+    String formatLegacyTime(long timeMillis) {
+        if (null == legacyTimestampFormat) {
+            legacyTimestampFormat = new TimestampFormat();
+        }
+        return legacyTimestampFormat.format(timeMillis);
+    }
+
+    /**
+     * 调用栈是否是第一次输出，第一次输出需要完整的调用栈，之后只需要输出编号和次数
+     *
+     * @param trace 去重后的调用栈
+     * @return true 表示第一次输出
+     */
+    boolean markWritten(StackTrace trace) {
+        int id = trace.id;
+        if (id >= writtenTraces.length) {
+            writtenTraces = Arrays.copyOf(writtenTraces, Math.max(id + 1, writtenTraces.length << 1));
+        } else if (writtenTraces[id] == trace.elements) {
+            return false;
+        }
+        writtenTraces[id] = trace.elements;
+        return true;
+    }
+
+    /**
+     * 开始格式化一个 issue ，输出类型、消息、时间和耗时等基本信息
+     *
+     * @param issue 需要格式化的 issue
+     */
+    abstract void begin(Issue issue);
+
+    /**
+     * 输出一个字段
+     *
+     * @param name  字段名
+     * @param value 字段值
+     */
+    public abstract void field(String name, Object value);
+
+    /**
+     * 输出一个数字类型的字段
+     *
+     * @param name  字段名
+     * @param value 字段值
+     */
+    public abstract void field(String name, long value);
+
+    /**
+     * 输出一个调用栈，如果是 {@link StackTrace} 并且已经输出过，只输出编号和出现的次数
+     *
+     * @param name   调用栈的名称
+     * @param frames 调用栈
+     */
+    public abstract void trace(String name, List<?> frames);
+
+    /**
+     * 结束格式化
+     */
+    abstract void end();
+
+    /**
+     * 格式化的结果
+     *
+     * @return 保存结果的数组，有效长度为 {@link #length()}
+     */
+    abstract byte[] array();
+
+    /**
+     * 格式化结果的长度
+     *
+     * @return 有效长度
+     */
+    abstract int length();
+}
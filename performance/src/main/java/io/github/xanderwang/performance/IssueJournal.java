@@ -0,0 +1,100 @@
+package io.github.xanderwang.performance;
+
+import android.os.SystemClock;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 把 issue 写入 mmap 的 log 文件的 sink 。
+ * <p>
+ * 运行在自己的 {@link SinkLane} 里面，每个 issue 按照 {@link LogSegment} 的格式写成一帧，带有长度和校验值，
+ * 进程异常退出后可以扫描出所有完整的帧。因此头部记录的位置只在切换文件的时候，以及每隔
+ * {@link Config#LOG_POSITION_SYNC_INTERVAL} 在 {@link #flush()} 里面更新一次。
+ */
+class IssueJournal implements PERF.IssueSink {
+
+    private static final String TAG = "IssueJournal";
+
+    static final String NAME = "file";
+
+    /**
+     * 文本格式化，只在 sink 的线程里面使用
+     */
+    private final TextIssueFormatter textFormatter = new TextIssueFormatter();
+
+    /**
+     * 二进制格式化，只在 sink 的线程里面使用
+     */
+    private final BinaryIssueFormatter binaryFormatter = new BinaryIssueFormatter();
+
+    /**
+     * 格式化已经输出的调用栈和字符串表对应的文件，切换文件之后需要重新输出
+     */
+    private LogSegment formatSegment;
+
+    /**
+     * 当前这一批 issue 写入的文件
+     */
+    private LogSegment segment;
+
+    /**
+     * 上一次更新头部记录的时间
+     */
+    private long lastSyncTime;
+
+    /**
+     * 按照 log 文件的格式格式化 issue
+     *
+     * @param issue   issue
+     * @param segment log 文件
+     * @return 格式化的结果
+     */
+    private IssueFormatter format(Issue issue, LogSegment segment) {
+        IssueFormatter formatter = segment.format == PERF.FORMAT_BINARY ? binaryFormatter : textFormatter;
+        if (formatSegment != segment) {
+            // 字符串表和输出过的调用栈只在一个文件里面有效
+            textFormatter.reset();
+            binaryFormatter.reset();
+            formatSegment = segment;
+        }
+        issue.format(formatter);
+        return formatter;
+    }
+
+    @Override
+    public void write(Issue issue) {
+        if (null == segment) {
+            segment = SegmentedLog.activeSegment();
+            if (null == segment) {
+                return;
+            }
+        }
+        IssueFormatter formatter = format(issue, segment);
+        if (!segment.append(formatter.array(), formatter.length())) {
+            // 空间不够了，先记录当前文件的位置，再切换到备用文件
+            segment.writePosition();
+            segment = SegmentedLog.rollover();
+            if (null == segment) {
+                return;
+            }
+            formatter = format(issue, segment);
+            if (!segment.append(formatter.array(), formatter.length())) {
+                aLog.e(TAG, "issue too large to save, length:%s", formatter.length());
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (null != segment) {
+            long now = SystemClock.uptimeMillis();
+            if (now - lastSyncTime >= Config.LOG_POSITION_SYNC_INTERVAL) {
+                lastSyncTime = now;
+                segment.writePosition();
+                aLog.d(TAG, "flush buffer at:%s", segment.buffer.position());
+            }
+            segment = null;
+        }
+    }
+}
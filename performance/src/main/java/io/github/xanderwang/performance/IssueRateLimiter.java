@@ -0,0 +1,247 @@
+package io.github.xanderwang.performance;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 按照 issue 类型做采样和限流。
+ * <p>
+ * 每种类型先按照采样率随机采样，采样通过后再从令牌桶里面取令牌，令牌桶按照固定的速率补充，
+ * 允许短时间内的突发。各个检测工具在抓取调用栈之前先调用 {@link #tryAcquire(int, long)} ，
+ * 没有通过的事件不抓取调用栈，也不写入文件，只做计数，每隔一段时间汇总成一个 summary issue 输出。
+ */
+class IssueRateLimiter {
+
+    private static final String TAG = "IssueRateLimiter";
+
+    /**
+     * issue 类型的数量，见 {@link Issue#TYPE_UI_BLOCK} 到 {@link Issue#TYPE_LOOPER}
+     */
+    static final int TYPE_COUNT = 6;
+
+    private static final TypeLimiter[] limiters = new TypeLimiter[TYPE_COUNT];
+
+    private static volatile ScheduledExecutorService summaryService;
+
+    static {
+        init();
+    }
+
+    /**
+     * 按照 {@link Config} 里面的配置初始化
+     */
+    static synchronized void init() {
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            limiters[i] = new TypeLimiter(i, Config.ISSUE_SAMPLE_RATES[i], Config.ISSUE_RATE_BURSTS[i],
+                Config.ISSUE_RATE_PERMITS[i]);
+        }
+    }
+
+    /**
+     * 是否允许输出一个 issue
+     *
+     * @param type issue 类型
+     * @return true 表示允许
+     */
+    static boolean tryAcquire(int type) {
+        return tryAcquire(type, 0L);
+    }
+
+    /**
+     * 是否允许输出一个 issue ，不允许的时候记录到 summary 里面
+     *
+     * @param type     issue 类型
+     * @param costTime 耗时，单位 ms ，没有耗时信息传 0
+     * @return true 表示允许
+     */
+    static boolean tryAcquire(int type, long costTime) {
+        if (type < 0 || type >= TYPE_COUNT) {
+            return true;
+        }
+        TypeLimiter limiter = limiters[type];
+        if (limiter.tryAcquire(costTime)) {
+            return true;
+        }
+        ensureSummaryScheduled();
+        return false;
+    }
+
+    private static void ensureSummaryScheduled() {
+        if (null != summaryService) {
+            return;
+        }
+        synchronized (IssueRateLimiter.class) {
+            if (null != summaryService) {
+                return;
+            }
+            long interval = Math.max(1000L, Config.ISSUE_SUMMARY_INTERVAL);
+            ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "performance-issue-summary");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            service.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    printSummary();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+            summaryService = service;
+        }
+    }
+
+    /**
+     * 输出每种类型上一个周期里面被限流和采样丢弃的 issue 的汇总
+     */
+    static void printSummary() {
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            SummaryIssue issue = limiters[i].takeSummary();
+            if (null != issue) {
+                aLog.d(TAG, "printSummary type:%s, rate limited:%s, sampled out:%s", i, issue.rateLimitedCount,
+                    issue.sampledOutCount);
+                issue.print();
+            }
+        }
+    }
+
+    /**
+     * 一种类型的采样和令牌桶
+     */
+    static class TypeLimiter {
+
+        final int type;
+
+        final float sampleRate;
+
+        final int burst;
+
+        /**
+         * 每纳秒补充的令牌数量
+         */
+        final double permitsPerNano;
+
+        private double tokens;
+
+        private long lastRefillNanos;
+
+        final AtomicLong rateLimitedCount = new AtomicLong();
+
+        final AtomicLong sampledOutCount = new AtomicLong();
+
+        final AtomicLong totalCostTime = new AtomicLong();
+
+        final AtomicLong maxCostTime = new AtomicLong();
+
+        private volatile long windowStartMillis = System.currentTimeMillis();
+
+        TypeLimiter(int type, float sampleRate, int burst, float permitsPerSecond) {
+            this.type = type;
+            this.sampleRate = sampleRate;
+            this.burst = Math.max(1, burst);
+            this.permitsPerNano = Math.max(0f, permitsPerSecond) / 1e9;
+            tokens = this.burst;
+            lastRefillNanos = System.nanoTime();
+        }
+
+        boolean tryAcquire(long costTime) {
+            if (sampleRate < 1f && ThreadLocalRandom.current().nextFloat() >= sampleRate) {
+                sampledOutCount.incrementAndGet();
+                record(costTime);
+                return false;
+            }
+            if (!takeToken()) {
+                rateLimitedCount.incrementAndGet();
+                record(costTime);
+                return false;
+            }
+            return true;
+        }
+
+        private synchronized boolean takeToken() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * permitsPerNano);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        private void record(long costTime) {
+            if (costTime <= 0) {
+                return;
+            }
+            totalCostTime.addAndGet(costTime);
+            long max;
+            do {
+                max = maxCostTime.get();
+            } while (costTime > max && !maxCostTime.compareAndSet(max, costTime));
+        }
+
+        /**
+         * 取出当前周期的汇总，并开始新的周期
+         *
+         * @return 没有被丢弃的 issue 的时候返回 null
+         */
+        SummaryIssue takeSummary() {
+            long rateLimited = rateLimitedCount.getAndSet(0);
+            long sampledOut = sampledOutCount.getAndSet(0);
+            long totalCost = totalCostTime.getAndSet(0);
+            long maxCost = maxCostTime.getAndSet(0);
+            long windowStart = windowStartMillis;
+            windowStartMillis = System.currentTimeMillis();
+            if (rateLimited == 0 && sampledOut == 0) {
+                return null;
+            }
+            SummaryIssue issue = new SummaryIssue(type);
+            issue.rateLimitedCount = rateLimited;
+            issue.sampledOutCount = sampledOut;
+            issue.totalCostTime = totalCost;
+            issue.costTime = maxCost;
+            issue.windowTime = windowStartMillis - windowStart;
+            return issue;
+        }
+    }
+
+    /**
+     * 被限流和采样丢弃的 issue 的汇总，耗时为这些 issue 里面最大的耗时
+     */
+    static class SummaryIssue extends StatsIssue {
+
+        long rateLimitedCount;
+
+        long sampledOutCount;
+
+        long totalCostTime;
+
+        /**
+         * 汇总的时间范围，单位 ms
+         */
+        long windowTime;
+
+        public SummaryIssue(int type) {
+            super(type, formatType(type) + " SUMMARY");
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("window time", windowTime);
+            formatter.field("rate limited count", rateLimitedCount);
+            formatter.field("sampled out count", sampledOutCount);
+            if (totalCostTime > 0) {
+                formatter.field("total cost time", totalCostTime);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package io.github.xanderwang.performance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Xander Wang
+ * @Description 有界的多生产者环形队列，用来缓存待写入的 issue。
+ * <p>
+ * 每个槽位带一个序号，生产者通过 CAS 抢占写入位置，消费者通过序号判断槽位的数据是否已经写好，
+ * 整个过程不需要加锁。队列满了之后，按照设置的溢出策略处理，同时记录丢弃的数量。
+ */
+class IssueRingBuffer {
+
+    /**
+     * 阻塞策略下，生产者每次等待的时间
+     */
+    private static final long BLOCK_PARK_NANOS = 50 * 1000L;
+
+    private final int mask;
+
+    private final AtomicReferenceArray<Issue> items;
+
+    /**
+     * 槽位的序号，等于生产位置表示可以写入，等于生产位置 + 1 表示可以读取
+     */
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong producerIndex = new AtomicLong();
+
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    /**
+     * 丢弃最旧的 issue 的数量
+     */
+    private final AtomicLong droppedOldest = new AtomicLong();
+
+    /**
+     * 丢弃最新的 issue 的数量
+     */
+    private final AtomicLong droppedNewest = new AtomicLong();
+
+    IssueRingBuffer(int capacity) {
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        items = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 按照溢出策略放入 issue
+     *
+     * @param issue          待放入的 issue
+     * @param overflowPolicy 溢出策略，见 {@link PERF#OVERFLOW_DROP_OLDEST} 等
+     * @return true 表示放入成功
+     */
+    boolean put(Issue issue, int overflowPolicy) {
+        if (offer(issue)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case PERF.OVERFLOW_DROP_NEWEST:
+                droppedNewest.incrementAndGet();
+                return false;
+            case PERF.OVERFLOW_BLOCK:
+                do {
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                } while (!offer(issue));
+                return true;
+            case PERF.OVERFLOW_DROP_OLDEST:
+            default:
+                do {
+                    if (null != poll()) {
+                        droppedOldest.incrementAndGet();
+                    }
+                } while (!offer(issue));
+                return true;
+        }
+    }
+
+    /**
+     * 尝试放入 issue ，不阻塞
+     *
+     * @param issue 待放入的 issue
+     * @return false 表示队列已满
+     */
+    boolean offer(Issue issue) {
+        long position = producerIndex.get();
+        for (; ; ) {
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (producerIndex.compareAndSet(position, position + 1)) {
+                    items.set(index, issue);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            position = producerIndex.get();
+        }
+    }
+
+    /**
+     * 取出最旧的 issue
+     *
+     * @return 队列为空的时候返回 null
+     */
+    Issue poll() {
+        long position = consumerIndex.get();
+        for (; ; ) {
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (consumerIndex.compareAndSet(position, position + 1)) {
+                    Issue issue = items.get(index);
+                    items.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return issue;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+            position = consumerIndex.get();
+        }
+    }
+
+    /**
+     * 批量取出 issue
+     *
+     * @param out 保存取出的 issue
+     * @param max 最多取出的数量
+     * @return 实际取出的数量
+     */
+    int drain(Issue[] out, int max) {
+        int count = 0;
+        while (count < max) {
+            Issue issue = poll();
+            if (null == issue) {
+                break;
+            }
+            out[count++] = issue;
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return producerIndex.get() == consumerIndex.get();
+    }
+
+    int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    long droppedOldestCount() {
+        return droppedOldest.get();
+    }
+
+    long droppedNewestCount() {
+        return droppedNewest.get();
+    }
+
+    long droppedCount() {
+        return droppedOldest.get() + droppedNewest.get();
+    }
+}
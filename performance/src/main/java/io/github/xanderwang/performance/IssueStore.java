@@ -0,0 +1,360 @@
+package io.github.xanderwang.performance;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @author Xander Wang
+ * @Description 在内存里面按列保存最近的 issue ，支持按照时间窗口查询。
+ * <p>
+ * 和 {@link MemoryIssueSink} 不同，这里不保存 issue 对象，只保存类型、发生时间、耗时、聚合用的 key 和调用栈，
+ * 每一列是一个固定大小的数组，写满后覆盖最旧的数据。key 在 IPC issue 里面是接口名，其他 issue 是 msg ，
+ * 按照 key 统计耗时的分位数；调用栈是 {@link StackTraceUtils} 去重后的调用栈，按照调用栈统计次数和耗时。
+ * 写入在 sink 自己的线程里面，查询可以在任意线程，都需要加锁。数据按照分发的顺序保存，不一定按照发生时间排序，
+ * 比如 IPC issue 在调用开始的时候创建、结束的时候才分发，所以查询遍历全部保存的数据，按照发生时间过滤。
+ */
+class IssueStore implements PERF.IssueSink, PERF.IssueQuery {
+
+    static final String NAME = "store";
+
+    /**
+     * 最多保存的 key 的数量，超过之后新的 key 都归到 {@link #OTHER_KEY}
+     */
+    private static final int MAX_KEY_COUNT = 256;
+
+    private static final String OTHER_KEY = "other";
+
+    private static final IssueStore EMPTY = new IssueStore(1);
+
+    private static volatile IssueStore instance;
+
+    private final byte[] types;
+
+    /**
+     * 发生时的开机时间，单位 ms ，不受修改系统时间的影响
+     */
+    private final long[] times;
+
+    private final long[] costTimes;
+
+    private final short[] keys;
+
+    private final StackTrace[] traces;
+
+    private final HashMap<String, Integer> keyIndexes = new HashMap<>();
+
+    private final List<String> keyNames = new ArrayList<>();
+
+    /**
+     * 下一个写入的位置
+     */
+    private int next = 0;
+
+    /**
+     * 已经保存的数量
+     */
+    private int size = 0;
+
+    IssueStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        types = new byte[capacity];
+        times = new long[capacity];
+        costTimes = new long[capacity];
+        keys = new short[capacity];
+        traces = new StackTrace[capacity];
+    }
+
+    /**
+     * 注册为 sink ，之后通过 {@link #query()} 查询
+     *
+     * @param capacity 最多保存的 issue 数量
+     */
+    static void init(int capacity) {
+        IssueStore store = new IssueStore(capacity);
+        instance = store;
+        IssueDispatcher.register(NAME, store, Config.ISSUE_QUEUE_SIZE, PERF.OVERFLOW_DROP_OLDEST,
+            IssueDispatcher.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * 查询接口，没有开启的时候返回一个空的实现
+     *
+     * @return 查询接口
+     */
+    static PERF.IssueQuery query() {
+        IssueStore store = instance;
+        return null == store ? EMPTY : store;
+    }
+
+    @Override
+    public synchronized void write(Issue issue) {
+        if (issue instanceof StatsIssue) {
+            // 汇总的耗时是一段时间里面最大的，不参与分位数统计
+            return;
+        }
+        types[next] = (byte) issue.type;
+        times[next] = issue.createRealtimeNanos / 1000000L;
+        costTimes[next] = issue.costTime;
+        keys[next] = (short) keyIndex(issue.key());
+        traces[next] = issue.data instanceof StackTrace ? (StackTrace) issue.data : null;
+        next = (next + 1) % types.length;
+        if (size < types.length) {
+            size++;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    private int keyIndex(String key) {
+        if (null == key) {
+            key = "";
+        }
+        Integer index = keyIndexes.get(key);
+        if (null != index) {
+            return index;
+        }
+        if (keyNames.size() >= MAX_KEY_COUNT) {
+            return keyIndex(OTHER_KEY);
+        }
+        keyNames.add(key);
+        keyIndexes.put(key, keyNames.size() - 1);
+        return keyNames.size() - 1;
+    }
+
+    /**
+     * 按照写入的顺序从新到旧遍历时，第 i 个数据的位置
+     */
+    private int slot(int i) {
+        return (next - 1 - i + types.length) % types.length;
+    }
+
+    private boolean match(int slot, int issueType) {
+        return issueType < 0 || types[slot] == issueType;
+    }
+
+    @Override
+    public synchronized int count(int issueType, long windowMillis) {
+        long from = SystemClock.elapsedRealtime() - windowMillis;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int slot = slot(i);
+            if (times[slot] < from) {
+                continue;
+            }
+            if (match(slot, issueType)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public List<PERF.TraceStat> topTraces(int issueType, long windowMillis, int limit) {
+        // 同一个调用栈每次出现共享帧的数组，按照数组的实例分组
+        HashMap<StackTraceElement[], TraceEntry> entries = new HashMap<>();
+        synchronized (this) {
+            long from = SystemClock.elapsedRealtime() - windowMillis;
+            for (int i = 0; i < size; i++) {
+                int slot = slot(i);
+                if (times[slot] < from) {
+                    continue;
+                }
+                StackTrace trace = traces[slot];
+                if (null == trace || !match(slot, issueType)) {
+                    continue;
+                }
+                TraceEntry entry = entries.get(trace.elements);
+                if (null == entry) {
+                    entry = new TraceEntry(trace);
+                    entries.put(trace.elements, entry);
+                }
+                entry.count++;
+                entry.totalCostTime += costTimes[slot];
+                entry.maxCostTime = Math.max(entry.maxCostTime, costTimes[slot]);
+            }
+        }
+        List<PERF.TraceStat> result = new ArrayList<PERF.TraceStat>(entries.values());
+        // 按照总耗时排序，没有耗时信息的时候按照次数排序
+        Collections.sort(result, new Comparator<PERF.TraceStat>() {
+            @Override
+            public int compare(PERF.TraceStat statA, PERF.TraceStat statB) {
+                if (statA.getTotalCostTime() != statB.getTotalCostTime()) {
+                    return statA.getTotalCostTime() > statB.getTotalCostTime() ? -1 : 1;
+                }
+                return statB.getCount() - statA.getCount();
+            }
+        });
+        return limit >= 0 && result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    @Override
+    public List<PERF.CostStat> costStats(int issueType, long windowMillis) {
+        HashMap<Integer, CostEntry> entries = new HashMap<>();
+        synchronized (this) {
+            long from = SystemClock.elapsedRealtime() - windowMillis;
+            for (int i = 0; i < size; i++) {
+                int slot = slot(i);
+                if (times[slot] < from) {
+                    continue;
+                }
+                if (!match(slot, issueType)) {
+                    continue;
+                }
+                int key = keys[slot];
+                CostEntry entry = entries.get(key);
+                if (null == entry) {
+                    entry = new CostEntry(keyNames.get(key));
+                    entries.put(key, entry);
+                }
+                entry.add(costTimes[slot]);
+            }
+        }
+        List<PERF.CostStat> result = new ArrayList<>(entries.size());
+        for (CostEntry entry : entries.values()) {
+            entry.compute();
+            result.add(entry);
+        }
+        Collections.sort(result, new Comparator<PERF.CostStat>() {
+            @Override
+            public int compare(PERF.CostStat statA, PERF.CostStat statB) {
+                if (statA.getP95() != statB.getP95()) {
+                    return statA.getP95() > statB.getP95() ? -1 : 1;
+                }
+                return statB.getCount() - statA.getCount();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 一个调用栈在时间窗口内的统计
+     */
+    static class TraceEntry implements PERF.TraceStat {
+
+        final StackTrace trace;
+
+        int count;
+
+        long totalCostTime;
+
+        long maxCostTime;
+
+        TraceEntry(StackTrace trace) {
+            this.trace = trace;
+        }
+
+        @Override
+        public int getTraceId() {
+            return trace.id;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public long getTotalCostTime() {
+            return totalCostTime;
+        }
+
+        @Override
+        public long getMaxCostTime() {
+            return maxCostTime;
+        }
+
+        @Override
+        public List<String> getFrames() {
+            return trace;
+        }
+    }
+
+    /**
+     * 一个 key 在时间窗口内的耗时分位数
+     */
+    static class CostEntry implements PERF.CostStat {
+
+        final String key;
+
+        private long[] costTimes = new long[16];
+
+        private int count;
+
+        private long p50;
+
+        private long p95;
+
+        private long p99;
+
+        private long max;
+
+        CostEntry(String key) {
+            this.key = key;
+        }
+
+        void add(long costTime) {
+            if (count == costTimes.length) {
+                costTimes = Arrays.copyOf(costTimes, count * 2);
+            }
+            costTimes[count++] = costTime;
+        }
+
+        void compute() {
+            Arrays.sort(costTimes, 0, count);
+            p50 = percentile(50);
+            p95 = percentile(95);
+            p99 = percentile(99);
+            max = count > 0 ? costTimes[count - 1] : 0;
+            costTimes = null;
+        }
+
+        /**
+         * nearest-rank 分位数
+         */
+        private long percentile(int percent) {
+            if (count == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percent / 100.0 * count);
+            return costTimes[Math.max(0, Math.min(count, rank) - 1)];
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public long getP50() {
+            return p50;
+        }
+
+        @Override
+        public long getP95() {
+            return p95;
+        }
+
+        @Override
+        public long getP99() {
+            return p99;
+        }
+
+        @Override
+        public long getMaxCostTime() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package io.github.xanderwang.performance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Xander Wang
+ * @Description 无锁的 log-linear 耗时直方图，单位 us 。
+ * <p>
+ * 小于 {@link #SUB_BUCKET_COUNT} 的值每个值一个桶，更大的值按照最高位分段，每一段再平均分成
+ * {@link #SUB_BUCKET_COUNT} 个桶，相对误差不超过 1 / {@link #SUB_BUCKET_COUNT} 。记录一次只需要增加一个桶的计数和总耗时，
+ * 可以在主线程里面每个消息都记录。{@link #snapshot()} 返回和上一次 snapshot 之间的增量，不需要清空计数，
+ * 所以记录和导出之间不需要加锁，只能在一个线程里面调用 snapshot 。
+ * <p>
+ * 桶的数量由可以记录的最大值决定，取值范围小的数据可以指定更小的最大值，减少桶的数量；频繁导出的地方可以通过
+ * {@link #snapshot(Snapshot)} 重复使用同一个 {@link Snapshot} 。
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * 默认最大可以记录的值，大约 35 分钟，超过的按照最大值计入桶里面
+     */
+    static final long MAX_VALUE = (1L << 31) - 1;
+
+    final String name;
+
+    /**
+     * 最大可以记录的值，超过的按照这个值计入桶里面，{@link Snapshot#maxValue} 不受限制
+     */
+    final long highestValue;
+
+    private final int bucketCount;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong totalValue = new AtomicLong();
+
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * 上一次 snapshot 时的计数，只在导出的线程里面使用
+     */
+    private final long[] lastCounts;
+
+    private long lastTotalValue;
+
+    LatencyHistogram(String name) {
+        this(name, MAX_VALUE);
+    }
+
+    /**
+     * @param name         名字
+     * @param highestValue 最大可以记录的值，单位 us
+     */
+    LatencyHistogram(String name, long highestValue) {
+        this.name = name;
+        this.highestValue = Math.max(SUB_BUCKET_COUNT, Math.min(highestValue, MAX_VALUE));
+        this.bucketCount = bucketIndex(this.highestValue) + 1;
+        this.counts = new AtomicLongArray(bucketCount);
+        this.lastCounts = new long[bucketCount];
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subIndex = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + (shift << SUB_BUCKET_BITS) + subIndex;
+    }
+
+    /**
+     * 桶里面最小的值
+     */
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) >>> SUB_BUCKET_BITS;
+        int subIndex = (index - SUB_BUCKET_COUNT) & (SUB_BUCKET_COUNT - 1);
+        return (long) (SUB_BUCKET_COUNT + subIndex) << shift;
+    }
+
+    /**
+     * 桶里面最大的值，最后一个桶的上界为 highestValue
+     */
+    static long bucketUpperBound(int index, int bucketCount, long highestValue) {
+        return index + 1 < bucketCount ? bucketLowerBound(index + 1) - 1 : highestValue;
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param value 耗时，单位 us
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketIndex(Math.min(value, highestValue)));
+        totalValue.addAndGet(value);
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * 取出和上一次 snapshot 之间的增量
+     *
+     * @return 增量的直方图
+     */
+    Snapshot snapshot() {
+        return snapshot(null);
+    }
+
+    /**
+     * 取出和上一次 snapshot 之间的增量，写入可以重复使用的 snapshot
+     *
+     * @param reuse 上一次返回的 snapshot ，为 null 或者不是这个直方图的 snapshot 的时候创建新的
+     * @return 增量的直方图
+     */
+    Snapshot snapshot(Snapshot reuse) {
+        Snapshot snapshot = null != reuse && reuse.counts.length == bucketCount && name.equals(reuse.name) ? reuse
+            : new Snapshot(name, bucketCount, highestValue);
+        snapshot.count = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            long count = counts.get(i);
+            long delta = count - lastCounts[i];
+            lastCounts[i] = count;
+            snapshot.counts[i] = delta;
+            snapshot.count += delta;
+        }
+        long total = totalValue.get();
+        snapshot.totalValue = total - lastTotalValue;
+        lastTotalValue = total;
+        snapshot.maxValue = maxValue.getAndSet(0);
+        return snapshot;
+    }
+
+    /**
+     * 一段时间内的直方图
+     */
+    static class Snapshot {
+
+        final String name;
+
+        final long[] counts;
+
+        final long highestValue;
+
+        long count;
+
+        long totalValue;
+
+        /**
+         * 这段时间内的最大值，和计数不是原子的读取，可能包含 snapshot 过程中新记录的值
+         */
+        long maxValue;
+
+        Snapshot(String name, int bucketCount, long highestValue) {
+            this.name = name;
+            this.counts = new long[bucketCount];
+            this.highestValue = highestValue;
+        }
+
+        /**
+         * 分位数，返回所在桶的上界，不超过最大值
+         *
+         * @param percent 百分比，比如 99.9
+         * @return 耗时，单位 us ，没有数据返回 0
+         */
+        long percentile(double percent) {
+            if (count <= 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long upperBound = bucketUpperBound(i, counts.length, highestValue);
+                    return maxValue > 0 ? Math.min(upperBound, maxValue) : upperBound;
+                }
+            }
+            return maxValue;
+        }
+
+        long mean() {
+            return count > 0 ? totalValue / count : 0;
+        }
+    }
+}
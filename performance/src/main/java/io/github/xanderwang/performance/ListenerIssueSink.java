@@ -0,0 +1,25 @@
+package io.github.xanderwang.performance;
+
+/**
+ * @author Xander Wang
+ * @Description 把 issue 回调给 {@link PERF.IssueListener} 的 sink ，回调运行在 sink 自己的线程里面。
+ */
+class ListenerIssueSink implements PERF.IssueSink {
+
+    static final String NAME = "listener";
+
+    private final PERF.IssueListener listener;
+
+    ListenerIssueSink(PERF.IssueListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(Issue issue) {
+        listener.onIssue(issue);
+    }
+
+    @Override
+    public void flush() {
+    }
+}
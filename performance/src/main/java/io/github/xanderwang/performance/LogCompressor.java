@@ -0,0 +1,141 @@
+package io.github.xanderwang.performance;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @author Xander Wang
+ * @Description 压缩写满的 log 文件。
+ * <p>
+ * 直接从 log 文件的 mmap buffer 读取数据，只读取到头部记录的位置，没有写入数据的部分不做压缩。
+ * 支持 zip 、gzip 和只打包不压缩的 zip 三种格式，只在压缩线程里面使用。
+ */
+class LogCompressor {
+
+    /**
+     * 从 mmap buffer 复制数据的缓存，只在压缩线程里面使用
+     */
+    private static final byte[] chunk = new byte[64 * 1024];
+
+    /**
+     * 压缩后的文件后缀
+     *
+     * @param codec 压缩格式
+     * @return 文件后缀
+     */
+    static String extension(int codec) {
+        return codec == PERF.COMPRESS_GZIP ? ".gz" : ".zip";
+    }
+
+    /**
+     * 是否是压缩后的文件
+     *
+     * @param fileName 文件名
+     * @return true 表示是压缩后的文件
+     */
+    static boolean isArchive(String fileName) {
+        return fileName.endsWith(".zip") || fileName.endsWith(".gz");
+    }
+
+    /**
+     * 压缩 log 文件，压缩失败的时候会删除不完整的压缩文件
+     *
+     * @param segment log 文件
+     * @param codec   压缩格式，见 {@link PERF#COMPRESS_ZIP} 等
+     * @param level   压缩等级，见 {@link Deflater}
+     * @return 压缩后的文件
+     * @throws IOException
+     */
+    static File compress(LogSegment segment, int codec, int level) throws IOException {
+        File logFile = segment.file;
+        String name = logFile.getName();
+        String baseName = name.endsWith(".log") ? name.substring(0, name.length() - 4) : name;
+        File archiveFile = new File(logFile.getParentFile(), baseName + extension(codec));
+        if (archiveFile.exists()) {
+            // 如果压缩文件和 log 文件都存在，说明上一次压缩异常了，重新压缩一遍
+            archiveFile.delete();
+        }
+        ByteBuffer data = segment.buffer.duplicate();
+        data.position(0);
+        data.limit(segment.validLength());
+        OutputStream output = null;
+        boolean success = false;
+        try {
+            FileOutputStream fileOutput = new FileOutputStream(archiveFile);
+            output = fileOutput;
+            if (codec == PERF.COMPRESS_GZIP) {
+                output = new LevelGZIPOutputStream(new BufferedOutputStream(fileOutput, chunk.length), level);
+                copy(data, output);
+            } else {
+                ZipOutputStream zipOutput = new ZipOutputStream(new BufferedOutputStream(fileOutput, chunk.length));
+                output = zipOutput;
+                ZipEntry zipEntry = new ZipEntry(name);
+                if (codec == PERF.COMPRESS_STORE) {
+                    // 不压缩的 entry 需要提前知道大小和 crc
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(data.remaining());
+                    zipEntry.setCompressedSize(data.remaining());
+                    zipEntry.setCrc(crc(data.duplicate()));
+                } else {
+                    zipOutput.setLevel(level);
+                }
+                zipOutput.putNextEntry(zipEntry);
+                copy(data, zipOutput);
+                zipOutput.closeEntry();
+            }
+            output.close();
+            output = null;
+            success = true;
+        } finally {
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // 已经在处理异常了
+                }
+            }
+            if (!success) {
+                archiveFile.delete();
+            }
+        }
+        return archiveFile;
+    }
+
+    private static void copy(ByteBuffer data, OutputStream output) throws IOException {
+        while (data.hasRemaining()) {
+            int length = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, length);
+            output.write(chunk, 0, length);
+        }
+    }
+
+    private static long crc(ByteBuffer data) {
+        CRC32 crc32 = new CRC32();
+        while (data.hasRemaining()) {
+            int length = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, length);
+            crc32.update(chunk, 0, length);
+        }
+        return crc32.getValue();
+    }
+
+    /**
+     * 可以设置压缩等级的 GZIPOutputStream
+     */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, chunk.length);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package io.github.xanderwang.performance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 一个 log 文件以及对应的 mmap buffer。
+ * <p>
+ * 文件的开头固定为 {@link #HEADER_LENGTH} 个字节，记录文件最后有效字节的位置，后面是文件格式的标识，
+ * 文本格式为 {@link #TEXT_MAGIC} ，二进制格式为 {@link BinaryIssueFormatter#MAGIC} ，然后是 issue 的数据。
+ * <p>
+ * 每个 issue 写成一帧：4 个字节的数据长度、4 个字节的 CRC32 校验值，然后是格式化后的数据，都是大端序。
+ * 进程在写入的过程中退出的时候，最后一帧的长度或者校验值对不上，恢复的时候从头扫描一遍，停在最后一个
+ * 完整的帧后面，所以头部记录的位置只是一个提示，不需要每次写入都更新。
+ * <p>
+ * 旧版本的文件没有文件格式标识或者使用 {@link BinaryIssueFormatter#LEGACY_MAGIC} ，没有分帧，
+ * 只能按照头部记录的位置读取，不会继续写入。
+ */
+class LogSegment {
+
+    private static final String TAG = "LogSegment";
+
+    /**
+     * 头部记录的长度，保证可以记录 {@link #MAX_SEGMENT_SIZE} 以内的位置
+     */
+    static final int HEADER_LENGTH = 7;
+
+    /**
+     * 单个 log 文件最小的大小
+     */
+    static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * 单个 log 文件最大的大小，受头部记录的长度限制
+     */
+    static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * 分帧的文本格式文件的标识
+     */
+    static final byte[] TEXT_MAGIC = {'P', 'E', 'R', 'F', 'T', 'X', 'T', '2'};
+
+    /**
+     * 文件格式标识的长度
+     */
+    static final int MAGIC_LENGTH = 8;
+
+    /**
+     * 帧头的长度，数据长度和 CRC32 各 4 个字节
+     */
+    static final int FRAME_HEADER_LENGTH = 8;
+
+    /**
+     * 文件版本，旧版本的文件没有分帧
+     */
+    private static final int VERSION_LEGACY_TEXT = 0;
+
+    private static final int VERSION_LEGACY_BINARY = 1;
+
+    private static final int VERSION_TEXT = 2;
+
+    private static final int VERSION_BINARY = 3;
+
+    /**
+     * log 文件
+     */
+    final File file;
+
+    /**
+     * log 文件对应的 mmap buffer
+     */
+    final MappedByteBuffer buffer;
+
+    /**
+     * 文件格式，见 {@link PERF#FORMAT_TEXT} 和 {@link PERF#FORMAT_BINARY}
+     */
+    final int format;
+
+    /**
+     * 是否按帧写入，旧版本的文件为 false
+     */
+    final boolean framed;
+
+    /**
+     * issue 数据开始的位置
+     */
+    final int dataStart;
+
+    private RandomAccessFile randomAccessFile;
+
+    /**
+     * 头部记录的缓存，避免每次更新位置都创建新的数组
+     */
+    private final byte[] headerBytes = new byte[HEADER_LENGTH];
+
+    /**
+     * 计算帧的校验值，只在写线程里面使用
+     */
+    private final CRC32 crc32 = new CRC32();
+
+    private LogSegment(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer, int version) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.buffer = buffer;
+        this.format = version == VERSION_BINARY || version == VERSION_LEGACY_BINARY ? PERF.FORMAT_BINARY
+            : PERF.FORMAT_TEXT;
+        this.framed = version == VERSION_TEXT || version == VERSION_BINARY;
+        this.dataStart = version == VERSION_LEGACY_TEXT ? HEADER_LENGTH : HEADER_LENGTH + MAGIC_LENGTH;
+    }
+
+    /**
+     * 根据头部记录后面的标识判断文件的版本
+     *
+     * @param header 头部记录以及后面的标识
+     * @return 文件版本
+     */
+    private static int version(byte[] header) {
+        if (null == header || header.length < HEADER_LENGTH + MAGIC_LENGTH) {
+            return VERSION_LEGACY_TEXT;
+        }
+        if (matchMagic(header, TEXT_MAGIC)) {
+            return VERSION_TEXT;
+        }
+        if (matchMagic(header, BinaryIssueFormatter.MAGIC)) {
+            return VERSION_BINARY;
+        }
+        if (matchMagic(header, BinaryIssueFormatter.LEGACY_MAGIC)) {
+            return VERSION_LEGACY_BINARY;
+        }
+        return VERSION_LEGACY_TEXT;
+    }
+
+    private static boolean matchMagic(byte[] header, byte[] magic) {
+        for (int i = 0; i < MAGIC_LENGTH; i++) {
+            if (header[HEADER_LENGTH + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 创建一个新的 log 文件，并映射到内存
+     *
+     * @param file   log 文件
+     * @param size   文件大小
+     * @param format 文件格式
+     * @return log 文件
+     * @throws IOException
+     */
+    static LogSegment create(File file, int size, int format) throws IOException {
+        if (file.exists()) {
+            file.delete();
+        }
+        file.createNewFile();
+        LogSegment segment = map(file, size, format == PERF.FORMAT_BINARY ? VERSION_BINARY : VERSION_TEXT);
+        segment.buffer.position(HEADER_LENGTH);
+        segment.buffer.put(format == PERF.FORMAT_BINARY ? BinaryIssueFormatter.MAGIC : TEXT_MAGIC);
+        segment.writePosition();
+        return segment;
+    }
+
+    /**
+     * 打开一个已经存在的 log 文件，分帧的文件扫描一遍定位到最后一个完整的帧后面，旧版本的文件按照头部记录定位
+     *
+     * @param file log 文件
+     * @param size 文件大小
+     * @return log 文件
+     * @throws IOException
+     */
+    static LogSegment open(File file, int size) throws IOException {
+        LogSegment segment = map(file, (int) Math.max(size, Math.min(file.length(), MAX_SEGMENT_SIZE)),
+            version(readHeader(file)));
+        segment.buffer.position(segment.validLength());
+        if (segment.framed && segment.buffer.remaining() >= FRAME_HEADER_LENGTH) {
+            // 清掉最后一个不完整的帧的长度，避免下一次扫描的时候把残留的数据当成帧
+            segment.buffer.putInt(segment.buffer.position(), 0);
+        }
+        segment.writePosition();
+        return segment;
+    }
+
+    /**
+     * 以只读的方式打开一个已经存在的 log 文件，用于归档，不会修改文件的大小和内容
+     *
+     * @param file log 文件
+     * @return log 文件
+     * @throws IOException
+     */
+    static LogSegment openReadOnly(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file.getAbsolutePath(), "r");
+        try {
+            MappedByteBuffer buffer = randomAccessFile.getChannel()
+                .map(FileChannel.MapMode.READ_ONLY, 0, Math.min(file.length(), MAX_SEGMENT_SIZE));
+            return new LogSegment(file, randomAccessFile, buffer, version(readHeader(file)));
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private static LogSegment map(File file, int size, int version) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file.getAbsolutePath(), "rw");
+        try {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new LogSegment(file, randomAccessFile, buffer, version);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 读取 log 文件的格式，不做内存映射
+     *
+     * @param file log 文件
+     * @return 文件格式
+     */
+    static int readFormat(File file) {
+        int version = version(readHeader(file));
+        return version == VERSION_BINARY || version == VERSION_LEGACY_BINARY ? PERF.FORMAT_BINARY
+            : PERF.FORMAT_TEXT;
+    }
+
+    /**
+     * 是否是可以继续写入的分帧的 log 文件，不做内存映射
+     *
+     * @param file log 文件
+     * @return true 表示是分帧的文件
+     */
+    static boolean isFramed(File file) {
+        int version = version(readHeader(file));
+        return version == VERSION_TEXT || version == VERSION_BINARY;
+    }
+
+    /**
+     * log 文件里面是否有 issue 数据，不做内存映射。分帧的文件头部记录可能还没有更新，
+     * 所以同时检查第一帧的长度
+     *
+     * @param file log 文件
+     * @return true 表示有数据
+     */
+    static boolean hasData(File file) {
+        byte[] header = readHeader(file);
+        if (null == header) {
+            return false;
+        }
+        int version = version(header);
+        if (version == VERSION_TEXT || version == VERSION_BINARY) {
+            int offset = HEADER_LENGTH + MAGIC_LENGTH;
+            int firstLength = (header[offset] & 0xFF) << 24 | (header[offset + 1] & 0xFF) << 16
+                | (header[offset + 2] & 0xFF) << 8 | (header[offset + 3] & 0xFF);
+            return firstLength > 0;
+        }
+        return parsePosition(header) > (version == VERSION_LEGACY_TEXT ? HEADER_LENGTH : HEADER_LENGTH + MAGIC_LENGTH);
+    }
+
+    /**
+     * 读取头部记录、格式标识以及第一帧的帧头
+     *
+     * @param file log 文件
+     * @return 读取失败返回 null
+     */
+    private static byte[] readHeader(File file) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file.getAbsolutePath(), "r");
+            byte[] header = new byte[HEADER_LENGTH + MAGIC_LENGTH + FRAME_HEADER_LENGTH];
+            randomAccessFile.readFully(header);
+            return header;
+        } catch (IOException e) {
+            aLog.e(TAG, "readHeader", e);
+            return null;
+        } finally {
+            if (null != randomAccessFile) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                    aLog.e(TAG, "readHeader close", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 解析头部记录，只读取开头的数字，旧版本新建文件时记录的位置为 0 ，按照没有数据处理
+     *
+     * @param header 头部记录
+     * @return 头部记录的位置
+     */
+    private static int parsePosition(byte[] header) {
+        int position = 0;
+        for (int i = 0; i < header.length; i++) {
+            byte b = header[i];
+            if (b < '0' || b > '9') {
+                break;
+            }
+            position = position * 10 + (b - '0');
+        }
+        return position;
+    }
+
+    /**
+     * 更新头部记录的位置，直接写入数字，不需要每次都格式化字符串
+     */
+    void writePosition() {
+        int dataPosition = buffer.position();
+        int digits = 1;
+        for (int value = dataPosition; value >= 10; value /= 10) {
+            digits++;
+        }
+        for (int i = HEADER_LENGTH - 1; i >= digits; i--) {
+            headerBytes[i] = ' ';
+        }
+        for (int i = digits - 1, value = dataPosition; i >= 0; i--, value /= 10) {
+            headerBytes[i] = (byte) ('0' + value % 10);
+        }
+        buffer.position(0);
+        buffer.put(headerBytes);
+        buffer.position(dataPosition);
+    }
+
+    /**
+     * 写入一帧数据，空间不够的时候不写入
+     *
+     * @param data   格式化后的数据
+     * @param length 数据长度
+     * @return false 表示空间不够
+     */
+    boolean append(byte[] data, int length) {
+        if (buffer.remaining() < FRAME_HEADER_LENGTH + length) {
+            return false;
+        }
+        crc32.reset();
+        crc32.update(data, 0, length);
+        // 先写数据和校验值，最后写长度，长度写入之前这一帧在扫描的时候是不存在的
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putInt((int) crc32.getValue());
+        buffer.put(data, 0, length);
+        int end = buffer.position();
+        if (buffer.remaining() >= 4) {
+            // 下一帧的长度清零，覆盖文件里面可能残留的旧数据
+            buffer.putInt(end, 0);
+        }
+        buffer.putInt(start, length);
+        return true;
+    }
+
+    /**
+     * 有效数据的长度，包括头部记录，不依赖 buffer 当前的位置，可以在其他线程里面调用。
+     * 分帧的文件从头扫描一遍，找到最后一个完整的帧，旧版本的文件按照头部记录计算
+     *
+     * @return 有效数据长度
+     */
+    int validLength() {
+        if (framed) {
+            return scanFrames();
+        }
+        int position = 0;
+        int limit = buffer.limit();
+        for (int i = 0; i < HEADER_LENGTH && i < limit; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            position = position * 10 + (b - '0');
+        }
+        return Math.min(Math.max(position, dataStart), limit);
+    }
+
+    /**
+     * 扫描所有的帧，遇到长度为 0 、超出文件范围或者校验值不对的帧就停止
+     *
+     * @return 最后一个完整的帧结束的位置
+     */
+    private int scanFrames() {
+        ByteBuffer data = buffer.duplicate();
+        int limit = data.limit();
+        int position = dataStart;
+        byte[] chunk = new byte[4096];
+        CRC32 crc = new CRC32();
+        while (position + FRAME_HEADER_LENGTH <= limit) {
+            int length = data.getInt(position);
+            if (length <= 0 || length > limit - position - FRAME_HEADER_LENGTH) {
+                break;
+            }
+            int expected = data.getInt(position + 4);
+            crc.reset();
+            data.limit(position + FRAME_HEADER_LENGTH + length);
+            data.position(position + FRAME_HEADER_LENGTH);
+            while (data.hasRemaining()) {
+                int count = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, count);
+                crc.update(chunk, 0, count);
+            }
+            data.limit(limit);
+            if ((int) crc.getValue() != expected) {
+                aLog.w(TAG, "bad frame at:%s in %s", position, file.getName());
+                break;
+            }
+            position += FRAME_HEADER_LENGTH + length;
+        }
+        return position;
+    }
+
+    /**
+     * 是否还没有写入任何 issue
+     *
+     * @return true 表示没有数据
+     */
+    boolean isEmpty() {
+        return buffer.position() <= dataStart;
+    }
+
+    /**
+     * 刷新数据到磁盘，并关闭文件
+     */
+    void close() {
+        if (!buffer.isReadOnly()) {
+            try {
+                buffer.force();
+            } catch (Exception e) {
+                aLog.e(TAG, "force", e);
+            }
+        }
+        if (null != randomAccessFile) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                aLog.e(TAG, "randomAccessFile IOException", e);
+            }
+            randomAccessFile = null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package io.github.xanderwang.performance;
+
+import android.util.Log;
+
+import io.github.xanderwang.asu.aConstants;
+
+/**
+ * @author Xander Wang
+ * @Description 把 issue 输出到 logcat 的 sink 。
+ * <p>
+ * logcat 只是临时查看，每个 issue 都完整输出调用栈，log 等级不够的时候不做格式化。
+ */
+class LogcatIssueSink implements PERF.IssueSink {
+
+    static final String NAME = "logcat";
+
+    /**
+     * 文本格式化，只在 sink 的线程里面使用
+     */
+    private final TextIssueFormatter formatter = new TextIssueFormatter();
+
+    @Override
+    public void write(Issue issue) {
+        if (aConstants.logLevel > Log.WARN) {
+            return;
+        }
+        formatter.reset();
+        issue.format(formatter);
+        issue.log(formatter.text());
+    }
+
+    @Override
+    public void flush() {
+    }
+}
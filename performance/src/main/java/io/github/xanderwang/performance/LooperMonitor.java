@@ -0,0 +1,447 @@
+package io.github.xanderwang.performance;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 监控主线程 MessageQueue 的积压、消息的分发延迟和空闲时间。
+ * <p>
+ * 分发延迟和分发次数在 {@link UIBlockTool} 已有的 dispatchMessage hook 里面记录，不增加新的 hook ；
+ * 空闲时间通过 IdleHandler 记录空闲开始的时间，下一个消息分发的时候结束。每隔 {@link Config#LOOPER_SAMPLE_INTERVAL}
+ * 在 perf 线程里面得到一个采样点，保存在内存里面的时间序列里，时间序列写满一轮的时候导出一次。
+ * <p>
+ * 队列里面的消息不加锁读取，持有 MessageQueue 的锁会阻塞主线程的 next 和所有线程的 enqueueMessage 。
+ * 队列按照 when 排序，到期的消息都在队列的前面，所以只从队头往后读到第一个没有到期的消息为止，最多读
+ * {@link #MAX_SCAN_COUNT} 个，数量是一个近似值。已经到期还没有分发的消息数量或者分发延迟超过阈值的时候输出
+ * {@link Issue#TYPE_LOOPER} 类型的 issue ，带上积压的消息按照 Handler 的分布。默认不开启。
+ */
+class LooperMonitor {
+
+    private static final String TAG = "LooperMonitor";
+
+    /**
+     * 不加锁读取消息的时候最多读取的数量，读取的过程中主线程可能正在修改队列，读取的数量必须有上限
+     */
+    private static final int MAX_SCAN_COUNT = 128;
+
+    private static final int TOP_TARGET_COUNT = 10;
+
+    /**
+     * 分发延迟，单位 us
+     */
+    private static final LatencyHistogram dispatchDelay = new LatencyHistogram("dispatch delay");
+
+    /**
+     * 以下字段只在主线程里面修改，在 perf 线程里面读取
+     */
+    private static volatile long dispatchCount = 0;
+
+    private static volatile long idleTotalTime = 0;
+
+    /**
+     * 当前空闲开始的时间，0 表示不在空闲
+     */
+    private static volatile long idleStartTime = 0;
+
+    private static Handler monitorHandler;
+
+    private static MessageQueue mainQueue;
+
+    private static Field messagesField;
+
+    private static Field nextField;
+
+    private static boolean started = false;
+
+    /**
+     * 以下字段只在 perf 线程里面使用
+     */
+    private static long lastSampleTime;
+
+    private static long lastDispatchCount;
+
+    private static long lastIdleTime;
+
+    /**
+     * 到期的消息的 Handler ，只有积压的时候才统计分布
+     */
+    private static final Class<?>[] overdueTargets = new Class<?>[MAX_SCAN_COUNT];
+
+    private static final Sample[] samples = new Sample[Math.max(1, Config.LOOPER_SERIES_SIZE)];
+
+    private static int nextSample = 0;
+
+    private static int sampleCount = 0;
+
+    /**
+     * 已经导出的采样点数量
+     */
+    private static long exportedSampleCount = 0;
+
+    private static long totalSampleCount = 0;
+
+    static void start() {
+        if (started || Config.LOOPER_SAMPLE_INTERVAL <= 0) {
+            return;
+        }
+        started = true;
+        try {
+            messagesField = MessageQueue.class.getDeclaredField("mMessages");
+            messagesField.setAccessible(true);
+            nextField = Message.class.getDeclaredField("next");
+            nextField.setAccessible(true);
+        } catch (Exception e) {
+            aLog.e(TAG, "can not read MessageQueue, pending count disabled", e);
+            messagesField = null;
+            nextField = null;
+        }
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mainQueue = Looper.myQueue();
+                mainQueue.addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        idleStartTime = SystemClock.uptimeMillis();
+                        return true;
+                    }
+                });
+            }
+        });
+        monitorHandler = new Handler(AppHelper.getPerfLooper());
+        lastSampleTime = SystemClock.uptimeMillis();
+        monitorHandler.postDelayed(sampleRunnable, Config.LOOPER_SAMPLE_INTERVAL);
+        aLog.e(TAG, "start");
+    }
+
+    /**
+     * 主线程开始分发一个消息，在 dispatchMessage hook 里面调用
+     *
+     * @param msg 消息
+     */
+    static void onDispatch(Message msg) {
+        if (!started) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long idleStart = idleStartTime;
+        if (idleStart > 0) {
+            idleStartTime = 0;
+            idleTotalTime = idleTotalTime + Math.max(0, now - idleStart);
+        }
+        dispatchCount = dispatchCount + 1;
+        long when = null == msg ? 0 : msg.getWhen();
+        if (when > 0) {
+            // postAtFrontOfQueue 的消息 when 为 0 ，没有延迟的意义
+            dispatchDelay.record(Math.max(0, now - when) * 1000L);
+        }
+    }
+
+    private static final Runnable sampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                sample();
+            } catch (Throwable t) {
+                aLog.e(TAG, "sample", t);
+            }
+            monitorHandler.postDelayed(this, Config.LOOPER_SAMPLE_INTERVAL);
+        }
+    };
+
+    private static void sample() {
+        long now = SystemClock.uptimeMillis();
+        Sample sample = new Sample();
+        sample.time = System.currentTimeMillis();
+        sample.windowTime = now - lastSampleTime;
+        lastSampleTime = now;
+        long dispatch = dispatchCount;
+        sample.dispatchCount = dispatch - lastDispatchCount;
+        lastDispatchCount = dispatch;
+        long idleStart = idleStartTime;
+        long idle = idleTotalTime + (idleStart > 0 ? Math.max(0, now - idleStart) : 0);
+        sample.idleTime = Math.min(sample.windowTime, Math.max(0, idle - lastIdleTime));
+        lastIdleTime = idle;
+        LatencyHistogram.Snapshot delay = dispatchDelay.snapshot();
+        sample.delayP50 = delay.percentile(50) / 1000L;
+        sample.delayP99 = delay.percentile(99) / 1000L;
+        sample.delayMax = delay.maxValue / 1000L;
+        int overdue = scanQueue(sample, now);
+        boolean backlog = sample.overdueCount >= Config.LOOPER_BACKLOG_THRESHOLD
+            || sample.delayMax >= Config.LOOPER_DELAY_THRESHOLD;
+        boolean export;
+        synchronized (samples) {
+            samples[nextSample] = sample;
+            nextSample = (nextSample + 1) % samples.length;
+            if (sampleCount < samples.length) {
+                sampleCount++;
+            }
+            totalSampleCount++;
+            // 时间序列写满一轮之前导出，不会丢失采样点
+            export = totalSampleCount - exportedSampleCount >= samples.length;
+        }
+        if (backlog && IssueRateLimiter.tryAcquire(Issue.TYPE_LOOPER, sample.delayMax)) {
+            LooperBacklogIssue issue = new LooperBacklogIssue(sample, topTargets(overdue));
+            issue.costTime = sample.delayMax;
+            issue.print();
+        }
+        if (export) {
+            exportSeries();
+        }
+    }
+
+    /**
+     * 不加锁从队头开始读取到期的消息，读到第一个没有到期的消息或者 {@link #MAX_SCAN_COUNT} 个为止。
+     * <p>
+     * 读取的时候主线程可能已经处理并回收了正在读的消息，回收的消息 when 为 0 、没有 target ，next 指向全局的 Message 缓存池。
+     * 队列里面的消息按照 when 排序，读到 when 变小的消息或者回收的消息说明已经离开了队列，停止读取。
+     *
+     * @return 记录到 {@link #overdueTargets} 里面的数量
+     */
+    private static int scanQueue(Sample sample, long now) {
+        MessageQueue queue = mainQueue;
+        if (null == queue || null == messagesField) {
+            sample.pendingCount = -1;
+            sample.overdueCount = -1;
+            return 0;
+        }
+        int pending = 0;
+        int overdue = 0;
+        try {
+            Message msg = (Message) messagesField.get(queue);
+            long lastWhen = Long.MIN_VALUE;
+            while (null != msg && pending < MAX_SCAN_COUNT) {
+                long when = msg.getWhen();
+                Handler target = msg.getTarget();
+                if (when < lastWhen || (0 == when && null == target)) {
+                    // 消息已经被回收
+                    break;
+                }
+                lastWhen = when;
+                pending++;
+                if (when > now) {
+                    break;
+                }
+                // 没有 target 的是 barrier
+                overdueTargets[overdue++] = null == target ? null : target.getClass();
+                msg = (Message) nextField.get(msg);
+            }
+        } catch (Exception e) {
+            aLog.e(TAG, "scanQueue", e);
+            messagesField = null;
+        }
+        sample.pendingCount = pending;
+        sample.overdueCount = overdue;
+        return overdue;
+    }
+
+    private static List<String> topTargets(int overdue) {
+        HashMap<Class<?>, int[]> targets = new HashMap<>();
+        for (int i = 0; i < overdue; i++) {
+            Class<?> targetClass = overdueTargets[i];
+            overdueTargets[i] = null;
+            int[] count = targets.get(targetClass);
+            if (null == count) {
+                count = new int[1];
+                targets.put(targetClass, count);
+            }
+            count[0]++;
+        }
+        List<Map.Entry<Class<?>, int[]>> entries = new ArrayList<>(targets.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Class<?>, int[]>>() {
+            @Override
+            public int compare(Map.Entry<Class<?>, int[]> entryA, Map.Entry<Class<?>, int[]> entryB) {
+                return entryB.getValue()[0] - entryA.getValue()[0];
+            }
+        });
+        List<String> rows = new ArrayList<>();
+        for (int i = 0, size = Math.min(TOP_TARGET_COUNT, entries.size()); i < size; i++) {
+            Map.Entry<Class<?>, int[]> entry = entries.get(i);
+            String name = null == entry.getKey() ? "sync barrier" : entry.getKey().getName();
+            rows.add(entry.getValue()[0] + " " + name);
+        }
+        return rows;
+    }
+
+    /**
+     * 内存里面的时间序列，按照时间从旧到新排序
+     *
+     * @return 采样点列表
+     */
+    static List<PERF.LooperSample> samples() {
+        synchronized (samples) {
+            List<PERF.LooperSample> list = new ArrayList<>(sampleCount);
+            int start = (nextSample - sampleCount + samples.length) % samples.length;
+            for (int i = 0; i < sampleCount; i++) {
+                list.add(samples[(start + i) % samples.length]);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * 输出上一次导出之后新的采样点，在 perf 线程里面调用
+     */
+    private static void exportSeries() {
+        List<PERF.LooperSample> list;
+        synchronized (samples) {
+            long newCount = Math.min(totalSampleCount - exportedSampleCount, sampleCount);
+            exportedSampleCount = totalSampleCount;
+            if (newCount <= 0) {
+                return;
+            }
+            list = new ArrayList<>((int) newCount);
+            for (long i = newCount; i > 0; i--) {
+                list.add(samples[(int) ((nextSample - i + samples.length) % samples.length)]);
+            }
+        }
+        new LooperSeriesIssue(list).print();
+    }
+
+    /**
+     * 一个采样点，时间单位都是 ms
+     */
+    static class Sample implements PERF.LooperSample {
+
+        long time;
+
+        long windowTime;
+
+        int pendingCount;
+
+        int overdueCount;
+
+        long dispatchCount;
+
+        long delayP50;
+
+        long delayP99;
+
+        long delayMax;
+
+        long idleTime;
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public long getWindowTime() {
+            return windowTime;
+        }
+
+        @Override
+        public int getPendingCount() {
+            return pendingCount;
+        }
+
+        @Override
+        public int getOverdueCount() {
+            return overdueCount;
+        }
+
+        @Override
+        public long getDispatchCount() {
+            return dispatchCount;
+        }
+
+        @Override
+        public long getDelayP50() {
+            return delayP50;
+        }
+
+        @Override
+        public long getDelayP99() {
+            return delayP99;
+        }
+
+        @Override
+        public long getDelayMax() {
+            return delayMax;
+        }
+
+        @Override
+        public long getIdleTime() {
+            return idleTime;
+        }
+
+        void format(StringBuilder sb) {
+            sb.append(time).append(" window:").append(windowTime).append(" pending:").append(pendingCount)
+                .append(" overdue:").append(overdueCount).append(" dispatch:").append(dispatchCount)
+                .append(" delay p50:").append(delayP50).append(" p99:").append(delayP99).append(" max:")
+                .append(delayMax).append(" idle:").append(idleTime);
+        }
+    }
+
+    /**
+     * 主线程的消息积压或者分发延迟超过阈值
+     */
+    static class LooperBacklogIssue extends Issue {
+
+        final Sample sample;
+
+        final List<String> targets;
+
+        LooperBacklogIssue(Sample sample, List<String> targets) {
+            super(Issue.TYPE_LOOPER, "LOOPER BACKLOG", null);
+            this.sample = sample;
+            this.targets = targets;
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("window time", sample.windowTime);
+            formatter.field("pending count", sample.pendingCount);
+            formatter.field("overdue count", sample.overdueCount);
+            formatter.field("dispatch count", sample.dispatchCount);
+            formatter.field("delay p50", sample.delayP50);
+            formatter.field("delay p99", sample.delayP99);
+            formatter.field("delay max", sample.delayMax);
+            formatter.field("idle time", sample.idleTime);
+            if (!targets.isEmpty()) {
+                formatter.trace("overdue handlers", targets);
+            }
+        }
+    }
+
+    /**
+     * 一段时间内的采样点
+     */
+    static class LooperSeriesIssue extends StatsIssue {
+
+        final List<PERF.LooperSample> series;
+
+        LooperSeriesIssue(List<PERF.LooperSample> series) {
+            super(Issue.TYPE_LOOPER, "LOOPER SERIES");
+            this.series = series;
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("sample interval", Config.LOOPER_SAMPLE_INTERVAL);
+            List<String> rows = new ArrayList<>(series.size());
+            StringBuilder sb = new StringBuilder();
+            for (PERF.LooperSample sample : series) {
+                sb.setLength(0);
+                ((Sample) sample).format(sb);
+                rows.add(sb.toString());
+            }
+            formatter.trace("samples", rows);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.github.xanderwang.performance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Xander Wang
+ * @Description 在内存里面保存最近的 issue 的 sink ，方便在 app 里面直接查看。
+ */
+class MemoryIssueSink implements PERF.IssueSink {
+
+    static final String NAME = "memory";
+
+    private static volatile MemoryIssueSink instance;
+
+    private final Issue[] issues;
+
+    /**
+     * 下一个写入的位置
+     */
+    private int next = 0;
+
+    /**
+     * 已经保存的数量
+     */
+    private int size = 0;
+
+    MemoryIssueSink(int capacity) {
+        issues = new Issue[Math.max(1, capacity)];
+        instance = this;
+    }
+
+    @Override
+    public synchronized void write(Issue issue) {
+        issues[next] = issue;
+        next = (next + 1) % issues.length;
+        if (size < issues.length) {
+            size++;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * 最近的 issue ，按照时间从旧到新排序
+     *
+     * @return issue 列表
+     */
+    synchronized List<Issue> snapshot() {
+        List<Issue> list = new ArrayList<>(size);
+        int start = (next - size + issues.length) % issues.length;
+        for (int i = 0; i < size; i++) {
+            list.add(issues[(start + i) % issues.length]);
+        }
+        return list;
+    }
+
+    /**
+     * 最近的 issue ，没有开启内存保存的时候返回空列表
+     *
+     * @return issue 列表
+     */
+    static List<Issue> recentIssues() {
+        MemoryIssueSink sink = instance;
+        return null == sink ? new ArrayList<Issue>() : sink.snapshot();
+    }
+}
@@ -0,0 +1,255 @@
+package io.github.xanderwang.performance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Xander Wang
+ * @Description 记录主线程正在处理的消息，并按照消息统计慢消息的耗时。
+ * <p>
+ * 消息用目标 Handler 的 class 、callback 的 class 和 what 来区分，{@link #enter(Class, Class, int)} 和
+ * {@link #exit()} 只能在主线程里面调用，只把这三个值压栈，不创建对象；当前消息通过 volatile 字段发布，
+ * watchdog 线程发现 block 的时候可以直接读取。耗时超过 {@link Config#UI_SLOW_MESSAGE_TIME} 的消息
+ * 按照这三个值累计次数、总耗时和最大耗时，整个进程运行期间一直累计。
+ */
+class MessageCostTable {
+
+    /**
+     * 最多统计的消息种类，超过之后新的消息都统计到 {@link #OTHER_KEY}
+     */
+    private static final int MAX_KEY_COUNT = 1024;
+
+    private static final MessageKey OTHER_KEY = new MessageKey(null, null, -1);
+
+    private static final int MAX_DEPTH = 16;
+
+    /**
+     * 嵌套的消息，只在主线程里面使用
+     */
+    private static final Class<?>[] targets = new Class<?>[MAX_DEPTH];
+
+    private static final Class<?>[] callbacks = new Class<?>[MAX_DEPTH];
+
+    private static final int[] whats = new int[MAX_DEPTH];
+
+    private static final long[] startNanos = new long[MAX_DEPTH];
+
+    private static int depth = 0;
+
+    /**
+     * 当前正在处理的消息，给 watchdog 线程读取
+     */
+    private static volatile Class<?> currentTarget;
+
+    private static volatile Class<?> currentCallback;
+
+    private static volatile int currentWhat;
+
+    private static final ConcurrentHashMap<MessageKey, MessageCost> costs = new ConcurrentHashMap<>();
+
+    /**
+     * 统计变化的次数，用来判断是否需要重新导出
+     */
+    private static final AtomicLong version = new AtomicLong();
+
+    /**
+     * 开始处理一个消息
+     *
+     * @param target   目标 Handler 的 class
+     * @param callback callback 的 class ，没有的时候为 null
+     * @param what     Message.what
+     */
+    static void enter(Class<?> target, Class<?> callback, int what) {
+        if (depth < MAX_DEPTH) {
+            targets[depth] = target;
+            callbacks[depth] = callback;
+            whats[depth] = what;
+            startNanos[depth] = System.nanoTime();
+        }
+        depth++;
+        publish(target, callback, what);
+    }
+
+    /**
+     * 一个消息处理完了，耗时超过阈值的时候记录到统计里面
+     *
+     * @return 消息的耗时，单位 ns ，嵌套太深没有记录的时候返回 -1
+     */
+    static long exit() {
+        if (depth <= 0) {
+            return -1;
+        }
+        depth--;
+        long costNanos = -1;
+        if (depth < MAX_DEPTH) {
+            costNanos = System.nanoTime() - startNanos[depth];
+            if (costNanos >= Config.UI_SLOW_MESSAGE_TIME * 1000000L) {
+                record(targets[depth], callbacks[depth], whats[depth], costNanos / 1000000L);
+            }
+            targets[depth] = null;
+            callbacks[depth] = null;
+        }
+        if (depth > 0 && depth <= MAX_DEPTH) {
+            publish(targets[depth - 1], callbacks[depth - 1], whats[depth - 1]);
+        } else if (depth == 0) {
+            publish(null, null, 0);
+        }
+        return costNanos;
+    }
+
+    private static void publish(Class<?> target, Class<?> callback, int what) {
+        currentWhat = what;
+        currentCallback = callback;
+        currentTarget = target;
+    }
+
+    static Class<?> currentTarget() {
+        return currentTarget;
+    }
+
+    static Class<?> currentCallback() {
+        return currentCallback;
+    }
+
+    static int currentWhat() {
+        return currentWhat;
+    }
+
+    private static void record(Class<?> target, Class<?> callback, int what, long costTime) {
+        MessageKey key = new MessageKey(target, callback, what);
+        MessageCost cost = costs.get(key);
+        if (null == cost) {
+            if (costs.size() >= MAX_KEY_COUNT) {
+                key = OTHER_KEY;
+            }
+            cost = new MessageCost(key);
+            MessageCost old = costs.putIfAbsent(key, cost);
+            if (null != old) {
+                cost = old;
+            }
+        }
+        cost.add(costTime);
+        version.incrementAndGet();
+    }
+
+    static long version() {
+        return version.get();
+    }
+
+    /**
+     * 慢消息的统计，按照总耗时从多到少排序
+     *
+     * @return 统计列表
+     */
+    static List<PERF.MessageStat> stats() {
+        List<PERF.MessageStat> list = new ArrayList<PERF.MessageStat>(costs.values());
+        Collections.sort(list, new Comparator<PERF.MessageStat>() {
+            @Override
+            public int compare(PERF.MessageStat statA, PERF.MessageStat statB) {
+                if (statA.getTotalTime() != statB.getTotalTime()) {
+                    return statA.getTotalTime() > statB.getTotalTime() ? -1 : 1;
+                }
+                return Long.compare(statB.getCount(), statA.getCount());
+            }
+        });
+        return list;
+    }
+
+    static String className(Class<?> clazz) {
+        return null == clazz ? "" : clazz.getName();
+    }
+
+    static class MessageKey {
+
+        final Class<?> target;
+
+        final Class<?> callback;
+
+        final int what;
+
+        MessageKey(Class<?> target, Class<?> callback, int what) {
+            this.target = target;
+            this.callback = callback;
+            this.what = what;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MessageKey)) {
+                return false;
+            }
+            MessageKey key = (MessageKey) o;
+            return what == key.what && target == key.target && callback == key.callback;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = null == target ? 0 : target.hashCode();
+            result = 31 * result + (null == callback ? 0 : callback.hashCode());
+            return 31 * result + what;
+        }
+    }
+
+    /**
+     * 一种消息的耗时统计，只在主线程里面修改，其他线程读取
+     */
+    static class MessageCost implements PERF.MessageStat {
+
+        final MessageKey key;
+
+        private volatile long count;
+
+        private volatile long totalTime;
+
+        private volatile long maxTime;
+
+        MessageCost(MessageKey key) {
+            this.key = key;
+        }
+
+        void add(long costTime) {
+            count = count + 1;
+            totalTime = totalTime + costTime;
+            if (costTime > maxTime) {
+                maxTime = costTime;
+            }
+        }
+
+        @Override
+        public String getTargetClass() {
+            return key == OTHER_KEY ? "other" : className(key.target);
+        }
+
+        @Override
+        public String getCallbackClass() {
+            return className(key.callback);
+        }
+
+        @Override
+        public int getWhat() {
+            return key.what;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        @Override
+        public long getMaxTime() {
+            return maxTime;
+        }
+    }
+}
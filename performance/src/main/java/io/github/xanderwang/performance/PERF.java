@@ -3,14 +3,59 @@ package io.github.xanderwang.performance;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import io.github.xanderwang.asu.aConstants;
+import io.github.xanderwang.asu.aLog;
 import me.weishu.reflection.Reflection;
 
 public class PERF {
 
     static String TAG = "PERF";
 
+    /**
+     * issue 队列满了之后，丢弃最旧的 issue
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+
+    /**
+     * issue 队列满了之后，丢弃新的 issue
+     */
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+
+    /**
+     * issue 队列满了之后，阻塞产生 issue 的线程，直到队列有空位。
+     * 只能用于内置的 log 文件，{@link Builder#addSink(String, IssueSink, int, int, int)} 添加的 sink 使用这个策略时
+     * 按照 {@link #OVERFLOW_DROP_OLDEST} 处理，并输出警告
+     */
+    public static final int OVERFLOW_BLOCK = 2;
+
+    /**
+     * log 文件保存为可读的文本
+     */
+    public static final int FORMAT_TEXT = 0;
+
+    /**
+     * log 文件保存为紧凑的二进制格式，需要用 performance-decoder 解码
+     */
+    public static final int FORMAT_BINARY = 1;
+
+    /**
+     * 写满的 log 文件压缩为 zip
+     */
+    public static final int COMPRESS_ZIP = 0;
+
+    /**
+     * 写满的 log 文件压缩为 gzip
+     */
+    public static final int COMPRESS_GZIP = 1;
+
+    /**
+     * 写满的 log 文件只打包为 zip ，不做压缩，节省 cpu
+     */
+    public static final int COMPRESS_STORE = 2;
+
     public static class Builder {
         /**
          * logLevel ，设置可以打印的 log 等级
@@ -27,6 +72,32 @@ public class PERF {
          */
         long mUIBlockTime = Config.UI_BLOCK_TIME;
 
+        /**
+         * UI 线程耗时分布的导出间隔，0 表示不记录
+         */
+        long mUILatencyInterval = Config.UI_LATENCY_INTERVAL;
+
+        /**
+         * UI block 开始采样的阈值和采样间隔，间隔为 0 表示不采样
+         */
+        long mUISampleThreshold = Config.UI_SAMPLE_THRESHOLD;
+
+        long mUISampleInterval = Config.UI_SAMPLE_INTERVAL;
+
+        /**
+         * 主线程慢消息的阈值
+         */
+        long mUISlowMessageTime = Config.UI_SLOW_MESSAGE_TIME;
+
+        /**
+         * 主线程消息队列的采样间隔、分发延迟阈值和积压阈值，间隔为 0 表示不采样
+         */
+        long mLooperSampleInterval = Config.LOOPER_SAMPLE_INTERVAL;
+
+        long mLooperDelayThreshold = Config.LOOPER_DELAY_THRESHOLD;
+
+        int mLooperBacklogThreshold = Config.LOOPER_BACKLOG_THRESHOLD;
+
         /**
          * 检测线程的 start 方法调用栈
          */
@@ -37,6 +108,11 @@ public class PERF {
          */
         long mThreadBlockTime = Config.THREAD_BLOCK_TIME;
 
+        /**
+         * 线程池任务统计的导出间隔，0 表示不统计
+         */
+        long mThreadPoolExportInterval = Config.THREAD_POOL_EXPORT_INTERVAL;
+
         /**
          * IPC 调用 block 的时间间隔
          */
@@ -52,6 +128,18 @@ public class PERF {
          */
         boolean mCheckFPS = false;
 
+        /**
+         * 慢帧开始采样的阈值和采样间隔，间隔为 0 表示不采样，默认不采样
+         */
+        long mFPSFrameBudget = Config.FPS_FRAME_BUDGET;
+
+        long mFPSSampleInterval = Config.FPS_SAMPLE_INTERVAL;
+
+        /**
+         * 是否按照 Choreographer 的回调阶段统计帧的耗时
+         */
+        boolean mFPSTrackPhases = Config.FPS_TRACK_PHASES;
+
         /**
          * 是否需要检测 ipc， 也就是进程间通讯
          */
@@ -87,6 +175,96 @@ public class PERF {
          */
         String globalTag = TAG;
 
+        /**
+         * 待写入 issue 的队列大小
+         */
+        int mIssueQueueSize = Config.ISSUE_QUEUE_SIZE;
+
+        /**
+         * 待写入 issue 的队列满了之后的处理策略
+         */
+        int mIssueOverflowPolicy = Config.ISSUE_OVERFLOW_POLICY;
+
+        /**
+         * 单个 log 文件的大小
+         */
+        int mLogSegmentSize = Config.LOG_SEGMENT_SIZE;
+
+        /**
+         * 最多保留的已归档 log 文件数量
+         */
+        int mLogSegmentCount = Config.LOG_SEGMENT_COUNT;
+
+        /**
+         * log 文件的格式
+         */
+        int mIssueFormat = Config.ISSUE_FORMAT;
+
+        /**
+         * 写满的 log 文件的压缩格式
+         */
+        int mLogCompressCodec = Config.LOG_COMPRESS_CODEC;
+
+        /**
+         * 写满的 log 文件的压缩等级
+         */
+        int mLogCompressLevel = Config.LOG_COMPRESS_LEVEL;
+
+        /**
+         * 待上传的文件总大小超过这个值的时候开始上传
+         */
+        long mUploadTriggerSize = Config.UPLOAD_TRIGGER_SIZE;
+
+        /**
+         * 待上传的文件等待时间超过这个值的时候开始上传
+         */
+        long mUploadTriggerAge = Config.UPLOAD_TRIGGER_AGE;
+
+        /**
+         * 每一批最多上传的文件数量
+         */
+        int mUploadBatchCount = Config.UPLOAD_BATCH_COUNT;
+
+        /**
+         * 自定义的 sink
+         */
+        List<SinkEntry> mSinks = new ArrayList<>();
+
+        /**
+         * issue 回调
+         */
+        IssueListener mIssueListener = null;
+
+        /**
+         * 内存里面保存的最近 issue 的数量，0 表示不保存
+         */
+        int mMemoryIssueCount = 0;
+
+        /**
+         * 按列保存的最近 issue 的数量，0 表示不保存
+         */
+        int mIssueStoreCapacity = 0;
+
+        /**
+         * 每种 issue 类型的采样率
+         */
+        float[] mIssueSampleRates = Config.ISSUE_SAMPLE_RATES.clone();
+
+        /**
+         * 每种 issue 类型的令牌桶大小
+         */
+        int[] mIssueRateBursts = Config.ISSUE_RATE_BURSTS.clone();
+
+        /**
+         * 每种 issue 类型每秒补充的令牌数量
+         */
+        float[] mIssueRatePermits = Config.ISSUE_RATE_PERMITS.clone();
+
+        /**
+         * 被限流的 issue 汇总输出的时间间隔
+         */
+        long mIssueSummaryInterval = Config.ISSUE_SUMMARY_INTERVAL;
+
         public Builder checkUI(boolean check) {
             mCheckUI = check;
             return this;
@@ -98,6 +276,29 @@ public class PERF {
             return this;
         }
 
+        public Builder uiLatencyInterval(long interval) {
+            mUILatencyInterval = interval;
+            return this;
+        }
+
+        public Builder uiBlockSampling(long sampleThreshold, long sampleInterval) {
+            mUISampleThreshold = sampleThreshold;
+            mUISampleInterval = sampleInterval;
+            return this;
+        }
+
+        public Builder uiSlowMessageTime(long slowMessageTime) {
+            mUISlowMessageTime = slowMessageTime;
+            return this;
+        }
+
+        public Builder looperMonitor(long sampleInterval, long delayThreshold, int backlogThreshold) {
+            mLooperSampleInterval = sampleInterval;
+            mLooperDelayThreshold = delayThreshold;
+            mLooperBacklogThreshold = backlogThreshold;
+            return this;
+        }
+
         public Builder checkThread(boolean check) {
             mCheckThread = check;
             return this;
@@ -109,6 +310,11 @@ public class PERF {
             return this;
         }
 
+        public Builder threadPoolStats(long exportInterval) {
+            mThreadPoolExportInterval = exportInterval;
+            return this;
+        }
+
         public Builder checkFps(boolean check) {
             mCheckFPS = check;
             return this;
@@ -120,6 +326,17 @@ public class PERF {
             return this;
         }
 
+        public Builder fpsFrameSampling(long frameBudget, long sampleInterval) {
+            mFPSFrameBudget = frameBudget;
+            mFPSSampleInterval = sampleInterval;
+            return this;
+        }
+
+        public Builder fpsFramePhases(boolean track) {
+            mFPSTrackPhases = track;
+            return this;
+        }
+
         public Builder checkIPC(boolean check) {
             mCheckIPC = check;
             return this;
@@ -161,6 +378,87 @@ public class PERF {
             return this;
         }
 
+        public Builder uploadPolicy(long triggerSize, long triggerAge, int batchCount) {
+            mUploadTriggerSize = triggerSize;
+            mUploadTriggerAge = triggerAge;
+            mUploadBatchCount = batchCount;
+            return this;
+        }
+
+        public Builder issueQueue(int queueSize, int overflowPolicy) {
+            mIssueQueueSize = queueSize;
+            mIssueOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder logSegment(int segmentSize, int segmentCount) {
+            mLogSegmentSize = segmentSize;
+            mLogSegmentCount = segmentCount;
+            return this;
+        }
+
+        public Builder issueFormat(int format) {
+            mIssueFormat = format;
+            return this;
+        }
+
+        public Builder logCompress(int codec, int level) {
+            mLogCompressCodec = codec;
+            mLogCompressLevel = level;
+            return this;
+        }
+
+        public Builder addSink(String name, IssueSink sink) {
+            return addSink(name, sink, Config.ISSUE_QUEUE_SIZE, OVERFLOW_DROP_OLDEST,
+                IssueDispatcher.DEFAULT_BATCH_SIZE);
+        }
+
+        /**
+         * 添加自定义的 sink ，每个 sink 有自己的队列和线程
+         *
+         * @param overflowPolicy 队列满了之后的处理策略，自定义的 sink 可能很慢，不允许阻塞产生 issue 的线程，
+         *                       {@link #OVERFLOW_BLOCK} 会按照 {@link #OVERFLOW_DROP_OLDEST} 处理，并输出警告
+         */
+        public Builder addSink(String name, IssueSink sink, int queueSize, int overflowPolicy, int batchSize) {
+            mSinks.add(new SinkEntry(name, sink, queueSize, overflowPolicy, batchSize));
+            return this;
+        }
+
+        public Builder issueListener(IssueListener listener) {
+            mIssueListener = listener;
+            return this;
+        }
+
+        public Builder memoryIssues(int count) {
+            mMemoryIssueCount = count;
+            return this;
+        }
+
+        public Builder issueStore(int capacity) {
+            mIssueStoreCapacity = capacity;
+            return this;
+        }
+
+        public Builder issueSampling(int issueType, float sampleRate) {
+            if (issueType >= 0 && issueType < mIssueSampleRates.length) {
+                mIssueSampleRates[issueType] = sampleRate;
+            }
+            return this;
+        }
+
+        public Builder issueRateLimit(int issueType, int burst, float permitsPerSecond) {
+            if (issueType >= 0 && issueType < mIssueRateBursts.length) {
+                mIssueRateBursts[issueType] = burst;
+                mIssueRatePermits[issueType] = permitsPerSecond;
+            }
+            return this;
+        }
+
+        public Builder issueSummaryInterval(long interval) {
+            mIssueSummaryInterval = interval;
+            return this;
+        }
+
         public Builder logLevel(int level) {
             logLevel = level;
             return this;
@@ -171,6 +469,25 @@ public class PERF {
         }
     }
 
+    /**
+     * 通过 Builder 注册的 sink
+     */
+    static class SinkEntry {
+        final String name;
+        final IssueSink sink;
+        final int queueSize;
+        final int overflowPolicy;
+        final int batchSize;
+
+        SinkEntry(String name, IssueSink sink, int queueSize, int overflowPolicy, int batchSize) {
+            this.name = name;
+            this.sink = sink;
+            this.queueSize = queueSize;
+            this.overflowPolicy = overflowPolicy;
+            this.batchSize = batchSize;
+        }
+    }
+
     public interface IssueSupplier<T> {
         T get();
     }
@@ -179,6 +496,226 @@ public class PERF {
         boolean upload(File logFile);
     }
 
+    /**
+     * 支持一次上传多个文件的上传器，上传失败的文件会按照退避时间重试
+     */
+    public interface BatchLogFileUploader extends LogFileUploader {
+        /**
+         * 上传一批文件
+         *
+         * @return 上传成功的文件
+         */
+        List<File> upload(List<File> logFiles);
+    }
+
+    /**
+     * issue 的输出，每个 sink 运行在自己的线程里面，有自己的队列
+     */
+    public interface IssueSink {
+        /**
+         * 处理一个 issue
+         */
+        void write(Issue issue);
+
+        /**
+         * 一批 issue 处理完之后调用
+         */
+        void flush();
+    }
+
+    /**
+     * issue 回调，运行在单独的线程里面
+     */
+    public interface IssueListener {
+        void onIssue(Issue issue);
+    }
+
+    /**
+     * sink 的统计信息
+     */
+    public interface SinkStats {
+        String getSinkName();
+
+        /**
+         * 处理成功的 issue 数量
+         */
+        long getDeliveredCount();
+
+        /**
+         * 处理失败的 issue 数量
+         */
+        long getFailedCount();
+
+        /**
+         * 队列满了之后丢弃的 issue 数量
+         */
+        long getDroppedCount();
+
+        /**
+         * 处理的批次数量
+         */
+        long getBatchCount();
+
+        /**
+         * 队列里面等待处理的 issue 数量
+         */
+        int getQueueSize();
+
+        int getQueueCapacity();
+    }
+
+    /**
+     * 去重后的调用栈的统计信息
+     */
+    public interface TraceInfo {
+        /**
+         * 调用栈的编号，log 里面重复出现的调用栈只输出这个编号
+         */
+        int getId();
+
+        /**
+         * 出现的次数
+         */
+        int getCount();
+
+        /**
+         * 第一次出现的时间，单位 ms
+         */
+        long getFirstSeenTime();
+
+        /**
+         * 最后一次出现的时间，单位 ms
+         */
+        long getLastSeenTime();
+
+        List<String> getFrames();
+    }
+
+    /**
+     * 查询 {@link Builder#issueStore(int)} 保存的 issue ，issueType 小于 0 表示所有类型，
+     * windowMillis 表示最近多长时间，单位 ms
+     */
+    public interface IssueQuery {
+        /**
+         * 时间窗口内的 issue 数量
+         */
+        int count(int issueType, long windowMillis);
+
+        /**
+         * 时间窗口内按照总耗时排序的调用栈，没有耗时信息的时候按照次数排序
+         *
+         * @param limit 最多返回的数量，小于 0 表示不限制
+         */
+        List<TraceStat> topTraces(int issueType, long windowMillis, int limit);
+
+        /**
+         * 时间窗口内每个 key 的耗时分位数，IPC 的 key 是接口名，其他的是 msg ，按照 p95 从大到小排序
+         */
+        List<CostStat> costStats(int issueType, long windowMillis);
+    }
+
+    /**
+     * 一个调用栈在时间窗口内的统计
+     */
+    public interface TraceStat {
+        int getTraceId();
+
+        int getCount();
+
+        long getTotalCostTime();
+
+        long getMaxCostTime();
+
+        List<String> getFrames();
+    }
+
+    /**
+     * 一个 key 在时间窗口内的耗时统计，单位 ms
+     */
+    public interface CostStat {
+        String getKey();
+
+        int getCount();
+
+        long getP50();
+
+        long getP95();
+
+        long getP99();
+
+        long getMaxCostTime();
+    }
+
+    /**
+     * 主线程慢消息的累计耗时，单位 ms
+     */
+    public interface MessageStat {
+        /**
+         * 目标 Handler 的 class ，按键事件为 DecorView 的 class
+         */
+        String getTargetClass();
+
+        /**
+         * Message callback 的 class ，没有的时候为空字符串，按键事件为 KeyEvent
+         */
+        String getCallbackClass();
+
+        /**
+         * Message.what ，按键事件为 keyCode
+         */
+        int getWhat();
+
+        long getCount();
+
+        long getTotalTime();
+
+        long getMaxTime();
+    }
+
+    /**
+     * 主线程消息队列的一个采样点，时间单位都是 ms
+     */
+    public interface LooperSample {
+        /**
+         * 采样的时间，System.currentTimeMillis
+         */
+        long getTime();
+
+        /**
+         * 和上一个采样点之间的时间
+         */
+        long getWindowTime();
+
+        /**
+         * 从队头读取的消息数量，读到第一个没有到期的消息为止，最多 128 个，不能读取队列的时候为 -1
+         */
+        int getPendingCount();
+
+        /**
+         * 已经到期还没有分发的消息数量，最多 128 个，不能读取队列的时候为 -1
+         */
+        int getOverdueCount();
+
+        /**
+         * 这段时间内分发的消息数量
+         */
+        long getDispatchCount();
+
+        /**
+         * 这段时间内消息从预定时间到实际分发的延迟
+         */
+        long getDelayP50();
+
+        long getDelayP99();
+
+        long getDelayMax();
+
+        /**
+         * 这段时间内主线程空闲的时间
+         */
+        long getIdleTime();
+    }
+
     public static void init(Builder builder) {
         Reflection.unseal(AppHelper.appContext());
         if (builder == null) {
@@ -188,13 +725,56 @@ public class PERF {
         aConstants.logLevel = builder.logLevel;
         aConstants.setGlobalTag(builder.globalTag);
         AppHelper.init();
+        Config.ISSUE_QUEUE_SIZE = builder.mIssueQueueSize;
+        Config.ISSUE_OVERFLOW_POLICY = builder.mIssueOverflowPolicy;
+        Config.LOG_SEGMENT_SIZE = builder.mLogSegmentSize;
+        Config.LOG_SEGMENT_COUNT = builder.mLogSegmentCount;
+        Config.ISSUE_FORMAT = builder.mIssueFormat;
+        Config.LOG_COMPRESS_CODEC = builder.mLogCompressCodec;
+        Config.LOG_COMPRESS_LEVEL = builder.mLogCompressLevel;
+        Config.UPLOAD_TRIGGER_SIZE = builder.mUploadTriggerSize;
+        Config.UPLOAD_TRIGGER_AGE = builder.mUploadTriggerAge;
+        Config.UPLOAD_BATCH_COUNT = builder.mUploadBatchCount;
+        Config.ISSUE_SAMPLE_RATES = builder.mIssueSampleRates;
+        Config.ISSUE_RATE_BURSTS = builder.mIssueRateBursts;
+        Config.ISSUE_RATE_PERMITS = builder.mIssueRatePermits;
+        Config.ISSUE_SUMMARY_INTERVAL = builder.mIssueSummaryInterval;
+        IssueRateLimiter.init();
         Issue.init(builder.cacheDirSupplier, builder.macCacheSizeSupplier, builder.uploaderSupplier);
+        if (builder.mMemoryIssueCount > 0) {
+            IssueDispatcher.register(MemoryIssueSink.NAME, new MemoryIssueSink(builder.mMemoryIssueCount),
+                builder.mMemoryIssueCount, OVERFLOW_DROP_OLDEST, IssueDispatcher.DEFAULT_BATCH_SIZE);
+        }
+        if (builder.mIssueStoreCapacity > 0) {
+            IssueStore.init(builder.mIssueStoreCapacity);
+        }
+        if (null != builder.mIssueListener) {
+            IssueDispatcher.register(ListenerIssueSink.NAME, new ListenerIssueSink(builder.mIssueListener),
+                Config.ISSUE_QUEUE_SIZE, OVERFLOW_DROP_OLDEST, IssueDispatcher.DEFAULT_BATCH_SIZE);
+        }
+        for (SinkEntry entry : builder.mSinks) {
+            // 自定义的 sink 可能很慢，不允许阻塞产生 issue 的线程
+            int policy = entry.overflowPolicy;
+            if (policy == OVERFLOW_BLOCK) {
+                aLog.w(TAG, "sink %s can not use OVERFLOW_BLOCK, use OVERFLOW_DROP_OLDEST instead", entry.name);
+                policy = OVERFLOW_DROP_OLDEST;
+            }
+            IssueDispatcher.register(entry.name, entry.sink, entry.queueSize, policy, entry.batchSize);
+        }
         if (builder.mCheckThread) {
             Config.THREAD_BLOCK_TIME = builder.mThreadBlockTime;
+            Config.THREAD_POOL_EXPORT_INTERVAL = builder.mThreadPoolExportInterval;
             ThreadTool.init();
         }
         if (builder.mCheckUI) {
             Config.UI_BLOCK_TIME = builder.mUIBlockTime;
+            Config.UI_LATENCY_INTERVAL = builder.mUILatencyInterval;
+            Config.UI_SAMPLE_THRESHOLD = builder.mUISampleThreshold;
+            Config.UI_SAMPLE_INTERVAL = builder.mUISampleInterval;
+            Config.UI_SLOW_MESSAGE_TIME = builder.mUISlowMessageTime;
+            Config.LOOPER_SAMPLE_INTERVAL = builder.mLooperSampleInterval;
+            Config.LOOPER_DELAY_THRESHOLD = builder.mLooperDelayThreshold;
+            Config.LOOPER_BACKLOG_THRESHOLD = builder.mLooperBacklogThreshold;
             UIBlockTool.start();
         }
         if (builder.mCheckIPC) {
@@ -203,6 +783,9 @@ public class PERF {
         }
         if (builder.mCheckFPS) {
             Config.FPS_INTERVAL_TIME = builder.mFPSIntervalTime;
+            Config.FPS_FRAME_BUDGET = builder.mFPSFrameBudget;
+            Config.FPS_SAMPLE_INTERVAL = builder.mFPSSampleInterval;
+            Config.FPS_TRACK_PHASES = builder.mFPSTrackPhases;
             FPSTool.start();
         }
         if (builder.mCheckBitmap) {
@@ -210,4 +793,76 @@ public class PERF {
         }
     }
 
+    /**
+     * 获取调用栈的统计信息，按照出现的次数从多到少排序
+     *
+     * @return 调用栈列表
+     */
+    public static List<TraceInfo> traces() {
+        return StackTraceUtils.traces();
+    }
+
+    /**
+     * 获取所有 sink 的统计信息
+     *
+     * @return 统计信息
+     */
+    public static List<SinkStats> sinkStats() {
+        return IssueDispatcher.stats();
+    }
+
+    /**
+     * 获取内存里面保存的最近的 issue ，需要通过 {@link Builder#memoryIssues(int)} 开启
+     *
+     * @return issue 列表，按照时间从旧到新排序
+     */
+    public static List<Issue> recentIssues() {
+        return MemoryIssueSink.recentIssues();
+    }
+
+    /**
+     * 获取按列保存的最近 issue 的查询接口，需要通过 {@link Builder#issueStore(int)} 开启，没有开启的时候查询结果都是空的
+     *
+     * @return 查询接口
+     */
+    public static IssueQuery issueStore() {
+        return IssueStore.query();
+    }
+
+    /**
+     * 获取主线程慢消息的累计耗时，需要开启 UI 检测
+     *
+     * @return 统计列表，按照总耗时从多到少排序
+     */
+    public static List<MessageStat> slowMessages() {
+        return MessageCostTable.stats();
+    }
+
+    /**
+     * 获取主线程消息队列的采样点，需要开启 UI 检测，并且通过 {@link Builder#looperMonitor} 设置采样间隔
+     *
+     * @return 采样点列表，按照时间从旧到新排序
+     */
+    public static List<LooperSample> looperSamples() {
+        return LooperMonitor.samples();
+    }
+
+    /**
+     * 进入一个自定义的场景，比如 Fragment 显示的时候，需要开启 FPS 检测，可以在任意线程调用
+     *
+     * @param scene 场景名
+     */
+    public static void enterScene(String scene) {
+        SceneTracker.enterScene(scene);
+    }
+
+    /**
+     * 离开一个自定义的场景，输出这个场景的帧率统计
+     *
+     * @param scene 场景名
+     */
+    public static void exitScene(String scene) {
+        SceneTracker.exitScene(scene);
+    }
+
 }
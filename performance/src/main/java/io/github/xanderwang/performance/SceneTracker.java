@@ -0,0 +1,275 @@
+package io.github.xanderwang.performance;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 按照场景统计帧率和掉帧。
+ * <p>
+ * 场景有两种：前台的 Activity ，通过 ActivityLifecycleCallbacks 在 resume 的时候进入，pause 的时候离开；
+ * 使用者通过 {@link PERF#enterScene(String)} 和 {@link PERF#exitScene(String)} 标记的场景，比如 Fragment 。
+ * 两种场景可以同时存在，{@link FPSTool} 每一帧都记录到所有正在进行的场景里面。场景离开的时候输出一个 issue ，
+ * 带上场景的时长、帧数、掉帧数量、各个区间的慢帧数量和最慢的几帧。所有的状态只在主线程里面读写。
+ */
+class SceneTracker {
+
+    private static final String TAG = "SceneTracker";
+
+    /**
+     * 每个场景记录最慢的帧的数量
+     */
+    private static final int WORST_FRAME_COUNT = 5;
+
+    private static boolean started = false;
+
+    private static Handler mainHandler;
+
+    private static SceneStats activityScene;
+
+    private static final List<SceneStats> customScenes = new ArrayList<>();
+
+    static void start() {
+        mainHandler = new Handler(Looper.getMainLooper());
+        started = true;
+        Context context = AppHelper.appContext();
+        if (!(context instanceof Application)) {
+            aLog.e(TAG, "no application, activity scene disabled");
+            return;
+        }
+        ((Application) context).registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+                if (null != activityScene) {
+                    flush(activityScene);
+                }
+                activityScene = new SceneStats(activity.getClass().getName(), false);
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+                if (null != activityScene) {
+                    flush(activityScene);
+                    activityScene = null;
+                }
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+            }
+        });
+    }
+
+    /**
+     * 进入一个自定义的场景，同名的场景已经在进行的时候忽略
+     *
+     * @param name 场景名
+     */
+    static void enterScene(final String name) {
+        if (!started || null == name) {
+            return;
+        }
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    enterScene(name);
+                }
+            });
+            return;
+        }
+        if (null != findScene(name)) {
+            return;
+        }
+        customScenes.add(new SceneStats(name, true));
+    }
+
+    /**
+     * 离开一个自定义的场景，输出这个场景的统计
+     *
+     * @param name 场景名
+     */
+    static void exitScene(final String name) {
+        if (!started || null == name) {
+            return;
+        }
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    exitScene(name);
+                }
+            });
+            return;
+        }
+        SceneStats scene = findScene(name);
+        if (null != scene) {
+            customScenes.remove(scene);
+            flush(scene);
+        }
+    }
+
+    private static SceneStats findScene(String name) {
+        for (int i = 0; i < customScenes.size(); i++) {
+            if (customScenes.get(i).name.equals(name)) {
+                return customScenes.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 记录一帧，在 doFrame 里面调用
+     *
+     * @param frameTimeNanos 这一帧的 vsync 时间
+     * @param frameNanos     和上一帧之间的时间，单位 ns
+     * @param costTime       去掉刷新间隔误差之后的帧时间，单位 ms
+     * @param dropped        掉帧数量
+     */
+    static void onFrame(long frameTimeNanos, long frameNanos, long costTime, long dropped) {
+        if (null != activityScene) {
+            activityScene.add(frameTimeNanos, frameNanos, costTime, dropped);
+        }
+        for (int i = 0; i < customScenes.size(); i++) {
+            customScenes.get(i).add(frameTimeNanos, frameNanos, costTime, dropped);
+        }
+    }
+
+    private static void flush(SceneStats scene) {
+        if (scene.frameCount <= 0) {
+            return;
+        }
+        scene.durationTime = SystemClock.uptimeMillis() - scene.startTime;
+        new SceneIssue(scene).print();
+    }
+
+    static class SceneStats {
+
+        final String name;
+
+        final boolean custom;
+
+        final long startTime = SystemClock.uptimeMillis();
+
+        /**
+         * 进入场景的时间，开始时间早于这个时间的帧不属于这个场景
+         */
+        final long startNanos = System.nanoTime();
+
+        long durationTime;
+
+        long frameCount;
+
+        long totalFrameNanos;
+
+        long droppedCount;
+
+        long slowCount;
+
+        long jankCount;
+
+        long frozenCount;
+
+        /**
+         * 最慢的帧，单位 ms ，从大到小排序
+         */
+        final long[] worstFrames = new long[WORST_FRAME_COUNT];
+
+        SceneStats(String name, boolean custom) {
+            this.name = name;
+            this.custom = custom;
+        }
+
+        void add(long frameTimeNanos, long frameNanos, long costTime, long dropped) {
+            if (frameTimeNanos - frameNanos < startNanos) {
+                return;
+            }
+            frameCount++;
+            totalFrameNanos += frameNanos;
+            droppedCount += Math.max(0, dropped);
+            if (costTime >= FPSTool.FROZEN_FRAME_TIME) {
+                frozenCount++;
+            }
+            if (costTime >= FPSTool.JANK_FRAME_TIME) {
+                jankCount++;
+            }
+            if (costTime >= FPSTool.SLOW_FRAME_TIME) {
+                slowCount++;
+            }
+            long frameTime = frameNanos / 1000000L;
+            for (int i = 0; i < worstFrames.length; i++) {
+                if (frameTime > worstFrames[i]) {
+                    System.arraycopy(worstFrames, i, worstFrames, i + 1, worstFrames.length - i - 1);
+                    worstFrames[i] = frameTime;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个场景的帧率统计
+     */
+    static class SceneIssue extends StatsIssue {
+
+        final SceneStats scene;
+
+        SceneIssue(SceneStats scene) {
+            super(Issue.TYPE_FPS, "FPS SCENE " + scene.name);
+            this.scene = scene;
+            this.costTime = scene.worstFrames[0];
+        }
+
+        @Override
+        String key() {
+            return scene.name;
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("scene type", scene.custom ? "custom" : "activity");
+            formatter.field("duration", scene.durationTime);
+            formatter.field("frame count", scene.frameCount);
+            long fps = scene.totalFrameNanos > 0 ? Math.round(scene.frameCount * 1e9 / scene.totalFrameNanos) : 0;
+            formatter.field("fps", fps);
+            formatter.field("dropped frames", scene.droppedCount);
+            formatter.field("frames over " + FPSTool.SLOW_FRAME_TIME + "ms", scene.slowCount);
+            formatter.field("frames over " + FPSTool.JANK_FRAME_TIME + "ms", scene.jankCount);
+            formatter.field("frozen frames", scene.frozenCount);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < scene.worstFrames.length && scene.worstFrames[i] > 0; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(scene.worstFrames[i]);
+            }
+            formatter.field("worst frames", sb.toString());
+        }
+    }
+}
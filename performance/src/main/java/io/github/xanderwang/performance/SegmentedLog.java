@@ -0,0 +1,324 @@
+package io.github.xanderwang.performance;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 分段保存 issue 的 log 文件。
+ * <p>
+ * 除了正在写入的 log 文件，还会提前创建并映射好一个备用的 log 文件，当前文件写满后直接切换到备用文件，
+ * 写线程不需要等待文件的创建和映射。备用文件在归档线程里面创建，写满的文件的压缩、上传以及旧文件的清理
+ * 放到单独的低优先级压缩线程里面执行，不会拖慢备用文件的准备。
+ */
+class SegmentedLog {
+
+    private static final String TAG = "SegmentedLog";
+
+    private static final String ISSUES_CACHE_DIR_NAME = "perf_issues";
+
+    private static final int MAX_CACHE_SIZE = 10 * 1024 * 1024;
+
+    private static File ISSUES_CACHE_DIR;
+
+    private static PERF.IssueSupplier<File> gCacheDirSupplier = new PERF.IssueSupplier<File>() {
+        @Override
+        public File get() {
+            return AppHelper.appContext().getCacheDir();
+        }
+    };
+
+    private static PERF.IssueSupplier<Integer> gMaxCacheSizeSupplier = new PERF.IssueSupplier<Integer>() {
+        @Override
+        public Integer get() {
+            return MAX_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * 为 null 表示没有设置上传器
+     */
+    private static PERF.IssueSupplier<PERF.LogFileUploader> gUploaderSupplier = null;
+
+    /**
+     * 归档线程，负责创建备用文件，需要及时执行，不做耗时的压缩
+     */
+    private static final ExecutorService archiveService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "performance-log-archive");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * 压缩线程，低优先级，负责压缩写满的文件，不影响 issue 的写入和备用文件的创建，
+     * 压缩后的文件交给 {@link UploadScheduler} 上传和清理
+     */
+    private static final ExecutorService compressService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "performance-log-compress");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * 写线程和归档线程都可能用到，使用的时候需要加锁
+     */
+    private static final SimpleDateFormat fileNameFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US);
+
+    private static int segmentSize = Config.LOG_SEGMENT_SIZE;
+
+    private static int segmentCount = Config.LOG_SEGMENT_COUNT;
+
+    /**
+     * 正在写入的文件，只在写线程里面使用
+     */
+    private static LogSegment activeSegment;
+
+    /**
+     * 备用的文件，由归档线程创建，写线程切换文件的时候取走
+     */
+    private static volatile LogSegment spareSegment;
+
+    /**
+     * 初始化
+     *
+     * @param cacheDir        缓存目录
+     * @param maxCacheSize    最大缓存大小
+     * @param logFileUploader 文件上传
+     */
+    static void init(PERF.IssueSupplier<File> cacheDir, PERF.IssueSupplier<Integer> maxCacheSize,
+        PERF.IssueSupplier<PERF.LogFileUploader> logFileUploader) {
+        if (null != cacheDir) {
+            gCacheDirSupplier = cacheDir;
+        }
+        if (null != maxCacheSize) {
+            gMaxCacheSizeSupplier = maxCacheSize;
+        }
+        if (null != logFileUploader) {
+            gUploaderSupplier = logFileUploader;
+        }
+        segmentSize = Math.max(LogSegment.MIN_SEGMENT_SIZE, Math.min(Config.LOG_SEGMENT_SIZE,
+            LogSegment.MAX_SEGMENT_SIZE));
+        segmentCount = Math.max(1, Config.LOG_SEGMENT_COUNT);
+        ISSUES_CACHE_DIR = new File(gCacheDirSupplier.get(), ISSUES_CACHE_DIR_NAME);
+        ISSUES_CACHE_DIR.mkdirs();
+        aLog.e(TAG, "issues save in:%s, segment size:%s, segment count:%s", ISSUES_CACHE_DIR.getAbsolutePath(),
+            segmentSize, segmentCount);
+        UploadScheduler.init(ISSUES_CACHE_DIR, gMaxCacheSizeSupplier, gUploaderSupplier, segmentCount);
+    }
+
+    /**
+     * 获取正在写入的文件，第一次调用的时候会恢复上一次的文件，只能在写线程里面调用
+     *
+     * @return 正在写入的文件，创建失败的时候为 null
+     */
+    static LogSegment activeSegment() {
+        if (null == activeSegment) {
+            recover();
+        }
+        return activeSegment;
+    }
+
+    /**
+     * 切换到备用文件，只能在写线程里面调用
+     *
+     * @return 新的正在写入的文件，创建失败的时候为 null
+     */
+    static LogSegment rollover() {
+        final LogSegment oldSegment = activeSegment;
+        LogSegment nextSegment = spareSegment;
+        spareSegment = null;
+        if (null == nextSegment) {
+            // 备用文件还没有准备好，只能在写线程里面直接创建
+            aLog.w(TAG, "rollover without spare segment");
+            nextSegment = createSegment();
+        }
+        activeSegment = nextSegment;
+        if (null != oldSegment) {
+            compressService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    archiveSegment(oldSegment);
+                }
+            });
+        }
+        prepareSpareSegment();
+        aLog.e(TAG, "rollover to:%s", null == activeSegment ? null : activeSegment.file);
+        return activeSegment;
+    }
+
+    /**
+     * 在归档线程里面准备备用文件
+     */
+    private static void prepareSpareSegment() {
+        archiveService.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (null == spareSegment) {
+                    spareSegment = createSegment();
+                }
+            }
+        });
+    }
+
+    /**
+     * 创建新的 log 文件
+     *
+     * @return log 文件，失败返回 null
+     */
+    private static LogSegment createSegment() {
+        String fileName;
+        synchronized (fileNameFormat) {
+            fileName = "issues_" + fileNameFormat.format(new Date());
+        }
+        File logFile = new File(ISSUES_CACHE_DIR, fileName + ".log");
+        for (int i = 1; logFile.exists(); i++) {
+            logFile = new File(ISSUES_CACHE_DIR, fileName + "_" + i + ".log");
+        }
+        try {
+            LogSegment segment = LogSegment.create(logFile, segmentSize, Config.ISSUE_FORMAT);
+            aLog.e(TAG, "create log file :" + logFile.getAbsolutePath());
+            return segment;
+        } catch (Exception e) {
+            aLog.e(TAG, "createSegment", e);
+            return null;
+        }
+    }
+
+    /**
+     * 恢复上一次的 log 文件。
+     * <p>
+     * 有数据的 log 文件里面，最新的一个继续写入，其他的做压缩处理；没有数据的 log 文件是上一次的备用文件，
+     * 保留一个继续作为备用文件，其他的删除，最后做一次空间清理
+     */
+    private static void recover() {
+        // 压缩后的文件由 UploadScheduler 根据索引处理，这里只需要找出没有压缩的 log 文件，数量不超过几个
+        File[] files = ISSUES_CACHE_DIR.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        });
+        if (null != files) {
+            // 文件名里面包含创建时间，按照文件名倒序，后创建的文件在前面
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File fileA, File fileB) {
+                    return fileB.getName().compareTo(fileA.getName());
+                }
+            });
+            for (int i = 0; i < files.length; i++) {
+                File file = files[i];
+                if (file.isFile()) {
+                    recoverLogFile(file);
+                }
+            }
+        }
+        if (null == activeSegment) {
+            activeSegment = null != spareSegment ? spareSegment : createSegment();
+            spareSegment = null;
+        }
+        aLog.e(TAG, "recover active:%s", null == activeSegment ? null : activeSegment.file);
+        prepareSpareSegment();
+    }
+
+    private static void recoverLogFile(final File file) {
+        boolean hasData = LogSegment.hasData(file);
+        // 旧版本没有分帧的文件不能继续写入，也不能作为备用文件
+        boolean sameFormat = LogSegment.isFramed(file) && LogSegment.readFormat(file) == Config.ISSUE_FORMAT;
+        if (hasData && null == activeSegment && sameFormat && Config.ISSUE_FORMAT == PERF.FORMAT_TEXT) {
+            // 二进制格式的文件依赖写入时的字符串表，不能继续写入，直接归档
+            try {
+                activeSegment = LogSegment.open(file, segmentSize);
+                if (activeSegment.buffer.remaining() > 0) {
+                    return;
+                }
+                // 已经写满了，直接归档
+                activeSegment.close();
+                activeSegment = null;
+            } catch (Exception e) {
+                aLog.e(TAG, "recoverLogFile", e);
+                activeSegment = null;
+            }
+        } else if (!hasData) {
+            if (null == spareSegment && sameFormat) {
+                try {
+                    spareSegment = LogSegment.open(file, segmentSize);
+                    return;
+                } catch (Exception e) {
+                    aLog.e(TAG, "recoverLogFile", e);
+                }
+            }
+            file.delete();
+            return;
+        }
+        compressService.execute(new Runnable() {
+            @Override
+            public void run() {
+                archiveLogFile(file);
+            }
+        });
+    }
+
+    /**
+     * 压缩上一次留下来的 log 文件，在压缩线程里面执行
+     *
+     * @param logFile log 文件
+     */
+    private static void archiveLogFile(File logFile) {
+        LogSegment segment;
+        try {
+            segment = LogSegment.openReadOnly(logFile);
+        } catch (Exception e) {
+            aLog.e(TAG, "archiveLogFile:" + logFile, e);
+            return;
+        }
+        archiveSegment(segment);
+    }
+
+    /**
+     * 压缩 log 文件，压缩成功后删除原始 log 文件，并加入上传队列，在压缩线程里面执行
+     *
+     * @param segment log 文件
+     */
+    private static void archiveSegment(LogSegment segment) {
+        File logFile = segment.file;
+        aLog.e(TAG, "archiveSegment:" + logFile);
+        File archiveFile = null;
+        try {
+            archiveFile = LogCompressor.compress(segment, Config.LOG_COMPRESS_CODEC, Config.LOG_COMPRESS_LEVEL);
+        } catch (Exception e) {
+            aLog.e(TAG, "compress log file:" + logFile.getAbsolutePath(), e);
+        }
+        segment.close();
+        if (null == archiveFile) {
+            return;
+        }
+        logFile.delete();
+        UploadScheduler.enqueue(archiveFile);
+    }
+}
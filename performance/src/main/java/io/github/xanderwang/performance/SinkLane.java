@@ -0,0 +1,149 @@
+package io.github.xanderwang.performance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 一个 {@link PERF.IssueSink} 的异步通道。
+ * <p>
+ * 每个 sink 有自己的有界队列和写线程，按照批量大小取出 issue 交给 sink 处理，
+ * 一个 sink 处理得慢只会导致自己的队列溢出，不会影响其他的 sink ，也不会阻塞产生 issue 的线程。
+ */
+class SinkLane extends Thread implements PERF.SinkStats {
+
+    private static final String TAG = "SinkLane";
+
+    /**
+     * 队列为空时写线程的最长等待时间
+     */
+    private static final long IDLE_PARK_NANOS = 1000 * 1000 * 1000L;
+
+    private final String sinkName;
+
+    private final PERF.IssueSink sink;
+
+    private final IssueRingBuffer ringBuffer;
+
+    private final int overflowPolicy;
+
+    private final int batchSize;
+
+    /**
+     * 写线程是否在等待新的 issue
+     */
+    private volatile boolean writerWaiting = false;
+
+    /**
+     * sink 处理成功的 issue 数量
+     */
+    private final AtomicLong deliveredCount = new AtomicLong();
+
+    /**
+     * sink 处理失败的 issue 数量
+     */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * 处理的批次数量
+     */
+    private final AtomicLong batchCount = new AtomicLong();
+
+    SinkLane(String sinkName, PERF.IssueSink sink, int queueSize, int overflowPolicy, int batchSize) {
+        this.sinkName = sinkName;
+        this.sink = sink;
+        this.ringBuffer = new IssueRingBuffer(queueSize);
+        this.overflowPolicy = overflowPolicy;
+        this.batchSize = Math.max(1, batchSize);
+        setName("performance-sink-" + sinkName);
+        setDaemon(true);
+    }
+
+    /**
+     * 放入待处理的 issue
+     *
+     * @param issue issue
+     */
+    void offer(Issue issue) {
+        if (ringBuffer.put(issue, overflowPolicy) && writerWaiting) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        Issue[] batch = new Issue[batchSize];
+        long reportedDropCount = 0;
+        while (true) {
+            int count = ringBuffer.drain(batch, batchSize);
+            if (count == 0) {
+                writerWaiting = true;
+                if (ringBuffer.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerWaiting = false;
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                Issue issue = batch[i];
+                batch[i] = null;
+                try {
+                    sink.write(issue);
+                    deliveredCount.incrementAndGet();
+                } catch (Throwable t) {
+                    failedCount.incrementAndGet();
+                    aLog.e(TAG, sinkName + " write", t);
+                }
+            }
+            try {
+                sink.flush();
+            } catch (Throwable t) {
+                aLog.e(TAG, sinkName + " flush", t);
+            }
+            batchCount.incrementAndGet();
+            long dropCount = ringBuffer.droppedCount();
+            if (dropCount != reportedDropCount) {
+                reportedDropCount = dropCount;
+                aLog.w(TAG, "%s queue overflow, dropped oldest:%s, dropped newest:%s", sinkName,
+                    ringBuffer.droppedOldestCount(), ringBuffer.droppedNewestCount());
+            }
+        }
+    }
+
+    @Override
+    public String getSinkName() {
+        return sinkName;
+    }
+
+    @Override
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return ringBuffer.droppedCount();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return ringBuffer.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return ringBuffer.capacity();
+    }
+}
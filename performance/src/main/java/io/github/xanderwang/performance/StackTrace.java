@@ -0,0 +1,120 @@
+package io.github.xanderwang.performance;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Xander Wang
+ * @Description 去重后的调用栈。
+ * <p>
+ * 相同的调用栈只保存一份，帧的字符串也是共享的，每次出现只需要更新次数和时间，
+ * 格式化的时候可以只输出编号，不需要每次都输出完整的调用栈。
+ * <p>
+ * 缓存里面的调用栈的次数会一直增加，{@link #seen()} 返回的是这一次出现的调用栈，和缓存共享帧，
+ * 次数和时间固定为出现时的值，多个 sink 在各自的线程里面格式化的时候输出的次数是一样的。
+ */
+class StackTrace extends AbstractList<String> implements PERF.TraceInfo {
+
+    /**
+     * 调用栈的编号，从 1 开始，被淘汰之后编号会给新的调用栈使用，0 表示没有去重
+     */
+    final int id;
+
+    /**
+     * 过滤后的调用栈，用来判断调用栈是否相同
+     */
+    final StackTraceElement[] elements;
+
+    /**
+     * 每一帧对应的字符串，只有通过 {@link #get(int)} 访问的时候才创建，格式化的时候直接使用 {@link #elements}
+     */
+    private final String[] frames;
+
+    /**
+     * 出现的次数，只有缓存里面的调用栈有，出现时的调用栈为 null
+     */
+    private final AtomicInteger count;
+
+    /**
+     * 出现时的次数
+     */
+    private final int seenCount;
+
+    private final long firstSeenTime;
+
+    private volatile long lastSeenTime;
+
+    StackTrace(int id, StackTraceElement[] elements) {
+        this.id = id;
+        this.elements = elements;
+        this.frames = new String[elements.length];
+        this.count = new AtomicInteger();
+        this.seenCount = 0;
+        firstSeenTime = System.currentTimeMillis();
+        lastSeenTime = firstSeenTime;
+    }
+
+    private StackTrace(StackTrace cached, int seenCount, long seenTime) {
+        this.id = cached.id;
+        this.elements = cached.elements;
+        this.frames = cached.frames;
+        this.count = null;
+        this.seenCount = seenCount;
+        this.firstSeenTime = cached.firstSeenTime;
+        this.lastSeenTime = seenTime;
+    }
+
+    /**
+     * 记录出现一次
+     *
+     * @return 这一次出现的调用栈，次数和时间不会再变化
+     */
+    StackTrace seen() {
+        long now = System.currentTimeMillis();
+        int seenCount = count.incrementAndGet();
+        lastSeenTime = now;
+        return new StackTrace(this, seenCount, now);
+    }
+
+    @Override
+    public String get(int index) {
+        String frame = frames[index];
+        if (null == frame) {
+            // 多个线程同时创建的结果是一样的，不需要加锁
+            frame = StackTraceUtils.frameString(elements[index]);
+            frames[index] = frame;
+        }
+        return frame;
+    }
+
+    @Override
+    public int size() {
+        return elements.length;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public int getCount() {
+        return null == count ? seenCount : count.get();
+    }
+
+    @Override
+    public long getFirstSeenTime() {
+        return firstSeenTime;
+    }
+
+    @Override
+    public long getLastSeenTime() {
+        return lastSeenTime;
+    }
+
+    @Override
+    public List<String> getFrames() {
+        return this;
+    }
+}
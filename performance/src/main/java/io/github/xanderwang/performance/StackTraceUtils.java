@@ -1,8 +1,16 @@
 package io.github.xanderwang.performance;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @ProjectName: performace
@@ -15,6 +23,35 @@ import java.util.List;
  */
 class StackTraceUtils {
 
+    private static final String TAG = "StackTraceUtils";
+
+    /**
+     * 调用栈缓存，key 为过滤后的调用栈的 hash
+     */
+    private static final ConcurrentHashMap<Integer, StackTrace> traceCache = new ConcurrentHashMap<>();
+
+    /**
+     * 帧的字符串缓存，相同的帧只拼接一次字符串
+     */
+    private static final ConcurrentHashMap<StackTraceElement, String> frameCache = new ConcurrentHashMap<>();
+
+    /**
+     * 类名是否需要忽略的缓存，避免每一帧都做前缀匹配
+     */
+    private static final ConcurrentHashMap<String, Boolean> ignoreClassCache = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger traceId = new AtomicInteger();
+
+    /**
+     * 被淘汰的调用栈的编号，新的调用栈优先使用，编号的最大值不会超过缓存大小太多
+     */
+    private static final ConcurrentLinkedQueue<Integer> freeTraceIds = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 缓存满了之后每次淘汰的时候检查的调用栈数量，淘汰其中最久没有出现的一个
+     */
+    private static final int EVICT_SAMPLE_SIZE = 8;
+
     private static HashSet<String> IGNORE_CLASS_NAME_SET = new HashSet<>();
     private static ArrayList<String> IGNORE_CLASS_NAME_List = new ArrayList<>();
 
@@ -43,13 +80,24 @@ class StackTraceUtils {
      * @param className
      * @return
      */
-    private static boolean isIgnoreClass(String className) {
+    static boolean isIgnoreClass(String className) {
         if (null == className) {
             return false;
         }
         if (!Config.FILTER_CLASS_NAME) {
             return false;
         }
+        Boolean ignore = ignoreClassCache.get(className);
+        if (null == ignore) {
+            ignore = matchIgnoreClass(className);
+            if (ignoreClassCache.size() < Config.STACK_TRACE_CACHE_SIZE * 4) {
+                ignoreClassCache.put(className, ignore);
+            }
+        }
+        return ignore;
+    }
+
+    private static boolean matchIgnoreClass(String className) {
         if (IGNORE_CLASS_NAME_SET.contains(className)) {
             return true;
         }
@@ -72,28 +120,168 @@ class StackTraceUtils {
     }
 
     public static List<String> list(StackTraceElement[] stackTraceElements) {
-        List<String> list = new ArrayList<>(stackTraceElements.length);
-        StringBuilder stringBuilder = new StringBuilder();
+        return trace(stackTraceElements);
+    }
+
+    /**
+     * 去重后的调用栈，相同的调用栈共享帧，并记录出现的次数
+     *
+     * @param stackTraceElements 原始的调用栈
+     * @return 去重后的调用栈
+     */
+    static StackTrace trace(StackTraceElement[] stackTraceElements) {
+        int hash = 1;
+        int size = 0;
         for (int i = 0, len = stackTraceElements.length; i < len; i++) {
             StackTraceElement element = stackTraceElements[i];
-            String lineLog = stringStackTraceElement(element, stringBuilder);
-            if (null == lineLog) {
+            if (isIgnoreClass(element.getClassName())) {
                 continue;
             }
-            list.add(lineLog);
+            hash = 31 * hash + element.hashCode();
+            size++;
         }
-        return list;
+        StackTrace cached = traceCache.get(hash);
+        if (null != cached && matches(cached, stackTraceElements)) {
+            return cached.seen();
+        }
+        StackTraceElement[] elements = new StackTraceElement[size];
+        for (int i = 0, j = 0, len = stackTraceElements.length; i < len && j < size; i++) {
+            StackTraceElement element = stackTraceElements[i];
+            if (isIgnoreClass(element.getClassName())) {
+                continue;
+            }
+            elements[j++] = element;
+        }
+        if (null != cached) {
+            // hash 冲突的调用栈不放入缓存，也不分配编号，只是不能去重
+            return new StackTrace(0, elements).seen();
+        }
+        if (traceCache.size() >= Config.STACK_TRACE_CACHE_SIZE) {
+            evictTrace();
+        }
+        StackTrace trace = new StackTrace(nextTraceId(), elements);
+        StackTrace previous = traceCache.putIfAbsent(hash, trace);
+        if (null == previous) {
+            return trace.seen();
+        }
+        // 其他线程刚刚放入了调用栈，编号没有用到
+        freeTraceIds.offer(trace.id);
+        if (matches(previous, stackTraceElements)) {
+            return previous.seen();
+        }
+        return new StackTrace(0, elements).seen();
+    }
+
+    private static int nextTraceId() {
+        Integer id = freeTraceIds.poll();
+        return null == id ? traceId.incrementAndGet() : id;
     }
 
-    private static String stringStackTraceElement(StackTraceElement element, StringBuilder stringBuilder) {
-        String className = element.getClassName();
-        if (isIgnoreClass(className)) {
-            return null;
+    /**
+     * 淘汰一个调用栈，从缓存里面随机的位置开始取几个调用栈，淘汰其中最久没有出现的，编号回收给新的调用栈使用。
+     * <p>
+     * 每次都从头开始取的话只会淘汰固定的几个 hash 桶里面的调用栈，随机的起点让每个调用栈被检查的机会相同，
+     * 近似 LRU 。只有缓存满了又出现新的调用栈的时候才会淘汰，跳过的开销不超过缓存大小。
+     */
+    private static void evictTrace() {
+        int size = traceCache.size();
+        if (size <= 0) {
+            return;
+        }
+        Integer eldestKey = null;
+        StackTrace eldest = null;
+        Iterator<Map.Entry<Integer, StackTrace>> iterator = traceCache.entrySet().iterator();
+        int skip = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < skip && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        boolean wrapped = false;
+        for (int i = 0; i < EVICT_SAMPLE_SIZE; i++) {
+            if (!iterator.hasNext()) {
+                if (wrapped) {
+                    break;
+                }
+                // 到了末尾从头继续取
+                wrapped = true;
+                iterator = traceCache.entrySet().iterator();
+                if (!iterator.hasNext()) {
+                    break;
+                }
+            }
+            Map.Entry<Integer, StackTrace> entry = iterator.next();
+            StackTrace trace = entry.getValue();
+            if (null == eldest || trace.getLastSeenTime() < eldest.getLastSeenTime()) {
+                eldestKey = entry.getKey();
+                eldest = trace;
+            }
         }
-        stringBuilder.delete(0, stringBuilder.length());
-        stringBuilder.append(className).append('.').append(element.getMethodName()).append('(')
-            .append(element.getFileName()).append(':').append(element.getLineNumber()).append(')');
-        return stringBuilder.toString();
+        if (null != eldest && traceCache.remove(eldestKey, eldest)) {
+            freeTraceIds.offer(eldest.id);
+        }
+    }
+
+    /**
+     * 原始的调用栈过滤后是否和缓存的调用栈相同
+     *
+     * @param trace              缓存的调用栈
+     * @param stackTraceElements 原始的调用栈
+     * @return true 表示相同
+     */
+    private static boolean matches(StackTrace trace, StackTraceElement[] stackTraceElements) {
+        StackTraceElement[] elements = trace.elements;
+        int j = 0;
+        for (int i = 0, len = stackTraceElements.length; i < len; i++) {
+            StackTraceElement element = stackTraceElements[i];
+            if (isIgnoreClass(element.getClassName())) {
+                continue;
+            }
+            if (j >= elements.length || !elements[j].equals(element)) {
+                return false;
+            }
+            j++;
+        }
+        return j == elements.length;
+    }
+
+    /**
+     * 一帧调用栈对应的字符串，相同的帧共享同一个字符串
+     *
+     * @param element 调用栈的一帧
+     * @return 字符串
+     */
+    static String frameString(StackTraceElement element) {
+        String frame = frameCache.get(element);
+        if (null == frame) {
+            StringBuilder stringBuilder = new StringBuilder(128);
+            stringBuilder.append(element.getClassName()).append('.').append(element.getMethodName()).append('(')
+                .append(element.getFileName()).append(':').append(element.getLineNumber()).append(')');
+            frame = stringBuilder.toString();
+            if (frameCache.size() < Config.STACK_TRACE_CACHE_SIZE * 16) {
+                String previous = frameCache.putIfAbsent(element, frame);
+                if (null != previous) {
+                    frame = previous;
+                }
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * 当前缓存的调用栈，按照出现的次数从多到少排序
+     *
+     * @return 调用栈列表
+     */
+    static List<PERF.TraceInfo> traces() {
+        List<PERF.TraceInfo> list = new ArrayList<PERF.TraceInfo>(traceCache.values());
+        Collections.sort(list, new Comparator<PERF.TraceInfo>() {
+            @Override
+            public int compare(PERF.TraceInfo o1, PERF.TraceInfo o2) {
+                int c1 = o1.getCount();
+                int c2 = o2.getCount();
+                return c1 < c2 ? 1 : (c1 == c2 ? o1.getId() - o2.getId() : -1);
+            }
+        });
+        return list;
     }
 
 }
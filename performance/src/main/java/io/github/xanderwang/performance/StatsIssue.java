@@ -0,0 +1,15 @@
+package io.github.xanderwang.performance;
+
+/**
+ * @author Xander Wang
+ * @Description 定时输出的汇总统计，比如耗时分布、慢消息排行和线程池的任务统计。
+ * <p>
+ * 汇总统计不是一次具体的问题，耗时是一段时间里面的最大值，所以不参与 {@link IssueStore} 的耗时统计，
+ * 输出的频率由各自的周期决定，也不占用 {@link IssueRateLimiter} 里面同类型 issue 的配额。
+ */
+abstract class StatsIssue extends Issue {
+
+    StatsIssue(int type, String msg) {
+        super(type, msg, null);
+    }
+}
@@ -0,0 +1,112 @@
+package io.github.xanderwang.performance;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * @author Xander Wang
+ * @Description 把 issue 格式化为可读的文本，用于 logcat 输出和文本格式的 log 文件。
+ * <p>
+ * 直接按照 UTF-8 编码写入可以重复使用的 byte 数组，调用栈直接从 {@link StackTraceElement} 的字段编码，
+ * 格式化的过程中不创建中间的字符串，只有需要输出到 logcat 的时候才创建一次字符串。
+ */
+class TextIssueFormatter extends IssueFormatter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteArrayBuilder output = new ByteArrayBuilder(4096);
+
+    private final TimestampFormat timestampFormat = new TimestampFormat();
+
+    private String text;
+
+    @Override
+    void begin(Issue issue) {
+        output.reset();
+        text = null;
+        output.writeUtf8("\n=================================================\n");
+        output.writeUtf8("type: ").writeUtf8(Issue.formatType(issue.type)).write('\n');
+        output.writeUtf8("msg: ").writeUtf8(String.valueOf(issue.msg)).write('\n');
+        output.writeUtf8("create time: ");
+        timestampFormat.write(output, issue.createTimeMillis);
+        output.write('\n');
+        if (issue.costTime > 0) {
+            output.writeUtf8("cost time: ").writeDecimal(issue.costTime).writeUtf8(" ms\n");
+        }
+    }
+
+    @Override
+    public void field(String name, Object value) {
+        output.writeUtf8(name).writeUtf8(": ");
+        writeValue(value);
+        output.write('\n');
+    }
+
+    @Override
+    public void field(String name, long value) {
+        output.writeUtf8(name).writeUtf8(": ").writeDecimal(value).write('\n');
+    }
+
+    private void writeValue(Object value) {
+        if (value instanceof CharSequence) {
+            output.writeUtf8((CharSequence) value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            output.writeDecimal(((Number) value).longValue());
+        } else {
+            output.writeUtf8(String.valueOf(value));
+        }
+    }
+
+    @Override
+    public void trace(String name, List<?> frames) {
+        if (frames instanceof StackTrace && ((StackTrace) frames).id > 0) {
+            StackTrace trace = (StackTrace) frames;
+            output.writeUtf8(name).writeUtf8(": trace #").writeDecimal(trace.id);
+            if (!markWritten(trace)) {
+                output.writeUtf8(" seen again ×").writeDecimal(trace.getCount()).write('\n');
+                return;
+            }
+            output.write('\n');
+            StackTraceElement[] elements = trace.elements;
+            for (int i = 0, len = elements.length; i < len; i++) {
+                output.write('\t').writeFrame(elements[i]).write('\n');
+            }
+            return;
+        }
+        output.writeUtf8(name).writeUtf8(":\n");
+        if (null == frames) {
+            return;
+        }
+        for (int i = 0, len = frames.size(); i < len; i++) {
+            output.write('\t');
+            writeValue(frames.get(i));
+            output.write('\n');
+        }
+    }
+
+    @Override
+    void end() {
+    }
+
+    /**
+     * 格式化后的文本，只在输出到 logcat 的时候使用
+     *
+     * @return 文本
+     */
+    String text() {
+        if (null == text) {
+            text = new String(output.array(), 0, output.length(), UTF_8);
+        }
+        return text;
+    }
+
+    @Override
+    byte[] array() {
+        return output.array();
+    }
+
+    @Override
+    int length() {
+        return output.length();
+    }
+}
@@ -0,0 +1,382 @@
+package io.github.xanderwang.performance;
+
+import android.os.Handler;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.xanderwang.asu.aLog;
+import io.github.xanderwang.hook.HookBridge;
+import io.github.xanderwang.hook.core.MethodHook;
+import io.github.xanderwang.hook.core.MethodParam;
+
+/**
+ * @author Xander Wang
+ * @Description 统计线程池里面每个任务的排队时间、执行时间和被拒绝的次数。
+ * <p>
+ * hook ThreadPoolExecutor 的 execute 记录任务入队的时间，beforeExecute 得到排队时间和开始执行的时间，
+ * afterExecute 得到执行时间，reject 统计被拒绝的任务。每个线程池一个 {@link PoolStats} ，排队时间和执行时间
+ * 记录到 {@link LatencyHistogram} 里面，每隔 {@link Config#THREAD_POOL_EXPORT_INTERVAL} 导出一次，
+ * 同时读取线程池当前的队列长度和正在执行的任务数量，带上 {@link ThreadTool} 记录的线程池创建调用栈，
+ * 按照创建调用栈里面第一个不属于 JDK 线程池和 hook 框架的帧聚合。入队时间保存在每个线程池自己的 map 里面，
+ * 不同线程池的任务不会互相竞争同一个锁。这段时间内没有任务的线程池只比较计数，不读取直方图。
+ * <p>
+ * 重写了 beforeExecute 或者 afterExecute 却没有调用 super 的线程池统计不到对应的时间；
+ * ScheduledThreadPoolExecutor 不经过 execute 入队，只统计执行时间。
+ */
+class ThreadPoolMonitor {
+
+    private static final String TAG = "ThreadPoolMonitor";
+
+    /**
+     * 线程池对应的统计，线程池被回收之后自动清理
+     */
+    private static final WeakIdentityMap<Object, PoolStats> poolStatsMap = new WeakIdentityMap<>(32, null);
+
+    /**
+     * 所有的统计，用来定时导出，线程池被回收之后最后导出一次再删除
+     */
+    private static final List<PoolStats> poolStatsList = new CopyOnWriteArrayList<>();
+
+    /**
+     * 计算聚合的 key 的时候跳过的调用栈帧的 class 前缀，其他需要跳过的 class 见 {@link StackTraceUtils#isIgnoreClass(String)}
+     */
+    private static final String[] KEY_SKIP_CLASS_PREFIXES = {
+        "java.util.concurrent.", "java.lang.Thread", "io.github.xanderwang.hook"
+    };
+
+    /**
+     * 当前线程正在执行的任务的开始时间，单位 ns
+     */
+    private static final ThreadLocal<long[]> executeStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private static Handler exportHandler;
+
+    static void start() {
+        if (Config.THREAD_POOL_EXPORT_INTERVAL <= 0) {
+            return;
+        }
+        try {
+            HookBridge.findAndHookMethod(ThreadPoolExecutor.class, "execute", Runnable.class, new ExecuteHook());
+            HookBridge.findAndHookMethod(ThreadPoolExecutor.class, "beforeExecute", Thread.class, Runnable.class,
+                new BeforeExecuteHook());
+            HookBridge.findAndHookMethod(ThreadPoolExecutor.class, "afterExecute", Runnable.class, Throwable.class,
+                new AfterExecuteHook());
+            HookBridge.findAndHookMethod(ThreadPoolExecutor.class, "reject", Runnable.class, new RejectHook());
+        } catch (Throwable t) {
+            aLog.e(TAG, "hook ThreadPoolExecutor", t);
+            return;
+        }
+        exportHandler = new Handler(AppHelper.getPerfLooper());
+        exportHandler.postDelayed(exportRunnable, Config.THREAD_POOL_EXPORT_INTERVAL);
+    }
+
+    private static PoolStats poolStats(Object pool) {
+        PoolStats stats = poolStatsMap.get(pool);
+        if (null == stats) {
+            stats = new PoolStats((ThreadPoolExecutor) pool);
+            PoolStats old = poolStatsMap.putIfAbsent(pool, stats);
+            if (null != old) {
+                return old;
+            }
+            poolStatsList.add(stats);
+        }
+        return stats;
+    }
+
+    private static final Runnable exportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (PoolStats stats : poolStatsList) {
+                try {
+                    stats.export();
+                } catch (Throwable t) {
+                    aLog.e(TAG, "export", t);
+                }
+                if (null == stats.poolRef.get()) {
+                    poolStatsList.remove(stats);
+                }
+            }
+            exportHandler.postDelayed(this, Config.THREAD_POOL_EXPORT_INTERVAL);
+        }
+    };
+
+    static class ExecuteHook extends MethodHook {
+        @Override
+        public void beforeHookedMethod(MethodParam param) throws Throwable {
+            Object task = param.getArgs()[0];
+            if (task instanceof Runnable) {
+                poolStats(param.getThisObject()).enqueueTimes.put((Runnable) task, new long[]{System.nanoTime()});
+            }
+        }
+
+        @Override
+        public void afterHookedMethod(MethodParam param) throws Throwable {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) param.getThisObject();
+            PoolStats stats = poolStats(pool);
+            stats.submitCount.incrementAndGet();
+            // LinkedBlockingQueue 和 SynchronousQueue 的 size 不加锁
+            stats.updatePeakQueueSize(pool.getQueue().size());
+        }
+    }
+
+    static class BeforeExecuteHook extends MethodHook {
+        @Override
+        public void beforeHookedMethod(MethodParam param) throws Throwable {
+            long now = System.nanoTime();
+            Object task = param.getArgs()[1];
+            if (task instanceof Runnable) {
+                PoolStats stats = poolStats(param.getThisObject());
+                long[] enqueueTime = stats.enqueueTimes.remove((Runnable) task);
+                if (null != enqueueTime) {
+                    stats.waitTime.record((now - enqueueTime[0]) / 1000L);
+                }
+            }
+            executeStart.get()[0] = now;
+        }
+    }
+
+    static class AfterExecuteHook extends MethodHook {
+        @Override
+        public void beforeHookedMethod(MethodParam param) throws Throwable {
+            long[] start = executeStart.get();
+            if (start[0] <= 0) {
+                return;
+            }
+            PoolStats stats = poolStats(param.getThisObject());
+            stats.executeTime.record((System.nanoTime() - start[0]) / 1000L);
+            stats.executeCount.incrementAndGet();
+            if (null != param.getArgs()[1]) {
+                stats.failedCount.incrementAndGet();
+            }
+            start[0] = 0;
+        }
+    }
+
+    static class RejectHook extends MethodHook {
+        @Override
+        public void beforeHookedMethod(MethodParam param) throws Throwable {
+            PoolStats stats = poolStats(param.getThisObject());
+            Object task = param.getArgs()[0];
+            if (task instanceof Runnable) {
+                stats.enqueueTimes.remove((Runnable) task);
+            }
+            stats.rejectCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 聚合用的创建位置：创建调用栈里面第一个不属于 JDK 线程池、Thread 和 hook 框架的帧
+     *
+     * @param createTrace 线程池的创建调用栈
+     * @return 调用栈帧，没有的时候返回 null
+     */
+    static String createSite(List<String> createTrace) {
+        if (null == createTrace) {
+            return null;
+        }
+        for (int i = 0, len = createTrace.size(); i < len; i++) {
+            String frame = createTrace.get(i);
+            int paren = frame.indexOf('(');
+            int dot = frame.lastIndexOf('.', paren < 0 ? frame.length() : paren);
+            String className = dot > 0 ? frame.substring(0, dot) : frame;
+            if (!isKeySkipClass(className) && !StackTraceUtils.isIgnoreClass(className)) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isKeySkipClass(String className) {
+        for (int i = 0; i < KEY_SKIP_CLASS_PREFIXES.length; i++) {
+            if (className.startsWith(KEY_SKIP_CLASS_PREFIXES[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 一个线程池的统计，不能强引用线程池
+     */
+    static class PoolStats {
+
+        final WeakReference<ThreadPoolExecutor> poolRef;
+
+        final String poolClassName;
+
+        /**
+         * 任务入队的时间，单位 ns ，任务开始执行或者被拒绝的时候删除
+         */
+        final WeakIdentityMap<Runnable, long[]> enqueueTimes = new WeakIdentityMap<>();
+
+        /**
+         * 单位 us
+         */
+        final LatencyHistogram waitTime = new LatencyHistogram("wait");
+
+        final LatencyHistogram executeTime = new LatencyHistogram("execute");
+
+        final AtomicLong submitCount = new AtomicLong();
+
+        final AtomicLong rejectCount = new AtomicLong();
+
+        final AtomicLong failedCount = new AtomicLong();
+
+        /**
+         * 执行完的任务数量，ScheduledThreadPoolExecutor 的任务不经过 execute ，用来判断这段时间内有没有任务
+         */
+        final AtomicLong executeCount = new AtomicLong();
+
+        final AtomicLong peakQueueSize = new AtomicLong();
+
+        /**
+         * 上一次导出时的计数，只在导出的线程里面使用
+         */
+        private long lastSubmitCount;
+
+        private long lastRejectCount;
+
+        private long lastFailedCount;
+
+        private long lastExecuteCount;
+
+        /**
+         * 创建位置，只在导出的线程里面使用
+         */
+        private String createSite;
+
+        PoolStats(ThreadPoolExecutor pool) {
+            this.poolRef = new WeakReference<>(pool);
+            this.poolClassName = pool.getClass().getName();
+        }
+
+        void updatePeakQueueSize(long queueSize) {
+            long peak = peakQueueSize.get();
+            while (queueSize > peak && !peakQueueSize.compareAndSet(peak, queueSize)) {
+                peak = peakQueueSize.get();
+            }
+        }
+
+        void export() {
+            long submit = submitCount.get();
+            long reject = rejectCount.get();
+            long executed = executeCount.get();
+            if (submit == lastSubmitCount && reject == lastRejectCount && executed == lastExecuteCount) {
+                // 这段时间内没有任务，不读取直方图。开始执行还没有结束的任务的排队时间在下一次有任务的时候导出
+                return;
+            }
+            lastExecuteCount = executed;
+            long failed = failedCount.get();
+            LatencyHistogram.Snapshot wait = waitTime.snapshot();
+            LatencyHistogram.Snapshot execute = executeTime.snapshot();
+            ThreadPoolStatsIssue issue = new ThreadPoolStatsIssue(this, wait, execute);
+            issue.submitCount = submit - lastSubmitCount;
+            issue.rejectCount = reject - lastRejectCount;
+            issue.failedCount = failed - lastFailedCount;
+            lastSubmitCount = submit;
+            lastRejectCount = reject;
+            lastFailedCount = failed;
+            issue.peakQueueSize = peakQueueSize.getAndSet(0);
+            ThreadPoolExecutor pool = poolRef.get();
+            if (null != pool) {
+                issue.queueSize = pool.getQueue().size();
+                issue.activeCount = pool.getActiveCount();
+                issue.poolSize = pool.getPoolSize();
+                ThreadTool.ThreadPoolIssue poolIssue = ThreadTool.threadPoolMap.get(pool);
+                if (null != poolIssue) {
+                    issue.createTrace = poolIssue.createTrace;
+                    if (null == createSite) {
+                        createSite = createSite(poolIssue.createTrace);
+                    }
+                }
+            }
+            issue.createSite = createSite;
+            issue.costTime = wait.maxValue / 1000L;
+            issue.print();
+        }
+    }
+
+    /**
+     * 一段时间内一个线程池的任务统计，时间单位 us
+     */
+    static class ThreadPoolStatsIssue extends StatsIssue {
+
+        final PoolStats stats;
+
+        final LatencyHistogram.Snapshot wait;
+
+        final LatencyHistogram.Snapshot execute;
+
+        long submitCount;
+
+        long rejectCount;
+
+        long failedCount;
+
+        long peakQueueSize;
+
+        int queueSize = -1;
+
+        int activeCount = -1;
+
+        int poolSize = -1;
+
+        List<String> createTrace;
+
+        String createSite;
+
+        ThreadPoolStatsIssue(PoolStats stats, LatencyHistogram.Snapshot wait, LatencyHistogram.Snapshot execute) {
+            super(Issue.TYPE_THREAD, "THREAD POOL STATS");
+            this.stats = stats;
+            this.wait = wait;
+            this.execute = execute;
+        }
+
+        /**
+         * 按照线程池的创建位置聚合，没有创建调用栈的时候按照线程池的类名
+         */
+        @Override
+        String key() {
+            return null == createSite ? stats.poolClassName : createSite;
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("thread pool", stats.poolClassName);
+            formatter.field("window time", Config.THREAD_POOL_EXPORT_INTERVAL);
+            formatter.field("submit count", submitCount);
+            formatter.field("reject count", rejectCount);
+            formatter.field("failed count", failedCount);
+            formatter.field("queue size", queueSize);
+            formatter.field("peak queue size", peakQueueSize);
+            formatter.field("active count", activeCount);
+            formatter.field("pool size", poolSize);
+            format(formatter, wait);
+            format(formatter, execute);
+            if (null != createTrace) {
+                formatter.trace("thread pool create trace", createTrace);
+            }
+        }
+
+        private static void format(IssueFormatter formatter, LatencyHistogram.Snapshot snapshot) {
+            if (snapshot.count <= 0) {
+                return;
+            }
+            formatter.field(snapshot.name + " count", snapshot.count);
+            formatter.field(snapshot.name + " mean(us)", snapshot.mean());
+            formatter.field(snapshot.name + " p50(us)", snapshot.percentile(50));
+            formatter.field(snapshot.name + " p90(us)", snapshot.percentile(90));
+            formatter.field(snapshot.name + " p99(us)", snapshot.percentile(99));
+            formatter.field(snapshot.name + " max(us)", snapshot.maxValue);
+        }
+    }
+}
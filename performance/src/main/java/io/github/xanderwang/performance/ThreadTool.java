@@ -1,23 +1,18 @@
 package io.github.xanderwang.performance;
 
-import android.os.Handler;
 import android.os.Looper;
-import android.text.TextUtils;
 
 import io.github.xanderwang.asu.aLog;
 import io.github.xanderwang.hook.HookBridge;
 import io.github.xanderwang.hook.core.MethodHook;
 import io.github.xanderwang.hook.core.MethodParam;
 
-import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadPoolExecutor;
 
 /**
@@ -40,8 +35,7 @@ class ThreadTool {
     private static final String TAG = "ThreadTool";
 
     static class ThreadIssue extends Issue {
-        String key; // 线程 key ，线程实例的 hashCode
-        String threadPoolKey; // 与之对应的线程池的 key ,如果不是线程池创建的线程，取值为 null
+        ThreadPoolIssue threadPool; // 与之对应的线程池的信息，如果不是线程池创建的线程，取值为 null
         boolean lostCreateTrace = false; // 是否丢失创建实例调用栈，如果库初始化比较晚，可能会出现没有创建实例调用栈
         String threadName;
         List<String> createTrace; // 创建实例调用栈
@@ -52,19 +46,16 @@ class ThreadTool {
         }
 
         @Override
-        protected void formatExtraInfo(StringBuilder sb) {
-            sb.append("thread name: ").append(threadName).append("\n");
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("thread name", threadName);
             if (!lostCreateTrace) {
-                sb.append("thread create trace:\n");
-                formatList(sb, createTrace);
+                formatter.trace("thread create trace", createTrace);
             }
-            sb.append("thread start trace:\n");
-            formatList(sb, startTrace);
+            formatter.trace("thread start trace", startTrace);
         }
     }
 
     static class ThreadPoolIssue extends Issue {
-        String key; // 线程池 key ，线程池实例的 hashCode
         boolean lostCreateTrace = false; // 是否丢失创建线程池实例的调用栈，如果库初始化比较晚，可能会出现没有创建实例调用栈
         List<String> createTrace; // 创建线程池实例的调用栈
         List<ThreadIssue> childThreadList = new ArrayList<>(); // 创建的线程，如果线程销毁后，会自动删除
@@ -74,14 +65,13 @@ class ThreadTool {
         }
 
         @Override
-        protected void formatExtraInfo(StringBuilder sb) {
+        protected void formatExtraInfo(IssueFormatter formatter) {
             if (!lostCreateTrace) {
-                sb.append("thread pool create trace:\n");
+                formatter.trace("thread pool create trace", createTrace);
             } else {
                 // 这种情况下，用某个线程的创建栈来代替，尽量输出一些信息
-                sb.append("one thread create trace:\n");
+                formatter.trace("one thread create trace", createTrace);
             }
-            formatList(sb, createTrace);
         }
 
         void removeThreadInfo(ThreadIssue threadIssues) {
@@ -109,159 +99,172 @@ class ThreadTool {
         }
 
         @Override
-        protected void formatExtraInfo(StringBuilder sb) {
-            sb.append("thread name: ").append(threadName).append("\n");
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("thread name", threadName);
         }
     }
 
     /**
-     * thread 的信息，包括线程池里面创建的，可以通过 ThreadInfo.threadPoolInfoKey 字段判断是否为线程池创建
+     * thread 的信息，包括线程池里面创建的，可以通过 ThreadIssue.threadPool 字段判断是否为线程池创建。
+     * 下面的 map 都按照对象的 identity 弱引用 key ，没有通过 run 方法结束的线程被回收之后也会清理
      */
-    static ConcurrentHashMap<String, ThreadIssue> threadMap = new ConcurrentHashMap<>(64);
+    static WeakIdentityMap<Thread, ThreadIssue> threadMap = new WeakIdentityMap<>(64,
+        new WeakIdentityMap.RemovalListener<ThreadIssue>() {
+            @Override
+            public void onRemoved(ThreadIssue threadInfo) {
+                removeFromThreadPool(threadInfo);
+            }
+        });
 
     /**
-     * 线程池信息
+     * 线程池信息，线程池被回收之后自动清理
      */
-    static ConcurrentHashMap<String, ThreadPoolIssue> threadPoolMap = new ConcurrentHashMap<>(32);
+    static WeakIdentityMap<Object, ThreadPoolIssue> threadPoolMap = new WeakIdentityMap<>(32, null);
 
     /**
      * worker 和 thread pool 的关联，用于绑定 thread 和 thread pool 的关联
      */
-    static ConcurrentHashMap<String, String> workerThreadPoolMap = new ConcurrentHashMap<>(32);
+    static WeakIdentityMap<Object, Object> workerThreadPoolMap = new WeakIdentityMap<>(32, null);
 
     static Field THREAD_TARGET = null;
 
     static Field WORKER_THREAD = null;
 
-    static Handler threadTraceHandler; // 主线程阻塞的话，可能会导致实际执行时刻和期望执行时刻不同步
+    /**
+     * 线程执行超时的检测，在共享的 watchdog 线程里面运行，不受主线程和 perf 线程阻塞的影响
+     */
+    static TimingWheel threadRunWheel;
 
-    static Map<String, DumpThreadTraceTask> dumpTaskMap = new HashMap<>();
+    /**
+     * 每个线程当前的执行超时，只在线程自己里面读写，不需要加锁
+     */
+    static final ThreadLocal<TimingWheel.Timeout> threadRunTimeout = new ThreadLocal<>();
 
     /**
      * 保存线程池创建信息
      *
-     * @param threadPoolKey
+     * @param threadPool
      * @param msg
      * @param createTrace
      */
-    private static void saveThreadPoolCreateInfo(String threadPoolKey, String msg, StackTraceElement[] createTrace) {
-        if (threadPoolMap.containsKey(threadPoolKey)) {
+    private static void saveThreadPoolCreateInfo(Object threadPool, String msg, StackTraceElement[] createTrace) {
+        if (threadPoolMap.containsKey(threadPool)) {
             return;
         }
         // 开始记录信息
         ThreadPoolIssue threadPoolIssues = new ThreadPoolIssue(msg);
-        threadPoolIssues.key = threadPoolKey;
         threadPoolIssues.createTrace = StackTraceUtils.list(createTrace);
-        threadPoolMap.put(threadPoolKey, threadPoolIssues);
-        threadPoolIssues.print();
+        if (null != threadPoolMap.putIfAbsent(threadPool, threadPoolIssues)) {
+            return;
+        }
+        if (IssueRateLimiter.tryAcquire(Issue.TYPE_THREAD)) {
+            threadPoolIssues.print();
+        }
     }
 
     /**
      * 关联线程池和 worker
      *
-     * @param threadPoolKey
-     * @param workerKey
+     * @param threadPool
+     * @param worker
      */
-    private static void linkThreadPoolAndWorker(String threadPoolKey, String workerKey) {
-        workerThreadPoolMap.put(workerKey, threadPoolKey);
+    private static void linkThreadPoolAndWorker(Object threadPool, Object worker) {
+        workerThreadPoolMap.put(worker, threadPool);
     }
 
     /**
      * 线程的创建信息，这个暂时可以不用关系，因为后续会关心 start
      *
-     * @param threadKey
-     * @param workerKey
+     * @param thread
+     * @param worker
      * @param createTrace
      */
     @Deprecated
-    private static void saveThreadCreateInfo(String threadKey, String workerKey, StackTraceElement[] createTrace) {
+    private static void saveThreadCreateInfo(Thread thread, Object worker, StackTraceElement[] createTrace) {
         ThreadIssue threadInfo = new ThreadIssue("THREAD CREATE");
-        threadInfo.key = threadKey;
         threadInfo.createTrace = StackTraceUtils.list(createTrace);
-        boolean isInThreadPool = workerThreadPoolMap.containsKey(workerKey);
+        Object threadPool = null == worker ? null : workerThreadPoolMap.get(worker);
+        boolean isInThreadPool = null != threadPool;
         aLog.w(TAG, "saveThreadCreateInfo: is in thread pool:%s", isInThreadPool);
         // aLog.d(TAG, "saveThreadCreateInfo: createTrace:%s", StackTraceUtils.list(createTrace));
         if (isInThreadPool) {
             // 线程池创建的线程
-            String threadPoolKey = workerThreadPoolMap.get(workerKey);
-            ThreadPoolIssue threadPoolInfo = threadPoolMap.get(threadPoolKey);
+            ThreadPoolIssue threadPoolInfo = threadPoolMap.get(threadPool);
             if (threadPoolInfo == null) {
                 // 部分情况下，比如库初始化的比较晚，部分线程池已经创建了，就会出现线程创建时没有对应的线程池
                 // 这里用线程的创建调用链来代替线程池的创建调用链，多少有些参考价值
                 threadPoolInfo = new ThreadPoolIssue("THREAD POOL LOST CREATE INFO!!!");
-                threadPoolInfo.key = threadPoolKey;
                 threadPoolInfo.lostCreateTrace = true;
                 threadPoolInfo.createTrace = StackTraceUtils.list(createTrace);
-                threadPoolMap.put(threadPoolKey, threadPoolInfo);
+                threadPoolMap.put(threadPool, threadPoolInfo);
                 threadPoolInfo.print();
             }
-            threadInfo.threadPoolKey = threadPoolKey;
+            threadInfo.threadPool = threadPoolInfo;
             threadPoolInfo.addThreadInfo(threadInfo);
             // 建立 thread 和 thread pool 的关联后，断开 worker 和 thread pool 的关联
             // 因为，Worker 只创建一个 Thread
-            workerThreadPoolMap.remove(workerKey);
+            workerThreadPoolMap.remove(worker);
         }
         // 需要？
-        threadMap.put(threadKey, threadInfo);
+        threadMap.put(thread, threadInfo);
     }
 
     /**
      * 关联线程池和线程池创建的线程
      *
-     * @param threadKey
-     * @param workerKey
+     * @param thread
+     * @param worker
      * @param createTrace
      */
-    private static void linkThreadAndThreadPool(String threadKey, String workerKey, StackTraceElement[] createTrace) {
+    private static void linkThreadAndThreadPool(Thread thread, Object worker, StackTraceElement[] createTrace) {
         ThreadIssue threadInfo = new ThreadIssue("THREAD CREATE");
         threadInfo.lostCreateTrace = true;
-        threadInfo.key = threadKey;
-        boolean isInThreadPool = workerThreadPoolMap.containsKey(workerKey);
+        Object threadPool = workerThreadPoolMap.get(worker);
+        boolean isInThreadPool = null != threadPool;
         aLog.w(TAG, "linkThreadAndThreadPool: thread is in thread pool:%s", isInThreadPool);
         if (isInThreadPool) {
             // 线程池创建的线程
-            String threadPoolKey = workerThreadPoolMap.get(workerKey);
-            ThreadPoolIssue threadPoolInfo = threadPoolMap.get(threadPoolKey);
+            ThreadPoolIssue threadPoolInfo = threadPoolMap.get(threadPool);
             if (threadPoolInfo == null) {
                 // 部分情况下，比如库初始化的比较晚，部分线程池已经创建了，就会出现线程创建时没有对应的线程池
                 // 这里用线程的创建调用链来代替线程池的创建调用链，多少有些参考价值
                 threadPoolInfo = new ThreadPoolIssue("THREAD POOL LOST CREATE INFO!!!");
-                threadPoolInfo.key = threadPoolKey;
                 threadPoolInfo.lostCreateTrace = true;
                 if (null != createTrace) {
                     threadPoolInfo.createTrace = StackTraceUtils.list(createTrace);
                 }
-                threadPoolMap.put(threadPoolKey, threadPoolInfo);
+                threadPoolMap.put(threadPool, threadPoolInfo);
                 threadPoolInfo.print();
             }
-            threadInfo.threadPoolKey = threadPoolKey;
+            threadInfo.threadPool = threadPoolInfo;
             threadPoolInfo.addThreadInfo(threadInfo);
             // 建立 thread 和 thread pool 的关联后，断开 worker 和 thread pool 的关联
             // 因为，Worker 只创建一个 Thread
-            workerThreadPoolMap.remove(workerKey);
+            workerThreadPoolMap.remove(worker);
         }
-        threadMap.put(threadKey, threadInfo);
+        threadMap.put(thread, threadInfo);
     }
 
     /**
      * 线程启动了
      *
-     * @param threadKey
-     * @param threadName
+     * @param thread
      * @param startTrace
      */
-    private static void saveStartThreadInfo(String threadKey, String threadName, StackTraceElement[] startTrace) {
-        ThreadIssue threadInfo = threadMap.get(threadKey);
+    private static void saveStartThreadInfo(Thread thread, StackTraceElement[] startTrace) {
+        ThreadIssue threadInfo = threadMap.get(thread);
         if (null == threadInfo) {
             aLog.e(TAG, "can not find thread info when thread start !!!!!!");
             threadInfo = new ThreadIssue("THREAD CREATE LOST CREATE INFO");
-            threadInfo.key = threadKey;
             threadInfo.lostCreateTrace = true;
-            threadMap.put(threadKey, threadInfo);
+            threadMap.put(thread, threadInfo);
         }
-        threadInfo.threadName = threadName;
-        if (TextUtils.isEmpty(threadInfo.threadPoolKey)) {
+        threadInfo.threadName = thread.getName();
+        if (null == threadInfo.threadPool) {
             // 非线程池创建的线程才打印启动堆栈
+            if (!IssueRateLimiter.tryAcquire(Issue.TYPE_THREAD)) {
+                return;
+            }
             threadInfo.startTrace = StackTraceUtils.list(startTrace);
             threadInfo.print();
         } else {
@@ -273,30 +276,29 @@ class ThreadTool {
     /**
      * 清除一些信息
      *
-     * @param threadKey
+     * @param thread
      */
-    private static void clearInfoWhenExitThread(String threadKey) {
-        aLog.d(TAG, "clear info when exit thread, threadKey:%s", threadKey);
-        ThreadIssue threadInfo = threadMap.remove(threadKey);
+    private static void clearInfoWhenExitThread(Thread thread) {
+        ThreadIssue threadInfo = threadMap.remove(thread);
         if (null == threadInfo) {
             aLog.e(TAG, "can not find thread info when exit thread!!!");
             return;
         }
         aLog.e(TAG, "clear info when exit thread, thread name:%s", threadInfo.threadName);
         aLog.e(TAG, "clear info when exit thread, running thread count:%s", threadMap.size());
-        if (TextUtils.isEmpty(threadInfo.threadPoolKey)) {
-            return;
-        }
-        ThreadPoolIssue threadPool = threadPoolMap.get(threadInfo.threadPoolKey);
-        if (null == threadPool) {
-            aLog.e(TAG, "can not find thread pool info when exit thread!!!");
-            return;
-        }
-        threadPool.removeThreadInfo(threadInfo);
-        if (threadPool.isEmpty()) {
-            threadPoolMap.remove(threadInfo.threadPoolKey);
+        removeFromThreadPool(threadInfo);
+    }
+
+    /**
+     * 线程结束或者线程对象被回收之后，从线程池的信息里面删除。线程池的信息跟着线程池对象一起回收，
+     * 线程池里面暂时没有线程的时候不删除，之后再创建线程的时候还可以找到线程池的创建调用栈
+     *
+     * @param threadInfo
+     */
+    private static void removeFromThreadPool(ThreadIssue threadInfo) {
+        if (null != threadInfo.threadPool) {
+            threadInfo.threadPool.removeThreadInfo(threadInfo);
         }
-        aLog.e(TAG, "clear info when exit thread, thread pool count:%s", threadPoolMap.size());
     }
 
     /**
@@ -308,18 +310,15 @@ class ThreadTool {
         if (null == thread) {
             return;
         }
-        String threadKey = Integer.toHexString(thread.hashCode());
-        if (dumpTaskMap.containsKey(threadKey)) {
-            // 这种情况会在 kt 里面创建线程的时候发生，目前发现到的是 kt 代码创建的线程貌似会缓存起来。
-            // kt 创建的线程的 `run 的方法块`执行完后，不会立即结束 thread 的 run 方法。 kt 会缓存线程下来。
-            // 所以如果是 kt 的线程`run 的方法块`执行了，就移除之前的信息，保证准确性。
-            DumpThreadTraceTask oldTask = dumpTaskMap.remove(threadKey);
-            threadTraceHandler.removeCallbacks(oldTask);
+        // 这种情况会在 kt 里面创建线程的时候发生，目前发现到的是 kt 代码创建的线程貌似会缓存起来。
+        // kt 创建的线程的 `run 的方法块`执行完后，不会立即结束 thread 的 run 方法。 kt 会缓存线程下来。
+        // 所以如果是 kt 的线程`run 的方法块`执行了，就移除之前的信息，保证准确性。
+        TimingWheel.Timeout oldTimeout = threadRunTimeout.get();
+        if (null != oldTimeout) {
+            oldTimeout.cancel();
         }
         DumpThreadTraceTask dumpTask = new DumpThreadTraceTask(Thread.currentThread());
-        dumpTaskMap.put(threadKey, dumpTask);
-        threadTraceHandler.postDelayed(dumpTask, Config.THREAD_BLOCK_TIME);
-        aLog.e(TAG, "threadRunStart:dumpTaskMap size:%s,delayTime:%s", dumpTaskMap.size(), Config.THREAD_BLOCK_TIME);
+        threadRunTimeout.set(threadRunWheel.schedule(dumpTask, Config.THREAD_BLOCK_TIME));
     }
 
     /**
@@ -331,12 +330,13 @@ class ThreadTool {
         if (null == thread) {
             return;
         }
-        String threadKey = Integer.toHexString(thread.hashCode());
-        DumpThreadTraceTask dumpTask = dumpTaskMap.remove(threadKey);
-        threadTraceHandler.removeCallbacks(dumpTask);
-        if (null == dumpTask) {
+        TimingWheel.Timeout timeout = threadRunTimeout.get();
+        if (null == timeout) {
             aLog.e(TAG, "RunnableRunHook afterHookedMethod null task!!!", new Throwable());
+            return;
         }
+        timeout.cancel();
+        threadRunTimeout.set(null);
     }
 
     /**
@@ -344,6 +344,9 @@ class ThreadTool {
      */
     private static void threadPriorityChanged() {
         //Priority
+        if (!IssueRateLimiter.tryAcquire(Issue.TYPE_THREAD)) {
+            return;
+        }
         ThreadTraceIssue traceIssue = new ThreadTraceIssue("THREAD PRIORITY CHANGED TRACE",
             StackTraceUtils.list(Thread.currentThread()));
         traceIssue.threadName = Thread.currentThread().getName();
@@ -352,8 +355,12 @@ class ThreadTool {
 
     static void init() {
         aLog.e(TAG, "init");
-        threadTraceHandler = new Handler(AppHelper.getPerfLooper());
+        // 超时的误差不超过一个 tick ，格子的数量覆盖一个超时时间，正常情况下超时不需要绕圈
+        long tickMillis = Math.max(10L, Config.THREAD_BLOCK_TIME / 16);
+        threadRunWheel = new TimingWheel("thread-run", tickMillis, (int) (Config.THREAD_BLOCK_TIME / tickMillis) + 1);
+        Watchdog.register(threadRunWheel);
         hookThread();
+        ThreadPoolMonitor.start();
     }
 
     public static void hookThread() {
@@ -419,14 +426,13 @@ class ThreadTool {
         @Override
         public void beforeHookedMethod(MethodParam param) throws Throwable {
             Object threadPool = param.getThisObject();
-            String threadPoolInfoKey = Integer.toHexString(threadPool.hashCode());
             aLog.e(TAG, "ThreadPoolExecutorConstructorHook beforeHookedMethod:%s", Arrays.toString(param.getArgs()));
             // aLog.d(
             //     TAG,
             //     "ThreadPoolExecutorConstructorHook beforeHookedMethod threadPoolInfoKey:%s",
-            //     threadPoolInfoKey
+            //     threadPool
             // );
-            saveThreadPoolCreateInfo(threadPoolInfoKey, "THREAD POOL CREATE", new Throwable().getStackTrace());
+            saveThreadPoolCreateInfo(threadPool, "THREAD POOL CREATE", new Throwable().getStackTrace());
         }
     }
 
@@ -434,11 +440,7 @@ class ThreadTool {
         @Override
         public void beforeHookedMethod(MethodParam param) throws Throwable {
             // aLog.w(TAG, "WorkerConstructorHook beforeHookedMethod:%s", Arrays.toString(param.getArgs()));
-            String workerKey = Integer.toHexString(param.getThisObject().hashCode());
-            String threadPoolKey = Integer.toHexString(param.getArgs()[0].hashCode());
-            // aLog.w(TAG, "WorkerConstructorHook beforeHookedMethod workerKey: %s", workerKey);
-            // aLog.w(TAG, "WorkerConstructorHook beforeHookedMethod threadPoolKey:%s", threadPoolKey);
-            linkThreadPoolAndWorker(threadPoolKey, workerKey);
+            linkThreadPoolAndWorker(param.getArgs()[0], param.getThisObject());
         }
 
         @Override
@@ -448,10 +450,8 @@ class ThreadTool {
             if (null != WORKER_THREAD) {
                 WORKER_THREAD.setAccessible(true);
                 Object thread = WORKER_THREAD.get(param.getThisObject());
-                if (thread != null) {
-                    String threadKey = Integer.toHexString(thread.hashCode());
-                    String workerKey = Integer.toHexString(param.getThisObject().hashCode());
-                    linkThreadAndThreadPool(threadKey, workerKey, null);
+                if (thread instanceof Thread) {
+                    linkThreadAndThreadPool((Thread) thread, param.getThisObject(), null);
                 }
             } else {
                 aLog.e(TAG, "WorkerConstructorHook afterHookedMethod WORKER_THREAD is null!!!");
@@ -465,20 +465,18 @@ class ThreadTool {
         public void afterHookedMethod(MethodParam param) throws Throwable {
             aLog.d(TAG, "ThreadConstructorHook afterHookedMethod:%s", Arrays.toString(param.getArgs()));
             Thread cThread = (Thread) param.getThisObject();
-            String threadKey = Integer.toHexString(cThread.hashCode());
-            // 获取 workerKey
-            String workerKey = "";
+            // 获取 worker
+            Object worker = null;
             Object[] args = param.getArgs();
             for (int i = 0; i < args.length; i++) {
                 String argClassName = args[i].getClass().getName();
                 //         aLog.e(TAG, "ThreadConstructorHook afterHookedMethod arg class name:%s", argClassName);
                 if ("java.util.concurrent.ThreadPoolExecutor$Worker".equals(argClassName)) {
                     aLog.w(TAG, "ThreadConstructorHook afterHookedMethod find worker");
-                    workerKey = Integer.toHexString(args[i].hashCode());
+                    worker = args[i];
                 }
             }
-            aLog.w(TAG, "ThreadConstructorHook afterHookedMethod workerKey:%s", workerKey);
-            saveThreadCreateInfo(threadKey, workerKey, new Throwable().getStackTrace());
+            saveThreadCreateInfo(cThread, worker, new Throwable().getStackTrace());
         }
     }
 
@@ -513,8 +511,7 @@ class ThreadTool {
             // aLog.d(TAG, "ThreadStartHook afterHookedMethod:%s", Arrays.toString(param.getArgs()));
             Thread cThread = (Thread) param.getThisObject();
             // Thread cThread = Thread.currentThread();
-            String threadKey = Integer.toHexString(cThread.hashCode());
-            saveStartThreadInfo(threadKey, cThread.getName(), new Throwable().getStackTrace());
+            saveStartThreadInfo(cThread, new Throwable().getStackTrace());
         }
     }
 
@@ -537,8 +534,7 @@ class ThreadTool {
             // super.afterHookedMethod(param);
             Thread cThread = (Thread) param.getThisObject();
             threadRunEnd(cThread);
-            String threadKey = Integer.toHexString(cThread.hashCode());
-            clearInfoWhenExitThread(threadKey);
+            clearInfoWhenExitThread(cThread);
         }
     }
 
@@ -593,10 +589,11 @@ class ThreadTool {
      */
     static class DumpThreadTraceTask implements Runnable {
 
-        SoftReference<Thread> threadRef;
+        // 弱引用，时间轮里面的任务不能阻止线程对象被回收
+        WeakReference<Thread> threadRef;
 
         public DumpThreadTraceTask(Thread thread) {
-            this.threadRef = new SoftReference<>(thread);
+            this.threadRef = new WeakReference<>(thread);
         }
 
         @Override
@@ -609,6 +606,10 @@ class ThreadTool {
                 return;
             }
             // aLog.e(TAG, "DumpThreadTraceTask:%s", threadRef.get());
+            if (!IssueRateLimiter.tryAcquire(Issue.TYPE_THREAD, Config.THREAD_BLOCK_TIME)) {
+                threadRef = null;
+                return;
+            }
             ThreadTraceIssue traceIssue = new ThreadTraceIssue("THREAD RUN BLOCK TRACE", StackTraceUtils.list(thread));
             traceIssue.threadName = thread.getName();
             traceIssue.print();
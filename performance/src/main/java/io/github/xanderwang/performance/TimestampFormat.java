@@ -0,0 +1,93 @@
+package io.github.xanderwang.performance;
+
+import java.util.Calendar;
+
+/**
+ * @author Xander Wang
+ * @Description 把 ms 时间格式化为 yyyyMMdd_HHmmss_SSS ，直接写入 {@link ByteArrayBuilder} 。
+ * <p>
+ * 同一秒内的时间共用缓存的前缀，只需要写入毫秒部分，秒变化的时候才重新计算日期。
+ * 内部有缓存，一个实例只能在一个线程里面使用。
+ */
+class TimestampFormat {
+
+    /**
+     * yyyyMMdd_HHmmss_ 的长度
+     */
+    private static final int PREFIX_LENGTH = 16;
+
+    private final byte[] prefix = new byte[PREFIX_LENGTH];
+
+    private final Calendar calendar = Calendar.getInstance();
+
+    /**
+     * 缓存的前缀对应的秒，单位 ms
+     */
+    private long cachedSecondMillis = Long.MIN_VALUE;
+
+    /**
+     * 写入格式化的时间
+     *
+     * @param output     输出
+     * @param timeMillis 时间，单位 ms
+     */
+    void write(ByteArrayBuilder output, long timeMillis) {
+        long millis = updatePrefixIfNeeded(timeMillis);
+        output.write(prefix, 0, PREFIX_LENGTH);
+        output.write((int) ('0' + millis / 100)).write((int) ('0' + millis / 10 % 10)).write((int) ('0' + millis % 10));
+    }
+
+    /**
+     * 格式化为字符串，只给旧的 {@link Issue#createTime} 使用
+     *
+     * @param timeMillis 时间，单位 ms
+     * @return 格式化的时间
+     */
+    String format(long timeMillis) {
+        long millis = updatePrefixIfNeeded(timeMillis);
+        char[] chars = new char[PREFIX_LENGTH + 3];
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            chars[i] = (char) prefix[i];
+        }
+        chars[PREFIX_LENGTH] = (char) ('0' + millis / 100);
+        chars[PREFIX_LENGTH + 1] = (char) ('0' + millis / 10 % 10);
+        chars[PREFIX_LENGTH + 2] = (char) ('0' + millis % 10);
+        return new String(chars);
+    }
+
+    /**
+     * @return 毫秒部分
+     */
+    private long updatePrefixIfNeeded(long timeMillis) {
+        long millis = timeMillis % 1000;
+        if (millis < 0) {
+            millis += 1000;
+        }
+        long secondMillis = timeMillis - millis;
+        if (secondMillis != cachedSecondMillis) {
+            updatePrefix(secondMillis);
+        }
+        return millis;
+    }
+
+    private void updatePrefix(long secondMillis) {
+        calendar.setTimeInMillis(secondMillis);
+        int index = 0;
+        index = writeDigits(calendar.get(Calendar.YEAR), 4, index);
+        index = writeDigits(calendar.get(Calendar.MONTH) + 1, 2, index);
+        index = writeDigits(calendar.get(Calendar.DAY_OF_MONTH), 2, index);
+        prefix[index++] = '_';
+        index = writeDigits(calendar.get(Calendar.HOUR_OF_DAY), 2, index);
+        index = writeDigits(calendar.get(Calendar.MINUTE), 2, index);
+        index = writeDigits(calendar.get(Calendar.SECOND), 2, index);
+        prefix[index] = '_';
+        cachedSecondMillis = secondMillis;
+    }
+
+    private int writeDigits(int value, int digits, int index) {
+        for (int i = index + digits - 1; i >= index; i--, value /= 10) {
+            prefix[i] = (byte) ('0' + value % 10);
+        }
+        return index + digits;
+    }
+}
@@ -0,0 +1,247 @@
+package io.github.xanderwang.performance;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 在共享的 watchdog 线程里面运行的 hashed timing wheel ，用来检测大量线程上的超时。
+ * <p>
+ * {@link #schedule(Runnable, long)} 和 {@link Timeout#cancel()} 可以在任意线程调用，都是 O(1) 的：
+ * 新的超时先放进无锁队列，取消用 CAS 修改超时的状态并马上减少计数，再放进另一个无锁队列，不需要加锁，也不发送 Handler 消息。
+ * 只有 watchdog 线程会修改时间轮的格子：每次检查先从格子里面删除已经取消的超时，再把新的超时放进格子里面，
+ * 每个 tick 处理一个格子，到期的超时在 watchdog 线程里面执行。到期和取消通过 CAS 只有一个能成功，计数只减少一次。
+ * 没有未取消的超时的时候 watchdog 线程不会因为时间轮醒来，新的超时会唤醒 watchdog 线程。
+ */
+class TimingWheel implements Watchdog.Checker {
+
+    private static final String TAG = "TimingWheel";
+
+    final String name;
+
+    private final long tickNanos;
+
+    private final int mask;
+
+    /**
+     * 每个格子是一个双向链表，只在 watchdog 线程里面使用
+     */
+    private final Timeout[] wheel;
+
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 已经取消的超时，等 watchdog 线程从格子里面删除
+     */
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 还没有到期也没有取消的超时数量
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * 下一个要处理的 tick ，只在 watchdog 线程里面使用
+     */
+    private long currentTick = 0;
+
+    /**
+     * @param name       名字
+     * @param tickMillis 一个 tick 的时间，超时的误差不超过一个 tick
+     * @param wheelSize  格子的数量，会调整为 2 的幂
+     */
+    TimingWheel(String name, long tickMillis, int wheelSize) {
+        this.name = name;
+        this.tickNanos = Math.max(1L, tickMillis) * 1000000L;
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * 添加一个超时
+     *
+     * @param task        到期的时候在 watchdog 线程里面执行
+     * @param delayMillis 超时时间
+     * @return 超时，可以用来取消
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + Math.max(0L, delayMillis) * 1000000L);
+        // 先计数再入队，计数为 0 的时候格子里面一定没有超时
+        boolean idle = pendingCount.getAndIncrement() == 0;
+        newTimeouts.offer(timeout);
+        if (idle) {
+            // 时间轮空闲的时候 watchdog 线程可能睡眠很久
+            Watchdog.wakeUp();
+        }
+        return timeout;
+    }
+
+    int pendingCount() {
+        return pendingCount.get();
+    }
+
+    @Override
+    public long check(long now) {
+        removeCancelledTimeouts();
+        if (pendingCount.get() <= 0) {
+            // 空闲的时候直接跳到当前的 tick ，不用逐个处理空的格子，格子里面剩下的都是已经取消的超时
+            currentTick = Math.max(currentTick, (now - startNanos) / tickNanos);
+        }
+        transferNewTimeouts();
+        while (startNanos + (currentTick + 1) * tickNanos <= now) {
+            expireBucket((int) (currentTick & mask));
+            currentTick++;
+        }
+        if (pendingCount.get() <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return startNanos + (currentTick + 1) * tickNanos;
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout timeout;
+        while (null != (timeout = cancelledTimeouts.poll())) {
+            // 还没有放进格子里面的超时在 transferNewTimeouts 里面跳过
+            if (timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while (null != (timeout = newTimeouts.poll())) {
+            if (timeout.state != Timeout.STATE_INIT) {
+                // 取消的时候已经减少了计数
+                continue;
+            }
+            // 在 deadline 之后的第一个 tick 结束的时候到期
+            long ticks = (timeout.deadline - startNanos + tickNanos - 1) / tickNanos - 1;
+            ticks = Math.max(ticks, currentTick);
+            timeout.remainingRounds = (ticks - currentTick) / wheel.length;
+            int index = (int) (ticks & mask);
+            timeout.bucket = index;
+            timeout.next = wheel[index];
+            if (null != timeout.next) {
+                timeout.next.prev = timeout;
+            }
+            wheel[index] = timeout;
+        }
+    }
+
+    private void expireBucket(int index) {
+        Timeout timeout = wheel[index];
+        while (null != timeout) {
+            Timeout next = timeout.next;
+            if (timeout.state == Timeout.STATE_CANCELLED) {
+                unlink(timeout);
+            } else if (timeout.remainingRounds <= 0) {
+                unlink(timeout);
+                if (Timeout.STATE_UPDATER.compareAndSet(timeout, Timeout.STATE_INIT, Timeout.STATE_EXPIRED)) {
+                    pendingCount.decrementAndGet();
+                    timeout.expire();
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (null == timeout.prev) {
+            wheel[timeout.bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (null != timeout.next) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    @Override
+    public String toString() {
+        return name + ", tick:" + tickNanos / 1000000L + "ms, wheel size:" + wheel.length;
+    }
+
+    /**
+     * 一个超时
+     */
+    static class Timeout {
+
+        static final int STATE_INIT = 0;
+
+        static final int STATE_CANCELLED = 1;
+
+        static final int STATE_EXPIRED = 2;
+
+        static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        final TimingWheel timingWheel;
+
+        final Runnable task;
+
+        /**
+         * 到期的时间，单位 ns
+         */
+        final long deadline;
+
+        volatile int state = STATE_INIT;
+
+        /**
+         * 以下字段只在 watchdog 线程里面使用
+         */
+        long remainingRounds;
+
+        /**
+         * 所在的格子，-1 表示不在格子里面
+         */
+        int bucket = -1;
+
+        Timeout prev;
+
+        Timeout next;
+
+        Timeout(TimingWheel timingWheel, Runnable task, long deadline) {
+            this.timingWheel = timingWheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消，已经到期的不能取消，重复取消没有影响
+         */
+        void cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, STATE_INIT, STATE_CANCELLED)) {
+                return;
+            }
+            timingWheel.pendingCount.decrementAndGet();
+            timingWheel.cancelledTimeouts.offer(this);
+        }
+
+        boolean isCancelled() {
+            return state == STATE_CANCELLED;
+        }
+
+        private void expire() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                aLog.e(TAG, "expire", t);
+            }
+        }
+    }
+}
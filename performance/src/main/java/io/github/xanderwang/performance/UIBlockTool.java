@@ -4,9 +4,13 @@ import android.annotation.SuppressLint;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Printer;
 import android.view.KeyEvent;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import io.github.xanderwang.asu.aLog;
 import io.github.xanderwang.hook.HookBridge;
 import io.github.xanderwang.hook.core.MethodParam;
@@ -16,29 +20,63 @@ import io.github.xanderwang.hook.core.MethodHook;
 /**
  * @author xander
  * <p>
- * 在触发 UI 线程操作的时候，同时在后台线程启动一个延时的任务，到了时间，延时任务还没有被移除，
+ * 在 UI 线程操作开始和结束的时候更新 {@link Watchdog.Probe} 的序号，watchdog 线程发现同一个操作超过阈值还没有结束，
  * <p>
  * 说明 UI 线程 block 了，此时打印出 UI 线程的状态，如果需要详细的状态，甚至可以
  * <p>
  * 打印出 cpu 和内存的相关信息和状态，目前只是 block 的时候，打印了 UI 线程的调用链。
+ * <p>
+ * 另外主线程每个消息和按键事件的耗时都记录到 {@link LatencyHistogram} 里面，每隔
+ * {@link Config#UI_LATENCY_INTERVAL} 导出一次耗时分布，没有超过 block 阈值的消息也能看到。
+ * 正在处理的消息记录在 {@link MessageCostTable} 里面，block 的 issue 带上消息的 Handler 、callback 和 what ，
+ * 慢消息按照这三个值累计耗时，和耗时分布一起导出。
  */
 class UIBlockTool {
 
     private static final String TAG = "UIBlockTool";
 
     /**
-     * 用于发起定时任务
+     * 用于定时导出耗时分布
      */
     private static Handler uiBlockHandler;
 
     /**
-     * 用于 dump block 时候，系统相关的信息。
+     * 检测 UI 线程的消息和按键事件是否 block ，UI 线程里面只修改序号和开始时间，不发送消息
      */
-    private static final DumpBlockInfoRunnable dumpBlockInfoRunnable = new DumpBlockInfoRunnable();
+    private static UIBlockProbe uiBlockProbe;
+
+    /**
+     * 主线程 Handler.dispatchMessage 的耗时
+     */
+    private static final LatencyHistogram messageLatency = new LatencyHistogram("dispatchMessage");
+
+    /**
+     * DecorView.dispatchKeyEvent 的耗时
+     */
+    private static final LatencyHistogram keyEventLatency = new LatencyHistogram("dispatchKeyEvent");
+
+    private static final ExportLatencyRunnable exportLatencyRunnable = new ExportLatencyRunnable();
+
+    /**
+     * 是否记录耗时分布
+     */
+    private static boolean recordLatency;
+
+    /**
+     * 上一次导出的慢消息统计的版本
+     */
+    private static long exportedCostVersion = 0;
 
     static void start() {
         aLog.e(TAG, "start");
         uiBlockHandler = new Handler(AppHelper.getPerfLooper());
+        uiBlockProbe = new UIBlockProbe(Config.UI_BLOCK_TIME, Config.UI_SAMPLE_THRESHOLD, Config.UI_SAMPLE_INTERVAL);
+        Watchdog.register(uiBlockProbe);
+        recordLatency = Config.UI_LATENCY_INTERVAL > 0;
+        if (recordLatency) {
+            uiBlockHandler.postDelayed(exportLatencyRunnable, Config.UI_LATENCY_INTERVAL);
+        }
+        LooperMonitor.start();
         // hookLooperPrinter();
         hookHandlerDispatchMessage();
         hookDecorViewDispatchKeyEvent();
@@ -46,33 +84,259 @@ class UIBlockTool {
 
 
     private static void startDumpInfo() {
-        if (null == uiBlockHandler) {
-            return;
+        UIBlockProbe probe = uiBlockProbe;
+        if (null != probe) {
+            probe.enter();
         }
-        uiBlockHandler.removeCallbacks(dumpBlockInfoRunnable);
-        uiBlockHandler.postDelayed(dumpBlockInfoRunnable, Config.UI_BLOCK_TIME);
     }
 
     private static void clearDumpInfo() {
-        if (null == uiBlockHandler) {
-            return;
+        UIBlockProbe probe = uiBlockProbe;
+        if (null != probe) {
+            probe.exit();
         }
-        uiBlockHandler.removeCallbacks(dumpBlockInfoRunnable);
     }
 
 
     /**
      * dump 信息，目前主要 dump 主线程的调用栈，后续可以考虑 dump 更多的信息。
+     * <p>
+     * 没有开启采样的时候，超过阈值时抓取一次主线程的调用栈；开启采样之后，超过采样阈值就开始每隔采样间隔抓取一次，
+     * 合并成 {@link CallTree} ，消息结束的时候如果超过了 block 阈值，输出调用树和停留次数最多的调用栈。
      */
-    private static class DumpBlockInfoRunnable implements Runnable {
+    private static class UIBlockProbe extends Watchdog.Probe {
+
+        /**
+         * 当前消息的调用树，只在 watchdog 线程里面使用
+         */
+        private CallTree callTree;
+
+        /**
+         * 采样次数达到上限之后已经提前输出了
+         */
+        private boolean callTreeReported;
+
+        /**
+         * 开始采样时正在处理的消息
+         */
+        private Class<?> sampleTarget;
+
+        private Class<?> sampleCallback;
+
+        private int sampleWhat;
+
+        UIBlockProbe(long blockTime, long sampleThreshold, long sampleInterval) {
+            super("ui-block", blockTime, sampleThreshold, sampleInterval);
+        }
+
         @Override
-        public void run() {
-            Issue uiIssue = new Issue(Issue.TYPE_UI_BLOCK, "UI BLOCK",
+        void onSample(long elapsedTime) {
+            if (null == callTree) {
+                callTree = new CallTree();
+                callTreeReported = false;
+                sampleTarget = MessageCostTable.currentTarget();
+                sampleCallback = MessageCostTable.currentCallback();
+                sampleWhat = MessageCostTable.currentWhat();
+            }
+            if (callTreeReported) {
+                return;
+            }
+            callTree.add(Looper.getMainLooper().getThread().getStackTrace());
+            if (callTree.sampleCount() >= Config.UI_SAMPLE_MAX_COUNT) {
+                // 可能是 ANR ，不等消息结束了
+                callTreeReported = true;
+                reportCallTree(callTree, elapsedTime);
+                // 消息结束之前不再采样，watchdog 线程不用每个采样间隔都醒来
+                stopSampling();
+            }
+        }
+
+        @Override
+        void onFinish(long costTime) {
+            CallTree tree = callTree;
+            callTree = null;
+            if (null != tree && !callTreeReported && costTime >= Config.UI_BLOCK_TIME) {
+                reportCallTree(tree, costTime);
+            }
+        }
+
+        private void reportCallTree(CallTree tree, long costTime) {
+            if (!IssueRateLimiter.tryAcquire(Issue.TYPE_UI_BLOCK, costTime)) {
+                return;
+            }
+            StackTraceElement[] hottestStack = tree.hottestStack();
+            UIBlockIssue issue = new UIBlockIssue(sampleTarget, sampleCallback, sampleWhat,
+                null == hottestStack ? null : StackTraceUtils.list(hottestStack));
+            issue.callTree = tree.lines(Config.UI_SAMPLE_MAX_LINES);
+            issue.sampleCount = tree.sampleCount();
+            issue.costTime = costTime;
+            issue.print();
+        }
+
+        @Override
+        void onStuck(long costTime) {
+            if (sampleIntervalNanos > 0) {
+                // 采样模式在消息结束的时候输出
+                return;
+            }
+            if (!IssueRateLimiter.tryAcquire(Issue.TYPE_UI_BLOCK, costTime)) {
+                return;
+            }
+            UIBlockIssue uiIssue = new UIBlockIssue(MessageCostTable.currentTarget(),
+                MessageCostTable.currentCallback(), MessageCostTable.currentWhat(),
                 StackTraceUtils.list(Looper.getMainLooper().getThread()));
+            uiIssue.costTime = costTime;
             uiIssue.print();
         }
     }
 
+    /**
+     * 一个消息或者按键事件处理完了，记录耗时
+     */
+    private static void recordLatency(LatencyHistogram histogram) {
+        long costNanos = MessageCostTable.exit();
+        if (recordLatency && costNanos >= 0) {
+            histogram.record(costNanos / 1000L);
+        }
+    }
+
+    /**
+     * 定时导出耗时分布，每个直方图输出一个 issue ，这段时间内没有数据的不输出
+     */
+    private static class ExportLatencyRunnable implements Runnable {
+
+        private long lastExportTime = SystemClock.uptimeMillis();
+
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            long windowTime = now - lastExportTime;
+            lastExportTime = now;
+            export(messageLatency.snapshot(), windowTime);
+            export(keyEventLatency.snapshot(), windowTime);
+            long costVersion = MessageCostTable.version();
+            if (costVersion != exportedCostVersion) {
+                exportedCostVersion = costVersion;
+                new SlowMessageIssue(MessageCostTable.stats()).print();
+            }
+            uiBlockHandler.postDelayed(this, Config.UI_LATENCY_INTERVAL);
+        }
+
+        private void export(LatencyHistogram.Snapshot snapshot, long windowTime) {
+            if (snapshot.count <= 0) {
+                return;
+            }
+            new LatencyIssue(snapshot, windowTime).print();
+        }
+    }
+
+    /**
+     * UI block ，带上正在处理的消息，采样模式下 data 是停留次数最多的调用栈，另外带上调用树
+     */
+    static class UIBlockIssue extends Issue {
+
+        final Class<?> target;
+
+        final Class<?> callback;
+
+        final int what;
+
+        List<String> callTree;
+
+        int sampleCount;
+
+        UIBlockIssue(Class<?> target, Class<?> callback, int what, Object data) {
+            super(Issue.TYPE_UI_BLOCK, "UI BLOCK", data);
+            this.target = target;
+            this.callback = callback;
+            this.what = what;
+        }
+
+        @Override
+        String key() {
+            // 按照消息的 Handler 统计耗时
+            return null == target ? super.key() : MessageCostTable.className(target);
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            if (null != target) {
+                formatter.field("handler", MessageCostTable.className(target));
+                if (null != callback) {
+                    formatter.field("callback", MessageCostTable.className(callback));
+                }
+                formatter.field("what", what);
+            }
+            if (null != callTree) {
+                formatter.field("sample count", sampleCount);
+                formatter.field("sample interval", Config.UI_SAMPLE_INTERVAL);
+                formatter.trace("call tree", callTree);
+            }
+        }
+    }
+
+    /**
+     * 慢消息的累计耗时，按照总耗时从多到少输出前面的部分
+     */
+    static class SlowMessageIssue extends StatsIssue {
+
+        final List<PERF.MessageStat> stats;
+
+        SlowMessageIssue(List<PERF.MessageStat> stats) {
+            super(Issue.TYPE_UI_BLOCK, "UI SLOW MESSAGES");
+            this.stats = stats;
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("slow message time", Config.UI_SLOW_MESSAGE_TIME);
+            formatter.field("message count", stats.size());
+            List<String> rows = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0, size = Math.min(stats.size(), Config.UI_SLOW_MESSAGE_TOP_COUNT); i < size; i++) {
+                PERF.MessageStat stat = stats.get(i);
+                sb.setLength(0);
+                sb.append("total:").append(stat.getTotalTime()).append("ms count:").append(stat.getCount())
+                    .append(" max:").append(stat.getMaxTime()).append("ms handler:").append(stat.getTargetClass())
+                    .append(" callback:").append(stat.getCallbackClass()).append(" what:").append(stat.getWhat());
+                rows.add(sb.toString());
+            }
+            formatter.trace("messages", rows);
+        }
+    }
+
+    /**
+     * 一段时间内主线程的耗时分布，单位 us
+     */
+    static class LatencyIssue extends StatsIssue {
+
+        final LatencyHistogram.Snapshot snapshot;
+
+        /**
+         * 统计的时间范围，单位 ms
+         */
+        final long windowTime;
+
+        LatencyIssue(LatencyHistogram.Snapshot snapshot, long windowTime) {
+            super(Issue.TYPE_UI_BLOCK, "UI LATENCY " + snapshot.name);
+            this.snapshot = snapshot;
+            this.windowTime = windowTime;
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("window time", windowTime);
+            formatter.field("count", snapshot.count);
+            formatter.field("mean(us)", snapshot.mean());
+            formatter.field("p50(us)", snapshot.percentile(50));
+            formatter.field("p90(us)", snapshot.percentile(90));
+            formatter.field("p95(us)", snapshot.percentile(95));
+            formatter.field("p99(us)", snapshot.percentile(99));
+            formatter.field("p99.9(us)", snapshot.percentile(99.9));
+            formatter.field("max(us)", snapshot.maxValue);
+        }
+    }
+
     public static void hookLooperPrinter() {
         Looper.getMainLooper().setMessageLogging(new WatcherMainLooperPrinter());
     }
@@ -97,6 +361,11 @@ class UIBlockTool {
         public void beforeHookedMethod(MethodParam param) throws Throwable {
             // super.beforeHookedMethod(param);
             if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
+                Message msg = (Message) param.getArgs()[0];
+                Runnable callback = null == msg ? null : msg.getCallback();
+                MessageCostTable.enter(param.getThisObject().getClass(), null == callback ? null : callback.getClass(),
+                    null == msg ? 0 : msg.what);
+                LooperMonitor.onDispatch(msg);
                 startDumpInfo();
             }
         }
@@ -106,6 +375,7 @@ class UIBlockTool {
             // super.afterHookedMethod(param);
             if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
                 clearDumpInfo();
+                recordLatency(messageLatency);
             }
         }
     }
@@ -132,6 +402,9 @@ class UIBlockTool {
         @Override
         public void beforeHookedMethod(MethodParam param) throws Throwable {
             // super.beforeHookedMethod(param);
+            KeyEvent keyEvent = (KeyEvent) param.getArgs()[0];
+            MessageCostTable.enter(param.getThisObject().getClass(), KeyEvent.class,
+                null == keyEvent ? 0 : keyEvent.getKeyCode());
             startDumpInfo();
         }
 
@@ -139,6 +412,7 @@ class UIBlockTool {
         public void afterHookedMethod(MethodParam param) throws Throwable {
             // super.afterHookedMethod(param);
             clearDumpInfo();
+            recordLatency(keyEventLatency);
         }
     }
 
@@ -0,0 +1,320 @@
+package io.github.xanderwang.performance;
+
+import android.os.Process;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 压缩后的 log 文件的上传队列。
+ * <p>
+ * 所有待上传的文件记录在持久化的 {@link ArchiveIndex} 里面，进程重启后可以继续上传。待上传的文件总大小超过阈值，
+ * 或者最旧的文件等待时间超过阈值的时候，批量上传一次；上传失败的文件按照指数退避并加上随机抖动后重试。
+ * 缓存超过 maxCacheSize 或者文件数量超过限制的时候，从最旧的文件开始删除。
+ * 所有的操作都在单独的上传线程里面执行，上传再慢也不会影响 issue 的写入。
+ */
+class UploadScheduler {
+
+    private static final String TAG = "UploadScheduler";
+
+    private static final String INDEX_NAME = "archive_index";
+
+    /**
+     * 第一次重试的等待时间
+     */
+    private static final long BASE_BACKOFF = 30 * 1000L;
+
+    /**
+     * 重试最长的等待时间
+     */
+    private static final long MAX_BACKOFF = 60 * 60 * 1000L;
+
+    /**
+     * 两次检查之间最短的间隔
+     */
+    private static final long MIN_CHECK_DELAY = 1000L;
+
+    private static final ScheduledExecutorService uploadService = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "performance-log-upload");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+    /**
+     * 待上传的文件，只在上传线程里面使用
+     */
+    private static ArchiveIndex index;
+
+    private static File cacheDir;
+
+    private static PERF.IssueSupplier<Integer> maxCacheSizeSupplier;
+
+    /**
+     * 为 null 表示没有设置上传器，只做清理
+     */
+    private static PERF.IssueSupplier<PERF.LogFileUploader> uploaderSupplier;
+
+    private static int maxFileCount;
+
+    private static ScheduledFuture<?> nextCheck;
+
+    /**
+     * 初始化，读取索引，并确认索引里面的文件都还存在
+     *
+     * @param dir           压缩文件所在的目录
+     * @param maxCacheSize  最大缓存大小
+     * @param uploader      文件上传，为 null 表示不上传
+     * @param maxCount      最多保留的文件数量
+     */
+    static void init(File dir, PERF.IssueSupplier<Integer> maxCacheSize,
+        PERF.IssueSupplier<PERF.LogFileUploader> uploader, int maxCount) {
+        cacheDir = dir;
+        index = new ArchiveIndex(new File(dir, INDEX_NAME));
+        maxCacheSizeSupplier = maxCacheSize;
+        uploaderSupplier = uploader;
+        maxFileCount = maxCount;
+        uploadService.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (index.load()) {
+                    reconcile();
+                } else {
+                    rebuild();
+                }
+                evict();
+                check();
+            }
+        });
+    }
+
+    /**
+     * 加入一个压缩后的文件
+     *
+     * @param archiveFile 压缩后的文件
+     */
+    static void enqueue(final File archiveFile) {
+        uploadService.execute(new Runnable() {
+            @Override
+            public void run() {
+                ArchiveIndex.Entry entry = new ArchiveIndex.Entry();
+                entry.name = archiveFile.getName();
+                entry.size = archiveFile.length();
+                entry.createTime = System.currentTimeMillis();
+                index.add(entry);
+                evict();
+                check();
+            }
+        });
+    }
+
+    /**
+     * 检查是否需要上传，并安排下一次检查
+     */
+    private static void check() {
+        if (null == uploaderSupplier || index.size() == 0) {
+            return;
+        }
+        PERF.LogFileUploader uploader = uploaderSupplier.get();
+        if (null == uploader) {
+            // 没有上传的实现，不安排下一次检查，等下一个文件加入的时候再检查
+            scheduleCheck(-1);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<ArchiveIndex.Entry> ready = new ArrayList<>();
+        long readySize = 0;
+        boolean trigger = false;
+        for (ArchiveIndex.Entry entry : index.entries()) {
+            if (entry.nextAttemptTime > now) {
+                continue;
+            }
+            ready.add(entry);
+            readySize += entry.size;
+            if (entry.attempts > 0 || now - entry.createTime >= Config.UPLOAD_TRIGGER_AGE) {
+                // 到了重试的时间，或者等待的时间太长了
+                trigger = true;
+            }
+        }
+        if (readySize >= Config.UPLOAD_TRIGGER_SIZE) {
+            trigger = true;
+        }
+        boolean more = false;
+        if (trigger && !ready.isEmpty()) {
+            int batchCount = Math.max(1, Config.UPLOAD_BATCH_COUNT);
+            more = ready.size() > batchCount;
+            upload(uploader, ready.subList(0, Math.min(batchCount, ready.size())), now);
+        }
+        scheduleCheck(more ? 0 : nextCheckDelay(now));
+    }
+
+    private static long nextCheckDelay(long now) {
+        long next = Long.MAX_VALUE;
+        for (ArchiveIndex.Entry entry : index.entries()) {
+            long time = entry.attempts > 0 ? entry.nextAttemptTime : entry.createTime + Config.UPLOAD_TRIGGER_AGE;
+            next = Math.min(next, time);
+        }
+        return next == Long.MAX_VALUE ? -1 : Math.max(MIN_CHECK_DELAY, next - now);
+    }
+
+    private static void scheduleCheck(long delay) {
+        if (null != nextCheck) {
+            nextCheck.cancel(false);
+            nextCheck = null;
+        }
+        if (delay < 0) {
+            return;
+        }
+        nextCheck = uploadService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                nextCheck = null;
+                check();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 上传一批文件，成功的删除，失败的按照退避时间等待重试
+     *
+     * @param uploader 上传的实现
+     * @param batch    待上传的文件
+     * @param now      当前时间
+     */
+    private static void upload(PERF.LogFileUploader uploader, List<ArchiveIndex.Entry> batch, long now) {
+        List<File> files = new ArrayList<>(batch.size());
+        for (ArchiveIndex.Entry entry : batch) {
+            files.add(new File(cacheDir, entry.name));
+        }
+        HashSet<String> uploaded = new HashSet<>();
+        if (uploader instanceof PERF.BatchLogFileUploader) {
+            try {
+                List<File> result = ((PERF.BatchLogFileUploader) uploader).upload(files);
+                if (null != result) {
+                    for (File file : result) {
+                        uploaded.add(file.getName());
+                    }
+                }
+            } catch (Throwable t) {
+                aLog.e(TAG, "batch upload", t);
+            }
+        } else {
+            for (File file : files) {
+                try {
+                    if (uploader.upload(file)) {
+                        uploaded.add(file.getName());
+                    }
+                } catch (Throwable t) {
+                    aLog.e(TAG, "upload " + file.getName(), t);
+                }
+            }
+        }
+        int done = 0;
+        for (ArchiveIndex.Entry entry : batch) {
+            if (uploaded.contains(entry.name)) {
+                new File(cacheDir, entry.name).delete();
+                index.remove(entry.name);
+                done++;
+            } else {
+                entry.attempts++;
+                entry.nextAttemptTime = now + backoff(entry.attempts);
+                index.update(entry);
+            }
+        }
+        aLog.e(TAG, "upload batch:%s, uploaded:%s, pending:%s", batch.size(), done, index.size());
+    }
+
+    /**
+     * 指数退避，等待时间在 [delay / 2, delay) 之间随机，避免大量设备同时重试
+     *
+     * @param attempts 失败的次数
+     * @return 等待时间，单位 ms
+     */
+    private static long backoff(int attempts) {
+        long delay = BASE_BACKOFF << Math.min(attempts - 1, 16);
+        delay = Math.min(delay, MAX_BACKOFF);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * 超过缓存大小或者数量限制的时候，从最旧的文件开始删除，索引里面维护了总大小，每次删除都是 O(1)
+     */
+    private static void evict() {
+        long maxCacheSize = null == maxCacheSizeSupplier ? Long.MAX_VALUE : maxCacheSizeSupplier.get();
+        while (index.size() > 0 && (index.totalSize() > maxCacheSize || index.size() > maxFileCount)) {
+            ArchiveIndex.Entry oldest = index.oldest();
+            index.remove(oldest.name);
+            new File(cacheDir, oldest.name).delete();
+            aLog.w(TAG, "evict %s, attempts:%s", oldest.name, oldest.attempts);
+        }
+    }
+
+    /**
+     * 删除索引里面已经不存在的文件，只检查索引里面的文件，不遍历目录
+     */
+    private static void reconcile() {
+        List<String> missing = new ArrayList<>();
+        for (ArchiveIndex.Entry entry : index.entries()) {
+            if (!new File(cacheDir, entry.name).isFile()) {
+                missing.add(entry.name);
+            }
+        }
+        for (String name : missing) {
+            index.remove(name);
+        }
+    }
+
+    /**
+     * 没有索引文件的时候扫描一次目录，把已有的压缩文件按照修改时间从旧到新加入索引
+     */
+    private static void rebuild() {
+        File[] files = cacheDir.listFiles();
+        List<ArchiveIndex.Entry> found = new ArrayList<>();
+        if (null != files) {
+            for (File file : files) {
+                if (file.isFile() && LogCompressor.isArchive(file.getName())) {
+                    ArchiveIndex.Entry entry = new ArchiveIndex.Entry();
+                    entry.name = file.getName();
+                    entry.size = file.length();
+                    entry.createTime = file.lastModified();
+                    found.add(entry);
+                }
+            }
+        }
+        Collections.sort(found, new Comparator<ArchiveIndex.Entry>() {
+            @Override
+            public int compare(ArchiveIndex.Entry entryA, ArchiveIndex.Entry entryB) {
+                return entryA.createTime < entryB.createTime ? -1 : (entryA.createTime == entryB.createTime ? 0 : 1);
+            }
+        });
+        for (ArchiveIndex.Entry entry : found) {
+            index.add(entry);
+        }
+        index.compact();
+        aLog.e(TAG, "rebuild index, archives:%s", found.size());
+    }
+}
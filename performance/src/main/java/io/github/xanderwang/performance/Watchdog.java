@@ -0,0 +1,271 @@
+package io.github.xanderwang.performance;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.xanderwang.asu.aLog;
+
+/**
+ * @author Xander Wang
+ * @Description 共享的 watchdog 线程，检测某个线程上的一段操作是否执行太久。
+ * <p>
+ * 被检测的线程在操作开始和结束的时候只修改 {@link Probe} 里面的 volatile 序号和开始时间，不发送消息，也不创建对象。
+ * 序号为奇数表示有操作正在执行，watchdog 线程轮询所有的 probe ，发现同一个序号的操作超过阈值还没有结束，
+ * 就回调 {@link Probe#onStuck(long)} ，每个操作最多回调一次。有操作在执行的时候 watchdog 线程只在超时的时间点醒来，
+ * 空闲的时候每隔一个阈值醒来一次。
+ * <p>
+ * probe 还可以开启采样：操作超过采样阈值之后，每隔采样间隔回调一次 {@link Probe#onSample(long)} ，
+ * 直到操作结束的时候回调 {@link Probe#onFinish(long)} 。
+ * <p>
+ * 除了 probe ，其他需要定时检查的 {@link Checker} 也可以注册到 watchdog 线程，比如 {@link TimingWheel} 。
+ */
+class Watchdog {
+
+    private static final String TAG = "Watchdog";
+
+    private static volatile Checker[] checkers = new Checker[0];
+
+    private static volatile Thread watchdogThread;
+
+    /**
+     * 注册一个 checker ，第一次注册的时候启动 watchdog 线程
+     *
+     * @param checker checker
+     */
+    static synchronized void register(Checker checker) {
+        Checker[] newCheckers = Arrays.copyOf(checkers, checkers.length + 1);
+        newCheckers[checkers.length] = checker;
+        checkers = newCheckers;
+        if (null == watchdogThread) {
+            watchdogThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "performance-watchdog");
+            watchdogThread.setDaemon(true);
+            watchdogThread.start();
+        } else {
+            // 重新计算醒来的时间
+            LockSupport.unpark(watchdogThread);
+        }
+        aLog.d(TAG, "register %s", checker);
+    }
+
+    /**
+     * 唤醒 watchdog 线程重新计算醒来的时间，比如 checker 从空闲变成有任务的时候
+     */
+    static void wakeUp() {
+        Thread thread = watchdogThread;
+        if (null != thread) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static void loop() {
+        while (true) {
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            Checker[] current = checkers;
+            for (int i = 0; i < current.length; i++) {
+                next = Math.min(next, current[i].check(now));
+            }
+            long waitNanos = next == Long.MAX_VALUE ? 1000000000L : next - now;
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+        }
+    }
+
+    /**
+     * 在 watchdog 线程里面定时检查
+     */
+    interface Checker {
+        /**
+         * 检查一次
+         *
+         * @param now 当前时间，单位 ns
+         * @return 下一次需要检查的时间，单位 ns ，Long.MAX_VALUE 表示没有需要检查的
+         */
+        long check(long now);
+    }
+
+    /**
+     * 一个被检测的线程上的操作，{@link #enter()} 和 {@link #exit()} 只能在被检测的线程里面调用
+     */
+    abstract static class Probe implements Checker {
+
+        final String name;
+
+        final long thresholdNanos;
+
+        /**
+         * 开始采样的阈值
+         */
+        final long sampleThresholdNanos;
+
+        /**
+         * 采样的间隔，0 表示不采样
+         */
+        final long sampleIntervalNanos;
+
+        /**
+         * 奇数表示有操作正在执行
+         */
+        private volatile long sequence = 0;
+
+        private volatile long startNanos;
+
+        /**
+         * 嵌套的深度，只在被检测的线程里面使用
+         */
+        private int depth = 0;
+
+        /**
+         * 已经回调过的序号，只在 watchdog 线程里面使用
+         */
+        private long reportedSequence = -1;
+
+        /**
+         * 正在采样的操作的序号，-1 表示没有在采样，只在 watchdog 线程里面使用
+         */
+        private long samplingSequence = -1;
+
+        private long samplingStartNanos;
+
+        /**
+         * 停止采样的操作的序号，只在 watchdog 线程里面使用
+         */
+        private long stoppedSequence = -1;
+
+        Probe(String name, long thresholdMillis) {
+            this(name, thresholdMillis, 0, 0);
+        }
+
+        Probe(String name, long thresholdMillis, long sampleThresholdMillis, long sampleIntervalMillis) {
+            this.name = name;
+            this.thresholdNanos = Math.max(1L, thresholdMillis) * 1000000L;
+            this.sampleIntervalNanos = Math.max(0L, sampleIntervalMillis) * 1000000L;
+            this.sampleThresholdNanos = Math.max(0L, Math.min(sampleThresholdMillis, thresholdMillis)) * 1000000L;
+        }
+
+        /**
+         * 操作开始，嵌套的操作从里层开始重新计时
+         */
+        void enter() {
+            depth++;
+            startNanos = System.nanoTime();
+            long current = sequence;
+            sequence = (current & 1) == 0 ? current + 1 : current + 2;
+        }
+
+        /**
+         * 操作结束，回到外层操作的时候，外层操作重新计时
+         */
+        void exit() {
+            if (depth <= 0) {
+                return;
+            }
+            depth--;
+            if (depth == 0) {
+                sequence = sequence + 1;
+            } else {
+                startNanos = System.nanoTime();
+                sequence = sequence + 2;
+            }
+        }
+
+        @Override
+        public long check(long now) {
+            long current = sequence;
+            boolean running = (current & 1) != 0;
+            long start = startNanos;
+            if (running && sequence != current) {
+                // 读取开始时间的时候操作发生了变化，马上再检查一次
+                return now;
+            }
+            if (samplingSequence != -1 && samplingSequence != current) {
+                // 正在采样的操作已经结束，结束时间的误差不超过一个采样间隔
+                samplingSequence = -1;
+                try {
+                    onFinish((now - samplingStartNanos) / 1000000L);
+                } catch (Throwable t) {
+                    aLog.e(TAG, "onFinish " + name, t);
+                }
+            }
+            boolean sampling = sampleIntervalNanos > 0;
+            if (!running) {
+                return now + (sampling ? Math.max(sampleThresholdNanos, sampleIntervalNanos) : thresholdNanos);
+            }
+            long next = Long.MAX_VALUE;
+            if (sampling && stoppedSequence == current) {
+                // 停止采样之后按照空闲时的间隔检查操作是否结束
+                next = now + Math.max(sampleThresholdNanos, sampleIntervalNanos);
+            } else if (sampling) {
+                if (now < start + sampleThresholdNanos) {
+                    return start + sampleThresholdNanos;
+                }
+                if (samplingSequence != current) {
+                    samplingSequence = current;
+                    samplingStartNanos = start;
+                }
+                try {
+                    onSample((now - start) / 1000000L);
+                } catch (Throwable t) {
+                    aLog.e(TAG, "onSample " + name, t);
+                }
+                next = now + (stoppedSequence == current ? Math.max(sampleThresholdNanos, sampleIntervalNanos)
+                    : sampleIntervalNanos);
+            }
+            long deadline = start + thresholdNanos;
+            if (now < deadline) {
+                return Math.min(next, deadline);
+            }
+            if (reportedSequence != current) {
+                reportedSequence = current;
+                try {
+                    onStuck((now - start) / 1000000L);
+                } catch (Throwable t) {
+                    aLog.e(TAG, "onStuck " + name, t);
+                }
+            }
+            return Math.min(next, now + thresholdNanos);
+        }
+
+        @Override
+        public String toString() {
+            return name + ", threshold:" + thresholdNanos / 1000000L + "ms";
+        }
+
+        /**
+         * 操作超过阈值还没有结束，在 watchdog 线程里面回调
+         *
+         * @param costTime 已经执行的时间，单位 ms
+         */
+        abstract void onStuck(long costTime);
+
+        /**
+         * 开启采样之后，操作超过采样阈值还没有结束，每隔采样间隔在 watchdog 线程里面回调一次
+         *
+         * @param elapsedTime 已经执行的时间，单位 ms
+         */
+        void onSample(long elapsedTime) {
+        }
+
+        /**
+         * 在 {@link #onSample(long)} 里面调用，当前的操作不再采样，结束的时候仍然回调 {@link #onFinish(long)} ，
+         * watchdog 线程按照空闲时的间隔醒来，结束的时间误差不超过这个间隔
+         */
+        void stopSampling() {
+            stoppedSequence = samplingSequence;
+        }
+
+        /**
+         * 采样过的操作结束了，在 watchdog 线程里面回调
+         *
+         * @param costTime 操作的耗时，单位 ms ，误差不超过一个采样间隔
+         */
+        void onFinish(long costTime) {
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package io.github.xanderwang.performance;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Xander Wang
+ * @Description 按照对象的 identity 比较 key 、弱引用 key 的线程安全的 map 。
+ * <p>
+ * key 用 {@link System#identityHashCode(Object)} 和 == 比较，不调用 key 的 hashCode 和 equals ，
+ * 查询和删除不会创建对象。key 被回收之后 entry 进入 {@link ReferenceQueue} ，每次修改 map 的时候清理，
+ * 被清理的 value 回调给 {@link RemovalListener} ，回调在锁外面执行。value 不能强引用 key ，否则 key 不会被回收。
+ */
+class WeakIdentityMap<K, V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    private final RemovalListener<V> listener;
+
+    private Entry<K, V>[] table;
+
+    private int size = 0;
+
+    WeakIdentityMap() {
+        this(DEFAULT_CAPACITY, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    WeakIdentityMap(int capacity, RemovalListener<V> listener) {
+        int tableSize = DEFAULT_CAPACITY;
+        while (tableSize < capacity) {
+            tableSize <<= 1;
+        }
+        this.table = (Entry<K, V>[]) new Entry<?, ?>[tableSize];
+        this.listener = listener;
+    }
+
+    private static int indexFor(int hash, int length) {
+        return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+
+    V get(K key) {
+        if (null == key) {
+            return null;
+        }
+        int hash = System.identityHashCode(key);
+        synchronized (this) {
+            for (Entry<K, V> e = table[indexFor(hash, table.length)]; null != e; e = e.next) {
+                if (e.hash == hash && e.get() == key) {
+                    return e.value;
+                }
+            }
+        }
+        return null;
+    }
+
+    boolean containsKey(K key) {
+        return null != get(key);
+    }
+
+    /**
+     * 保存 value ，value 不能为 null
+     *
+     * @return 之前的 value
+     */
+    V put(K key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * key 不存在的时候才保存
+     *
+     * @return 已经存在的 value ，不存在的时候返回 null
+     */
+    V putIfAbsent(K key, V value) {
+        return put(key, value, true);
+    }
+
+    private V put(K key, V value, boolean onlyIfAbsent) {
+        if (null == key || null == value) {
+            return null;
+        }
+        int hash = System.identityHashCode(key);
+        V old = null;
+        List<V> removed;
+        synchronized (this) {
+            removed = expungeStaleEntries();
+            int index = indexFor(hash, table.length);
+            Entry<K, V> e = table[index];
+            for (; null != e; e = e.next) {
+                if (e.hash == hash && e.get() == key) {
+                    old = e.value;
+                    if (!onlyIfAbsent) {
+                        e.value = value;
+                    }
+                    break;
+                }
+            }
+            if (null == e) {
+                table[index] = new Entry<>(key, hash, value, table[index], queue);
+                if (++size > table.length * 3 / 4) {
+                    resize();
+                }
+            }
+        }
+        notifyRemoved(removed);
+        return old;
+    }
+
+    V remove(K key) {
+        if (null == key) {
+            return null;
+        }
+        int hash = System.identityHashCode(key);
+        V old = null;
+        List<V> removed;
+        synchronized (this) {
+            removed = expungeStaleEntries();
+            int index = indexFor(hash, table.length);
+            Entry<K, V> prev = null;
+            for (Entry<K, V> e = table[index]; null != e; prev = e, e = e.next) {
+                if (e.hash == hash && e.get() == key) {
+                    if (null == prev) {
+                        table[index] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                    size--;
+                    old = e.value;
+                    e.value = null;
+                    break;
+                }
+            }
+        }
+        notifyRemoved(removed);
+        return old;
+    }
+
+    int size() {
+        List<V> removed;
+        int result;
+        synchronized (this) {
+            removed = expungeStaleEntries();
+            result = size;
+        }
+        notifyRemoved(removed);
+        return result;
+    }
+
+    /**
+     * 清理 key 已经被回收的 entry ，需要持有锁
+     *
+     * @return 被清理的 value ，没有的时候返回 null
+     */
+    @SuppressWarnings("unchecked")
+    private List<V> expungeStaleEntries() {
+        List<V> removed = null;
+        for (Object ref; null != (ref = queue.poll()); ) {
+            Entry<K, V> stale = (Entry<K, V>) ref;
+            int index = indexFor(stale.hash, table.length);
+            Entry<K, V> prev = null;
+            for (Entry<K, V> e = table[index]; null != e; prev = e, e = e.next) {
+                if (e == stale) {
+                    if (null == prev) {
+                        table[index] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                    size--;
+                    if (null != listener && null != e.value) {
+                        if (null == removed) {
+                            removed = new ArrayList<>();
+                        }
+                        removed.add(e.value);
+                    }
+                    e.value = null;
+                    break;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private void notifyRemoved(List<V> removed) {
+        if (null == removed) {
+            return;
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            listener.onRemoved(removed.get(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        Entry<K, V>[] oldTable = table;
+        Entry<K, V>[] newTable = (Entry<K, V>[]) new Entry<?, ?>[oldTable.length << 1];
+        for (int i = 0; i < oldTable.length; i++) {
+            Entry<K, V> e = oldTable[i];
+            while (null != e) {
+                Entry<K, V> next = e.next;
+                int index = indexFor(e.hash, newTable.length);
+                e.next = newTable[index];
+                newTable[index] = e;
+                e = next;
+            }
+        }
+        table = newTable;
+    }
+
+    /**
+     * key 被回收之后 value 被清理的回调
+     */
+    interface RemovalListener<V> {
+        void onRemoved(V value);
+    }
+
+    private static class Entry<K, V> extends WeakReference<K> {
+
+        final int hash;
+
+        V value;
+
+        Entry<K, V> next;
+
+        Entry(K key, int hash, V value, Entry<K, V> next, ReferenceQueue<K> queue) {
+            super(key, queue);
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.xanderwang.performance;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.xanderwang.performance.decoder.IssueRecord;
+import io.github.xanderwang.performance.decoder.SegmentReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 二进制格式写入 {@link LogSegment} 之后，用 performance-decoder 解码还原的文本和文本格式的输出一致
+ */
+public class IssueRoundTripTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("round_trip", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static class FieldIssue extends Issue {
+
+        FieldIssue(String msg, Object data) {
+            super(Issue.TYPE_FPS, msg, data);
+            costTime = 42;
+        }
+
+        @Override
+        protected void formatExtraInfo(IssueFormatter formatter) {
+            formatter.field("scene", "MainActivity");
+            formatter.field("frame count", 120);
+            formatter.field("dropped", "3 (2.5%)");
+        }
+    }
+
+    private static class LegacyIssue extends Issue {
+
+        LegacyIssue() {
+            super(Issue.TYPE_THREAD, "LEGACY", null);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected void formatExtraInfo(StringBuilder sb) {
+            sb.append("thread name: worker-1\n").append("no separator\n");
+        }
+    }
+
+    private static StackTrace trace(String method) {
+        return StackTraceUtils.trace(new StackTraceElement[]{new StackTraceElement("a.Main", method, "Main.java", 10),
+            new StackTraceElement("a.Looper", "loop", "Looper.java", 20)});
+    }
+
+    @Test
+    public void binarySegmentDecodesToTextOutput() throws IOException {
+        StackTrace hot = trace("onDraw");
+        List<Issue> issues = Arrays.asList(new FieldIssue("FPS", hot), new Issue(Issue.TYPE_IPC, "IPC", "binder"),
+            new FieldIssue("FPS", hot), new LegacyIssue(),
+            new Issue(Issue.TYPE_UI_BLOCK, "UI BLOCK", Arrays.asList("plain frame 1", "plain frame 2")),
+            new FieldIssue("FPS \"quoted\" 中文", trace("onMeasure")));
+
+        BinaryIssueFormatter binary = new BinaryIssueFormatter();
+        TextIssueFormatter text = new TextIssueFormatter();
+        List<String> expected = new ArrayList<>();
+        LogSegment segment = LogSegment.create(file, 64 * 1024, PERF.FORMAT_BINARY);
+        for (Issue issue : issues) {
+            issue.format(binary);
+            assertTrue(segment.append(binary.array(), binary.length()));
+            issue.format(text);
+            expected.add(text.text());
+        }
+        segment.close();
+
+        SegmentReader reader = SegmentReader.open(file);
+        assertTrue(reader.isBinary());
+        for (String issueText : expected) {
+            IssueRecord record = reader.next();
+            assertEquals(issueText, record.toText());
+        }
+        assertNull(reader.next());
+        assertTrue(expected.get(2).contains("trace: trace #" + hot.id + " seen again"));
+        assertTrue(expected.get(3).contains("thread name: worker-1\nextra: no separator\n"));
+    }
+
+    @Test
+    public void traceCountIsFixedWhenCaptured() {
+        StackTrace first = trace("onTouch");
+        StackTrace second = trace("onTouch");
+        Issue firstIssue = new Issue(Issue.TYPE_UI_BLOCK, "first", first);
+        Issue secondIssue = new Issue(Issue.TYPE_UI_BLOCK, "second", second);
+        // 格式化之前又出现了一次
+        trace("onTouch");
+        assertEquals(first.id, second.id);
+        assertEquals(second.getCount(), first.getCount() + 1);
+
+        TextIssueFormatter text = new TextIssueFormatter();
+        firstIssue.format(text);
+        secondIssue.format(text);
+        assertTrue(text.text().contains("trace: trace #" + second.id + " seen again ×" + second.getCount() + "\n"));
+        secondIssue.format(text);
+        assertTrue(text.text().contains("trace: trace #" + second.id + " seen again ×" + second.getCount() + "\n"));
+    }
+
+    @Test
+    public void resetStartsNewStringTable() throws IOException {
+        StackTrace hot = trace("onLayout");
+        BinaryIssueFormatter binary = new BinaryIssueFormatter();
+        TextIssueFormatter text = new TextIssueFormatter();
+        new Issue(Issue.TYPE_UI_BLOCK, "first file", hot).format(binary);
+
+        // 切换文件之后字符串和调用栈都要重新定义
+        binary.reset();
+        text.reset();
+        Issue issue = new Issue(Issue.TYPE_UI_BLOCK, "second file", hot);
+        LogSegment segment = LogSegment.create(file, 64 * 1024, PERF.FORMAT_BINARY);
+        issue.format(binary);
+        segment.append(binary.array(), binary.length());
+        segment.close();
+        issue.format(text);
+
+        SegmentReader reader = SegmentReader.open(file);
+        assertEquals(text.text(), reader.next().toText());
+    }
+}
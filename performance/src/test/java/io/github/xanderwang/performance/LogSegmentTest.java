@@ -0,0 +1,151 @@
+package io.github.xanderwang.performance;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LogSegment} 的分帧写入和恢复
+ */
+public class LogSegmentTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("log_segment", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(UTF_8);
+    }
+
+    private static boolean append(LogSegment segment, String str) {
+        byte[] data = bytes(str);
+        return segment.append(data, data.length);
+    }
+
+    private static int frameEnd(int start, String... frames) {
+        int position = start;
+        for (String frame : frames) {
+            position += LogSegment.FRAME_HEADER_LENGTH + bytes(frame).length;
+        }
+        return position;
+    }
+
+    @Test
+    public void reopenContinuesAfterLastFrame() throws IOException {
+        LogSegment segment = LogSegment.create(file, 4096, PERF.FORMAT_TEXT);
+        assertTrue(segment.isEmpty());
+        append(segment, "first");
+        append(segment, "second");
+        int end = segment.buffer.position();
+        assertEquals(frameEnd(segment.dataStart, "first", "second"), end);
+        segment.close();
+
+        assertTrue(LogSegment.hasData(file));
+        assertTrue(LogSegment.isFramed(file));
+        assertEquals(PERF.FORMAT_TEXT, LogSegment.readFormat(file));
+        LogSegment reopened = LogSegment.open(file, 4096);
+        assertEquals(end, reopened.buffer.position());
+        append(reopened, "third");
+        assertEquals(frameEnd(end, "third"), reopened.validLength());
+        reopened.close();
+    }
+
+    @Test
+    public void emptySegmentHasNoData() throws IOException {
+        LogSegment segment = LogSegment.create(file, 4096, PERF.FORMAT_BINARY);
+        segment.close();
+        assertFalse(LogSegment.hasData(file));
+        assertEquals(PERF.FORMAT_BINARY, LogSegment.readFormat(file));
+        LogSegment reopened = LogSegment.open(file, 4096);
+        assertEquals(reopened.dataStart, reopened.validLength());
+        reopened.close();
+    }
+
+    @Test
+    public void tornLengthStopsAtLastCompleteFrame() throws IOException {
+        LogSegment segment = LogSegment.create(file, 4096, PERF.FORMAT_TEXT);
+        append(segment, "first");
+        append(segment, "second");
+        int end = segment.buffer.position();
+        // 进程在写入长度之后、数据写完之前退出，长度超出了文件的范围
+        segment.buffer.putInt(end, 1 << 20);
+        segment.close();
+
+        LogSegment reopened = LogSegment.open(file, 4096);
+        assertEquals(end, reopened.validLength());
+        assertEquals(end, reopened.buffer.position());
+        // 恢复的时候清掉了残留的长度，继续写入的帧可以被扫描到
+        assertEquals(0, reopened.buffer.getInt(end));
+        append(reopened, "third");
+        assertEquals(frameEnd(end, "third"), reopened.validLength());
+        reopened.close();
+    }
+
+    @Test
+    public void crcMismatchStopsBeforeBadFrame() throws IOException {
+        LogSegment segment = LogSegment.create(file, 4096, PERF.FORMAT_TEXT);
+        append(segment, "first");
+        int firstEnd = segment.buffer.position();
+        append(segment, "second");
+        append(segment, "third");
+        // 第二帧的数据被破坏，后面的帧也不再可信
+        int payload = firstEnd + LogSegment.FRAME_HEADER_LENGTH;
+        segment.buffer.put(payload, (byte) (segment.buffer.get(payload) ^ 0xFF));
+        assertEquals(firstEnd, segment.validLength());
+        segment.close();
+
+        LogSegment reopened = LogSegment.open(file, 4096);
+        assertEquals(firstEnd, reopened.buffer.position());
+        reopened.close();
+    }
+
+    @Test
+    public void fullSegmentRejectsFrameAndRollsOver() throws IOException {
+        int size = 256;
+        LogSegment segment = LogSegment.create(file, size, PERF.FORMAT_TEXT);
+        String frame = "0123456789abcdef";
+        int count = 0;
+        while (append(segment, frame)) {
+            count++;
+        }
+        int end = segment.buffer.position();
+        assertEquals((size - segment.dataStart) / (LogSegment.FRAME_HEADER_LENGTH + frame.length()), count);
+        assertEquals(end, segment.validLength());
+        // 写不下的帧不会写入任何数据
+        assertFalse(append(segment, frame));
+        assertEquals(end, segment.buffer.position());
+        segment.close();
+
+        File next = File.createTempFile("log_segment", ".log");
+        try {
+            LogSegment nextSegment = LogSegment.create(next, size, PERF.FORMAT_TEXT);
+            assertTrue(append(nextSegment, frame));
+            assertEquals(frameEnd(nextSegment.dataStart, frame), nextSegment.validLength());
+            nextSegment.close();
+
+            LogSegment archived = LogSegment.openReadOnly(file);
+            assertEquals(end, archived.validLength());
+            archived.close();
+        } finally {
+            next.delete();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package io.github.xanderwang.performance;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link ThreadPoolMonitor} 按照线程池的创建位置聚合
+ */
+public class ThreadPoolMonitorTest {
+
+    @Test
+    public void createSiteSkipsFrameworkFrames() {
+        String site = ThreadPoolMonitor.createSite(Arrays.asList(
+            "java.util.concurrent.ThreadPoolExecutor.<init>(ThreadPoolExecutor.java:1237)",
+            "java.util.concurrent.Executors.newFixedThreadPool(Executors.java:92)",
+            "io.github.xanderwang.hook.HookBridge.callOriginal(HookBridge.java:10)",
+            "io.github.xanderwang.performance.ThreadTool.saveThreadPoolCreateInfo(ThreadTool.java:150)",
+            "com.example.app.ImageLoader.<init>(ImageLoader.java:42)",
+            "com.example.app.MainActivity.onCreate(MainActivity.java:20)"));
+        assertEquals("com.example.app.ImageLoader.<init>(ImageLoader.java:42)", site);
+    }
+
+    @Test
+    public void createSiteWithoutAppFrame() {
+        assertNull(ThreadPoolMonitor.createSite(null));
+        assertNull(ThreadPoolMonitor.createSite(Collections.<String>emptyList()));
+        assertNull(ThreadPoolMonitor.createSite(Arrays.asList(
+            "java.util.concurrent.Executors.newCachedThreadPool(Executors.java:217)",
+            "java.lang.Thread.run(Thread.java:919)")));
+    }
+}
@@ -0,0 +1,131 @@
+package io.github.xanderwang.performance;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link TimingWheel} 的到期、取消和绕圈，check 传入模拟的时间，不依赖 watchdog 线程
+ */
+public class TimingWheelTest {
+
+    private static final long MS = 1000000L;
+
+    /**
+     * tick 10ms ，8 个格子，一圈 80ms
+     */
+    private TimingWheel wheel;
+
+    private AtomicInteger runCount;
+
+    private Runnable task;
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel("test", 10, 8);
+        runCount = new AtomicInteger();
+        task = new Runnable() {
+            @Override
+            public void run() {
+                runCount.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void expiresAfterDeadline() {
+        long start = System.nanoTime();
+        wheel.schedule(task, 50);
+        assertEquals(1, wheel.pendingCount());
+        long next = wheel.check(start);
+        assertTrue(next != Long.MAX_VALUE);
+        assertEquals(0, runCount.get());
+        assertEquals(Long.MAX_VALUE, wheel.check(start + 100 * MS));
+        assertEquals(1, runCount.get());
+        assertEquals(0, wheel.pendingCount());
+        // 到期之后不会再执行
+        assertEquals(Long.MAX_VALUE, wheel.check(start + 1000 * MS));
+        assertEquals(1, runCount.get());
+    }
+
+    @Test
+    public void cancelBeforeTransfer() {
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = wheel.schedule(task, 50);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, wheel.pendingCount());
+        assertEquals(Long.MAX_VALUE, wheel.check(start));
+        assertEquals(Long.MAX_VALUE, wheel.check(start + 100 * MS));
+        assertEquals(0, runCount.get());
+    }
+
+    @Test
+    public void cancelAfterTransfer() {
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = wheel.schedule(task, 50);
+        assertTrue(wheel.check(start) != Long.MAX_VALUE);
+        timeout.cancel();
+        // 取消之后马上不再计数，watchdog 线程不需要继续 tick
+        assertEquals(0, wheel.pendingCount());
+        assertEquals(Long.MAX_VALUE, wheel.check(start + 10 * MS));
+        assertEquals(Long.MAX_VALUE, wheel.check(start + 100 * MS));
+        assertEquals(0, runCount.get());
+    }
+
+    @Test
+    public void cancelOnlyCountsOnce() {
+        long start = System.nanoTime();
+        TimingWheel.Timeout expired = wheel.schedule(task, 20);
+        TimingWheel.Timeout cancelled = wheel.schedule(task, 500);
+        TimingWheel.Timeout live = wheel.schedule(task, 500);
+        cancelled.cancel();
+        cancelled.cancel();
+        assertEquals(2, wheel.pendingCount());
+        wheel.check(start + 50 * MS);
+        assertEquals(1, runCount.get());
+        assertEquals(1, wheel.pendingCount());
+        // 已经到期的不能取消
+        expired.cancel();
+        assertFalse(expired.isCancelled());
+        assertEquals(1, wheel.pendingCount());
+        live.cancel();
+        assertEquals(0, wheel.pendingCount());
+        assertEquals(Long.MAX_VALUE, wheel.check(start + 1000 * MS));
+        assertEquals(1, runCount.get());
+    }
+
+    @Test
+    public void multiRoundTimeout() {
+        long start = System.nanoTime();
+        // 超过一圈，需要绕圈
+        wheel.schedule(task, 200);
+        wheel.check(start);
+        wheel.check(start + 120 * MS);
+        assertEquals(0, runCount.get());
+        assertEquals(1, wheel.pendingCount());
+        wheel.check(start + 300 * MS);
+        assertEquals(1, runCount.get());
+        assertEquals(0, wheel.pendingCount());
+    }
+
+    @Test
+    public void scheduleAfterIdle() {
+        long start = System.nanoTime();
+        wheel.schedule(task, 20);
+        wheel.check(start + 50 * MS);
+        assertEquals(1, runCount.get());
+        // 空闲很久之后再添加，时间轮直接跳到当前的 tick
+        assertEquals(Long.MAX_VALUE, wheel.check(start + 10000 * MS));
+        TimingWheel.Timeout timeout = wheel.schedule(task, 0);
+        assertEquals(1, wheel.pendingCount());
+        wheel.check(start + 10020 * MS);
+        assertEquals(2, runCount.get());
+        assertFalse(timeout.isCancelled());
+    }
+}
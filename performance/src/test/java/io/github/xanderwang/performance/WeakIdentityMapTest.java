@@ -0,0 +1,115 @@
+package io.github.xanderwang.performance;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link WeakIdentityMap} 的 identity 比较、扩容和 key 被回收之后的清理
+ */
+public class WeakIdentityMapTest {
+
+    /**
+     * equals 和 hashCode 都相同的 key ，map 只能按照 identity 区分
+     */
+    private static class SameKey {
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof SameKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+    }
+
+    @Test
+    public void comparesKeysByIdentity() {
+        WeakIdentityMap<Object, String> map = new WeakIdentityMap<>();
+        SameKey keyA = new SameKey();
+        SameKey keyB = new SameKey();
+        assertNull(map.put(keyA, "a"));
+        assertNull(map.put(keyB, "b"));
+        assertEquals("a", map.get(keyA));
+        assertEquals("b", map.get(keyB));
+        assertFalse(map.containsKey(new SameKey()));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void putRemoveAndPutIfAbsent() {
+        WeakIdentityMap<Object, String> map = new WeakIdentityMap<>();
+        Object key = new Object();
+        assertNull(map.putIfAbsent(key, "first"));
+        assertEquals("first", map.putIfAbsent(key, "second"));
+        assertEquals("first", map.get(key));
+        assertEquals("first", map.put(key, "third"));
+        assertEquals("third", map.remove(key));
+        assertNull(map.remove(key));
+        assertNull(map.get(key));
+        assertEquals(0, map.size());
+        // null 的 key 和 value 不保存
+        assertNull(map.put(null, "value"));
+        assertNull(map.put(key, null));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void resizeKeepsAllEntries() {
+        WeakIdentityMap<Object, Integer> map = new WeakIdentityMap<>(4, null);
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Object key = new SameKey();
+            keys.add(key);
+            map.put(key, i);
+        }
+        assertEquals(keys.size(), map.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+        }
+        for (int i = 0; i < keys.size(); i += 2) {
+            assertEquals(Integer.valueOf(i), map.remove(keys.get(i)));
+        }
+        assertEquals(keys.size() / 2, map.size());
+        assertNull(map.get(keys.get(0)));
+        assertEquals(Integer.valueOf(1), map.get(keys.get(1)));
+    }
+
+    @Test
+    public void collectedKeysAreExpungedAndReported() throws InterruptedException {
+        final AtomicInteger removedCount = new AtomicInteger();
+        final List<String> removedValues = new ArrayList<>();
+        WeakIdentityMap<Object, String> map = new WeakIdentityMap<>(16, new WeakIdentityMap.RemovalListener<String>() {
+            @Override
+            public void onRemoved(String value) {
+                removedCount.incrementAndGet();
+                synchronized (removedValues) {
+                    removedValues.add(value);
+                }
+            }
+        });
+        Object live = new Object();
+        map.put(live, "live");
+        for (int i = 0; i < 1000; i++) {
+            map.put(new Object(), "dead");
+        }
+        for (int i = 0; i < 50 && map.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, map.size());
+        assertEquals(1000, removedCount.get());
+        assertFalse(removedValues.contains("live"));
+        assertSame("live", map.get(live));
+        assertTrue(map.containsKey(live));
+    }
+}